@@ -0,0 +1,138 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Classes the benchmarks optimise: the coursework targets, read from the class path, and a
+ * generated class large enough that per-method costs dominate the fixed cost of parsing.
+ */
+final class BenchmarkInputs {
+
+    static final String GENERATED = "Generated";
+
+    // shape of the generated class
+    static final int GENERATED_METHODS = 40;
+    static final int GENERATED_STATEMENTS = 60;
+
+    private BenchmarkInputs() {
+    }
+
+    /*
+     * bytes of a comp0012.target class, or of the generated class
+     */
+    static byte[] load(String name) throws IOException {
+        if (GENERATED.equals(name)) {
+            return generate("comp0012/bench/" + GENERATED, GENERATED_METHODS, GENERATED_STATEMENTS);
+        }
+        String resource = "/comp0012/target/" + name + ".class";
+        try (InputStream in = BenchmarkInputs.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Cannot find " + resource + " on the class path; run the generate target first");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /*
+     * a class of static methods mixing the patterns of all three tasks: constant expressions
+     * of every primitive type, constants stored to and reloaded from locals, parameters mixed
+     * in, and a counted loop. Written as an old class file so no stack map frames are needed.
+     */
+    static byte[] generate(String internalName, int methods, int statements) {
+        String className = internalName.replace('/', '.');
+        ClassGen cg = new ClassGen(className, "java.lang.Object", className + ".java",
+                Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+        ConstantPoolGen cp = cg.getConstantPool();
+
+        for (int m = 0; m < methods; m++) {
+            InstructionList il = new InstructionList();
+            // slot 0 is the parameter, 1 the running sum, 2..5 scratch ints, 6 a long, 8 a float
+            il.append(new ICONST(0));
+            il.append(new ISTORE(1));
+            for (int s = 0; s < statements; s++) {
+                int k = m * statements + s;
+                int scratch = 2 + s % 4;
+                switch (s % 6) {
+                    case 0:
+                        il.append(new SIPUSH((short) (k % 1000)));
+                        il.append(new BIPUSH((byte) (k % 100)));
+                        il.append(new IADD());
+                        il.append(new ISTORE(scratch));
+                        break;
+                    case 1:
+                        il.append(new LDC2_W(cp.addLong(k * 1000003L)));
+                        il.append(new LDC2_W(cp.addLong(k + 7L)));
+                        il.append(new LMUL());
+                        il.append(new LSTORE(6));
+                        il.append(new LLOAD(6));
+                        il.append(new L2I());
+                        il.append(new ISTORE(scratch));
+                        break;
+                    case 2:
+                        il.append(new LDC(cp.addFloat(k / 3f)));
+                        il.append(new FCONST(2));
+                        il.append(new FMUL());
+                        il.append(new FSTORE(8));
+                        il.append(new FLOAD(8));
+                        il.append(new F2I());
+                        il.append(new ISTORE(scratch));
+                        break;
+                    case 3:
+                        il.append(new LDC2_W(cp.addDouble(k * 0.25)));
+                        il.append(new DCONST(1));
+                        il.append(new DSUB());
+                        il.append(new D2I());
+                        il.append(new ISTORE(scratch));
+                        break;
+                    case 4:
+                        il.append(new ILOAD(2 + (s + 1) % 4));
+                        il.append(new BIPUSH((byte) (k % 50)));
+                        il.append(new IMUL());
+                        il.append(new ILOAD(0));
+                        il.append(new IADD());
+                        il.append(new ISTORE(scratch));
+                        break;
+                    default:
+                        // for (int i = 0; i < 8; i++) scratch += i
+                        InstructionHandle start = il.append(new ICONST(0));
+                        il.append(new ISTORE(scratch));
+                        InstructionHandle test = il.append(new ILOAD(scratch));
+                        il.append(new BIPUSH((byte) 8));
+                        BranchHandle exit = il.append(new IF_ICMPGE(null));
+                        il.append(new ILOAD(1));
+                        il.append(new ILOAD(scratch));
+                        il.append(new IADD());
+                        il.append(new ISTORE(1));
+                        il.append(new IINC(scratch, 1));
+                        il.append(new GOTO(test));
+                        exit.setTarget(il.append(new NOP()));
+                        break;
+                }
+                il.append(new ILOAD(1));
+                il.append(new ILOAD(scratch));
+                il.append(new IADD());
+                il.append(new ISTORE(1));
+            }
+            il.append(new ILOAD(1));
+            il.append(new IRETURN());
+
+            MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT,
+                    new Type[] { Type.INT }, new String[] { "p" }, "method" + m, className, il, cp);
+            mg.setMaxStack();
+            mg.setMaxLocals();
+            cg.addMethod(mg.getMethod());
+            il.dispose();
+        }
+        return cg.getJavaClass().getBytes();
+    }
+}
@@ -0,0 +1,39 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole-class throughput of the optimiser: parse, run the default pipeline to its fixpoint
+ * and serialise, as Main does for every class file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassThroughputBenchmark {
+
+    @Param({ "SimpleFolding", "ConstantVariableFolding", "DynamicVariableFolding", BenchmarkInputs.GENERATED })
+    public String input;
+
+    private byte[] classBytes;
+    private OptimizationOptions options;
+
+    @Setup
+    public void setUp() throws IOException {
+        classBytes = BenchmarkInputs.load(input);
+        options = new OptimizationOptions();
+    }
+
+    @Benchmark
+    public byte[] optimiseClass() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(classBytes.length);
+        new ConstantFolder(classBytes, input + ".class", options).write(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One round of a single pass (or one of the simple pass's per-type folds) over every method
+ * of a class. The class is parsed into fresh IR before each invocation, outside the measured
+ * time, since every pass rewrites the IR it is given.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PassBenchmark {
+
+    @Param({ "SimpleFolding", "ConstantVariableFolding", "DynamicVariableFolding", BenchmarkInputs.GENERATED })
+    public String input;
+
+    @Param({ "simple", "simpleInt", "simpleLong", "simpleFloat", "simpleDouble", "constant", "dynamic" })
+    public String stage;
+
+    private byte[] classBytes;
+    private final SimpleFoldingPass simple = new SimpleFoldingPass();
+    private final ConstantVariableFoldingPass constant = new ConstantVariableFoldingPass();
+    private final DynamicVariableFoldingPass dynamic = new DynamicVariableFoldingPass();
+
+    private ConstantPoolGen cpgen;
+    private List<MethodIR> methods;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        classBytes = BenchmarkInputs.load(input);
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() throws IOException {
+        ClassGen gen = new ClassGen(new ClassParser(new ByteArrayInputStream(classBytes), input + ".class").parse());
+        cpgen = gen.getConstantPool();
+        methods = new ArrayList<>();
+        BootstrapMethod[] bootstrapMethods = MethodIR.bootstrapMethods(gen);
+        for (Method method : gen.getMethods()) {
+            if (method.getCode() != null) {
+                methods.add(new MethodIR(method, gen.getClassName(), cpgen, gen.getMajor(), bootstrapMethods));
+            }
+        }
+    }
+
+    @Benchmark
+    public int runStage() {
+        int changed = 0;
+        for (MethodIR ir : methods) {
+            if (runStage(ir)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private boolean runStage(MethodIR ir) {
+        switch (stage) {
+            case "simple":
+                return simple.run(ir, cpgen);
+            case "simpleInt":
+                return simple.simpleInt(ir, cpgen);
+            case "simpleLong":
+                return simple.simpleLong(ir, cpgen);
+            case "simpleFloat":
+                return simple.simpleFloat(ir, cpgen);
+            case "simpleDouble":
+                return simple.simpleDouble(ir, cpgen);
+            case "constant":
+                return constant.simulateInstructionList(ir.getMethodGen(), cpgen) != null;
+            case "dynamic":
+                return dynamic.run(ir, cpgen);
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package comp0012.main;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time of one call of a comp0012.target method, original or optimised. Each variant is loaded
+ * from its own directory by a class loader with no parent, so the two never share a class.
+ * Both are called through the same kind of method handle, so the call overhead is the same
+ * on either side of the comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeSpeedupBenchmark {
+
+    static final String ORIGINAL = "original";
+    static final String OPTIMISED = "optimised";
+
+    // directories holding the two versions of the comp0012.target classes
+    static final String ORIGINAL_DIR = "comp0012.original.dir";
+    static final String OPTIMISED_DIR = "comp0012.optimised.dir";
+
+    @Param({ "ConstantVariableFolding.methodOne", "ConstantVariableFolding.methodTwo",
+            "ConstantVariableFolding.methodThree", "ConstantVariableFolding.methodFour",
+            "ConstantVariableFolding.methodFive", "DynamicVariableFolding.methodOne",
+            "DynamicVariableFolding.methodTwo", "DynamicVariableFolding.methodThree",
+            "DynamicVariableFolding.methodFour", "SimpleFolding.simple" })
+    public String target;
+
+    @Param({ ORIGINAL, OPTIMISED })
+    public String variant;
+
+    private MethodHandle call;
+    private Class<?> returnType;
+    private URLClassLoader loader;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() throws Exception {
+        String dir = System.getProperty(ORIGINAL.equals(variant) ? ORIGINAL_DIR : OPTIMISED_DIR,
+                ORIGINAL.equals(variant) ? "build/classes" : "optimised/classes");
+        loader = new URLClassLoader(new URL[] { Paths.get(dir).toUri().toURL() }, null);
+        int dot = target.indexOf('.');
+        Class<?> cls = loader.loadClass("comp0012.target." + target.substring(0, dot));
+        Method method = cls.getMethod(target.substring(dot + 1));
+        returnType = method.getReturnType();
+
+        // widen numeric results so the benchmark needs one call site per kind
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method)
+                .bindTo(cls.getConstructor().newInstance());
+        if (returnType == void.class || returnType == boolean.class) {
+            call = handle;
+        } else if (returnType == float.class || returnType == double.class) {
+            call = handle.asType(MethodType.methodType(double.class));
+        } else if (returnType.isPrimitive()) {
+            call = handle.asType(MethodType.methodType(long.class));
+        } else {
+            call = handle.asType(MethodType.methodType(Object.class));
+        }
+        // some targets print their results, which would swamp the benchmark output
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.setOut(stdout);
+        loader.close();
+    }
+
+    @Benchmark
+    public void call(Blackhole bh) throws Throwable {
+        if (returnType == void.class) {
+            call.invokeExact();
+        } else if (returnType == boolean.class) {
+            bh.consume((boolean) call.invokeExact());
+        } else if (returnType == float.class || returnType == double.class) {
+            bh.consume((double) call.invokeExact());
+        } else if (returnType.isPrimitive()) {
+            bh.consume((long) call.invokeExact());
+        } else {
+            bh.consume((Object) call.invokeExact());
+        }
+    }
+}
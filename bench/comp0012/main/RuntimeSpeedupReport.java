@@ -0,0 +1,113 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link RuntimeSpeedupBenchmark} over every public no-argument instance method of the
+ * comp0012.target classes and prints, per method, the time per call and code size before and
+ * after optimisation and the resulting speedup.
+ *
+ * Usage: RuntimeSpeedupReport originalDir optimisedDir [JMH options]
+ */
+public class RuntimeSpeedupReport {
+
+    private static final String TARGET_PACKAGE = "comp0012/target";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: RuntimeSpeedupReport originalDir optimisedDir [JMH options]");
+            System.exit(2);
+        }
+        Path original = Paths.get(args[0]).toAbsolutePath();
+        Path optimised = Paths.get(args[1]).toAbsolutePath();
+        String[] jmhArgs = new String[args.length - 2];
+        System.arraycopy(args, 2, jmhArgs, 0, jmhArgs.length);
+
+        Map<String, Integer> originalSizes = codeSizes(original);
+        Map<String, Integer> optimisedSizes = codeSizes(optimised);
+        if (originalSizes.isEmpty()) {
+            System.err.println("No target methods found under " + original.resolve(TARGET_PACKAGE));
+            System.exit(1);
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(new CommandLineOptions(jmhArgs));
+        options.include(RuntimeSpeedupBenchmark.class.getName())
+                .param("target", originalSizes.keySet().toArray(new String[0]))
+                .jvmArgsAppend("-D" + RuntimeSpeedupBenchmark.ORIGINAL_DIR + "=" + original,
+                        "-D" + RuntimeSpeedupBenchmark.OPTIMISED_DIR + "=" + optimised);
+        Collection<RunResult> results = new Runner(options.build()).run();
+
+        Map<String, Double> originalTimes = new HashMap<>();
+        Map<String, Double> optimisedTimes = new HashMap<>();
+        String unit = "ns/op";
+        for (RunResult r : results) {
+            String target = r.getParams().getParam("target");
+            double score = r.getPrimaryResult().getScore();
+            unit = r.getPrimaryResult().getScoreUnit();
+            if (RuntimeSpeedupBenchmark.ORIGINAL.equals(r.getParams().getParam("variant"))) {
+                originalTimes.put(target, score);
+            } else {
+                optimisedTimes.put(target, score);
+            }
+        }
+
+        System.out.println();
+        String row = "%-40s %14s %14s %9s %10s %10s%n";
+        System.out.printf(row, "Method", "Original " + unit, "Optimised " + unit, "Speedup", "Bytes", "Opt bytes");
+        for (String target : originalSizes.keySet()) {
+            Double before = originalTimes.get(target);
+            Double after = optimisedTimes.get(target);
+            if (before == null || after == null) {
+                continue;
+            }
+            System.out.printf(row, target, String.format("%.3f", before), String.format("%.3f", after),
+                    String.format("%.2fx", before / after), originalSizes.get(target),
+                    optimisedSizes.getOrDefault(target, -1));
+        }
+    }
+
+    /*
+     * code length of every benchmarkable method, keyed Class.method
+     */
+    private static Map<String, Integer> codeSizes(Path root) throws IOException {
+        Map<String, Integer> sizes = new TreeMap<>();
+        Path dir = root.resolve(TARGET_PACKAGE);
+        if (!Files.isDirectory(dir)) {
+            return sizes;
+        }
+        List<Path> classes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.class")) {
+            files.forEach(classes::add);
+        }
+        for (Path file : classes) {
+            JavaClass jc = new ClassParser(file.toString()).parse();
+            String simpleName = jc.getClassName().substring(jc.getClassName().lastIndexOf('.') + 1);
+            for (Method m : jc.getMethods()) {
+                if (m.isPublic() && !m.isStatic() && m.getArgumentTypes().length == 0
+                        && !m.getName().startsWith("<") && m.getCode() != null) {
+                    sizes.put(simpleName + "." + m.getName(), m.getCode().getCode().length);
+                }
+            }
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,113 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Runs Main over classes from {@link WorkloadGenerator} and prints how the optimiser scales:
+ * first with the number of classes, up to the given count, then with method length,
+ * expression depth and number of locals, each varied on its own from a base shape. Every row
+ * gives wall time, throughput and the peak heap of the run; the rows are also written as CSV.
+ *
+ * Usage: ScalingReport workDir [classes] [threads]
+ */
+public class ScalingReport {
+
+    private static final WorkloadGenerator.Shape BASE = new WorkloadGenerator.Shape(2, 10, 4, 8);
+    // classes per run when another dimension is varied
+    private static final int SAMPLE_CLASSES = 100;
+
+    private static final String HEADER = "dimension,value,classes,input bytes,seconds,classes/s,KB/s,peak heap MB";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: ScalingReport workDir [classes] [threads]");
+            System.exit(2);
+        }
+        Path work = Paths.get(args[0]).toAbsolutePath();
+        int classes = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        List<String> rows = new ArrayList<>();
+        rows.add(HEADER);
+        System.out.printf("%-11s %7s %8s %10s %9s %10s %9s %9s%n", "Dimension", "Value", "Classes", "Input KB",
+                "Seconds", "Classes/s", "KB/s", "Heap MB");
+        // the first run pays class loading and JIT warm-up; keep it out of the curves
+        measure(work, "warmup", 0, SAMPLE_CLASSES, BASE, threads);
+        for (int n : new int[] { classes / 8, classes / 4, classes / 2, classes }) {
+            rows.add(measure(work, "classes", n, Math.max(n, 1), BASE, threads));
+        }
+        for (int statements : new int[] { 5, 20, 80, 320 }) {
+            rows.add(measure(work, "statements", statements, SAMPLE_CLASSES, BASE.withStatements(statements), threads));
+        }
+        for (int depth : new int[] { 1, 4, 16, 64 }) {
+            rows.add(measure(work, "depth", depth, SAMPLE_CLASSES, BASE.withDepth(depth), threads));
+        }
+        for (int locals : new int[] { 2, 8, 32, 128 }) {
+            rows.add(measure(work, "locals", locals, SAMPLE_CLASSES, BASE.withLocals(locals), threads));
+        }
+        Path csv = work.resolve("scaling.csv");
+        Files.write(csv, rows);
+        System.out.println("Wrote " + csv);
+    }
+
+    /*
+     * generate a fresh input, optimise it with a cold cache and print one row; returns the row as CSV
+     */
+    private static String measure(Path work, String dimension, int value, int classes, WorkloadGenerator.Shape shape,
+            int threads) throws IOException, InterruptedException {
+        Path in = work.resolve("in");
+        Path out = work.resolve("out");
+        delete(in);
+        delete(out);
+        long bytes = WorkloadGenerator.write(in, classes, shape);
+
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache", "-threads",
+                String.valueOf(threads) });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            // the pools peak at different moments, so this bounds the true peak from above
+            peak += pool.getPeakUsage().getUsed();
+        }
+
+        double kb = bytes / 1024.0;
+        double heapMb = peak / (1024.0 * 1024.0);
+        if (!dimension.equals("warmup")) {
+            System.out.printf("%-11s %7d %8d %10.0f %9.2f %10.0f %9.0f %9.0f%n", dimension, value, classes, kb, seconds,
+                    classes / seconds, kb / seconds, heapMb);
+        }
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.1f,%.1f,%.1f", dimension, value, classes, bytes, seconds,
+                classes / seconds, kb / seconds, heapMb);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Synthetic input for scaling measurements: classes of static int methods whose statements
+ * are constant-heavy expressions of a chosen depth over a chosen number of locals, so that
+ * method length, expression depth, locals and class count can each be varied on its own.
+ * Written as old class files so no stack map frames are needed.
+ */
+final class WorkloadGenerator {
+
+    static final String PACKAGE = "workload";
+
+    // the JVM rejects methods with more code than this
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    /*
+     * size of every generated class
+     */
+    static final class Shape {
+        final int methods;
+        final int statements;
+        final int depth;
+        final int locals;
+
+        Shape(int methods, int statements, int depth, int locals) {
+            if (methods < 1 || statements < 1 || depth < 1 || locals < 1 || locals > 250) {
+                throw new IllegalArgumentException("Bad shape: " + methods + " methods, " + statements
+                        + " statements, depth " + depth + ", " + locals + " locals");
+            }
+            this.methods = methods;
+            this.statements = statements;
+            this.depth = depth;
+            this.locals = locals;
+        }
+
+        Shape withStatements(int statements) {
+            return new Shape(methods, statements, depth, locals);
+        }
+
+        Shape withDepth(int depth) {
+            return new Shape(methods, statements, depth, locals);
+        }
+
+        Shape withLocals(int locals) {
+            return new Shape(methods, statements, depth, locals);
+        }
+
+        @Override
+        public String toString() {
+            return methods + " methods x " + statements + " statements, depth " + depth + ", " + locals + " locals";
+        }
+    }
+
+    private WorkloadGenerator() {
+    }
+
+    /*
+     * write classes workload/C0 .. C(count-1) under root; returns their total size in bytes
+     */
+    static long write(Path root, int count, Shape shape) throws IOException {
+        Path dir = root.resolve(PACKAGE);
+        Files.createDirectories(dir);
+        long bytes = 0;
+        for (int c = 0; c < count; c++) {
+            byte[] classBytes = generate(PACKAGE + "/C" + c, c, shape);
+            Files.write(dir.resolve("C" + c + ".class"), classBytes);
+            bytes += classBytes.length;
+        }
+        return bytes;
+    }
+
+    /*
+     * one class; seed varies the constants between classes so no two are identical
+     */
+    static byte[] generate(String internalName, int seed, Shape shape) {
+        String className = internalName.replace('/', '.');
+        ClassGen cg = new ClassGen(className, "java.lang.Object", className.substring(className.lastIndexOf('.') + 1)
+                + ".java", Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+        ConstantPoolGen cp = cg.getConstantPool();
+        for (int m = 0; m < shape.methods; m++) {
+            InstructionList il = new InstructionList();
+            // slot 0 is the parameter, 1..locals hold ints, the next two a long
+            int wide = shape.locals + 1;
+            for (int l = 1; l <= shape.locals; l++) {
+                il.append(ConstantPropagation.push(seed + l * 7 + m, cp));
+                il.append(new ISTORE(l));
+            }
+            for (int s = 0; s < shape.statements; s++) {
+                int k = seed * 31 + m * shape.statements + s;
+                expression(il, k, shape, cp);
+                switch (s % 4) {
+                    case 0:
+                        // widened through a long and back
+                        il.append(new I2L());
+                        il.append(ConstantPropagation.push((long) k * 1000003L, cp));
+                        il.append(new LADD());
+                        il.append(new LSTORE(wide));
+                        il.append(new LLOAD(wide));
+                        il.append(new L2I());
+                        break;
+                    case 1:
+                        il.append(new ILOAD(0));
+                        il.append(new IADD());
+                        break;
+                    case 2: {
+                        // for (int i = 0; i < 4; i++) value += i, with the value kept in its local
+                        int slot = 1 + k % shape.locals;
+                        il.append(new ISTORE(slot));
+                        il.append(new ICONST(0));
+                        il.append(new ISTORE(wide));
+                        InstructionHandle test = il.append(new ILOAD(wide));
+                        il.append(new ICONST(4));
+                        BranchHandle exit = il.append(new IF_ICMPGE(null));
+                        il.append(new ILOAD(slot));
+                        il.append(new ILOAD(wide));
+                        il.append(new IADD());
+                        il.append(new ISTORE(slot));
+                        il.append(new IINC(wide, 1));
+                        il.append(new GOTO(test));
+                        exit.setTarget(il.append(new ILOAD(slot)));
+                        break;
+                    }
+                    default:
+                        break;
+                }
+                il.append(new ISTORE(1 + (k * 7) % shape.locals));
+            }
+            il.append(new ILOAD(1));
+            il.append(new IRETURN());
+            if (il.getByteCode().length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Methods of " + shape + " exceed " + MAX_CODE_LENGTH + " bytes");
+            }
+
+            MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT,
+                    new Type[] { Type.INT }, new String[] { "p" }, "method" + m, className, il, cp);
+            mg.setMaxStack();
+            mg.setMaxLocals();
+            cg.addMethod(mg.getMethod());
+            il.dispose();
+        }
+        return cg.getJavaClass().getBytes();
+    }
+
+    /*
+     * push an int expression nested depth operators deep, to the right so that each level
+     * holds one more value on the stack: c0 op (x1 op (c2 op ...)), where the leaves alternate
+     * constants and locals holding constants
+     */
+    private static void expression(InstructionList il, int k, Shape shape, ConstantPoolGen cp) {
+        for (int d = 0; d < shape.depth; d++) {
+            leaf(il, k + d, shape, cp);
+        }
+        leaf(il, k + shape.depth, shape, cp);
+        for (int d = shape.depth - 1; d >= 0; d--) {
+            switch ((k + d) % 5) {
+                case 0: il.append(new IADD()); break;
+                case 1: il.append(new ISUB()); break;
+                case 2: il.append(new IMUL()); break;
+                case 3: il.append(new IXOR()); break;
+                default: il.append(new IOR()); break;
+            }
+        }
+    }
+
+    private static void leaf(InstructionList il, int k, Shape shape, ConstantPoolGen cp) {
+        if (k % 2 == 0) {
+            il.append(ConstantPropagation.push(k % 3 == 0 ? k * 65537 : k % 1000, cp));
+        } else {
+            il.append(new ILOAD(1 + k % shape.locals));
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package comp0012.main.jmh_generated;
+public class ClassThroughputBenchmark_jmhType extends ClassThroughputBenchmark_jmhType_B3 {
+}
+
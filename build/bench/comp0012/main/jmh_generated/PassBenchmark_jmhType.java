@@ -0,0 +1,4 @@
+package comp0012.main.jmh_generated;
+public class PassBenchmark_jmhType extends PassBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package comp0012.main.jmh_generated;
+public class RuntimeSpeedupBenchmark_jmhType extends RuntimeSpeedupBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,112 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Reading and writing class files. A file is read with a single channel read into an array of
+ * its exact size, or through a memory mapping once it is large enough for the mapping to pay
+ * off. Output is serialised into a buffer kept per thread, written to a temporary file beside
+ * the target in one channel write and renamed over the target, so that nobody ever sees a
+ * partly written class. Class files and what else changes the output are told apart by
+ * their SHA-256 digest, written in hex.
+ */
+public final class ClassFiles {
+
+    // smaller files are cheaper to read than to map
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    /*
+     * a ByteArrayOutputStream whose contents can be written out without copying them
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private ClassFiles() {
+    }
+
+    public static byte[] read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException(file + " is too large for a class file");
+            }
+            byte[] bytes = new byte[(int) size];
+            if (size >= MAP_THRESHOLD) {
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(bytes);
+                return bytes;
+            }
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) {
+                    // the file shrank while being read
+                    return Arrays.copyOf(bytes, in.position());
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /*
+     * the calling thread's serialisation buffer, emptied; its contents are only valid until
+     * the thread asks for it again
+     */
+    static Buffer buffer() {
+        Buffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    public static void write(Path file, byte[] bytes) throws IOException {
+        write(file, ByteBuffer.wrap(bytes));
+    }
+
+    /*
+     * replace file with the remaining bytes, atomically; nothing is left behind on failure
+     */
+    public static void write(Path file, ByteBuffer bytes) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
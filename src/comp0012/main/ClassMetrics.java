@@ -0,0 +1,65 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What optimising one class cost and changed. ConstantFolder fills in the methods and the
+ * constant pool; Main adds the sizes in and out and the time for the whole class.
+ */
+public class ClassMetrics {
+
+    final String className;
+    final List<MethodMetrics> methods = new ArrayList<>();
+    int constantPoolBefore;
+    int constantPoolAfter;
+    long bytesIn;
+    long bytesOut;
+    long nanos;
+    // why the constant pool was left uncompacted, null if it was compacted or left on request
+    String compactionFailure;
+
+    ClassMetrics(String className) {
+        this.className = className;
+    }
+
+    long instructionsBefore() {
+        long n = 0;
+        for (MethodMetrics m : methods) {
+            n += m.instructionsBefore;
+        }
+        return n;
+    }
+
+    long instructionsAfter() {
+        long n = 0;
+        for (MethodMetrics m : methods) {
+            n += m.instructionsAfter;
+        }
+        return n;
+    }
+
+    void writeJson(StringBuilder out) {
+        out.append("{\"name\":");
+        OptimisationReport.quote(out, className);
+        out.append(",\"nanos\":").append(nanos)
+                .append(",\"bytesIn\":").append(bytesIn)
+                .append(",\"bytesOut\":").append(bytesOut)
+                .append(",\"constantPoolBefore\":").append(constantPoolBefore)
+                .append(",\"constantPoolAfter\":").append(constantPoolAfter)
+                .append(",\"instructionsBefore\":").append(instructionsBefore())
+                .append(",\"instructionsAfter\":").append(instructionsAfter());
+        if (compactionFailure != null) {
+            out.append(",\"compactionFailure\":");
+            OptimisationReport.quote(out, compactionFailure);
+        }
+        out.append(",\"methods\":[");
+        for (int i = 0; i < methods.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            methods.get(i).writeJson(out);
+        }
+        out.append("]}");
+    }
+}
@@ -0,0 +1,767 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites a serialised class so that its constant pool holds only the entries something
+ * still refers to. Folding adds the constants it computes but never removes the operands it
+ * folded away, so without this every optimised class only grows.
+ *
+ * Every index outside the pool is found by walking the class file format (JVMS 4), including
+ * the code of every method, and patched in place; nothing else moves, so no offsets change.
+ * Constants loaded by ldc/ldc_w come first, most used first, so as many as possible end up
+ * in the first 256 slots where a two byte ldc can reach them. A class with an attribute this
+ * walker does not know is returned unchanged, as its indices could not be renumbered.
+ */
+final class ConstantPoolCompactor {
+
+    // constant pool tags, JVMS 4.4
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    // largest index a two byte ldc can encode
+    static final int LDC_LIMIT = 255;
+
+    /*
+     * the class file uses something the walker cannot renumber
+     */
+    private static final class UnknownLayout extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnknownLayout(String message) {
+            super(message);
+        }
+    }
+
+    private final byte[] bytes;
+    private int pos;
+
+    private int count;
+    private int[] tags;
+    // offset of each entry just past its tag, 0 for the unusable slot after a long or double
+    private int[] offsets;
+    private int poolEnd;
+
+    // offsets of every index stored outside the pool, two bytes wide or (ldc) one byte wide
+    private int[] wideSites = new int[64];
+    private int wideCount;
+    private int[] narrowSites = new int[16];
+    private int narrowCount;
+
+    // per entry: ldc/ldc_w loads of it, and whether a one byte ldc loads it
+    private int[] loads;
+    private boolean[] loadedNarrow;
+
+    private ConstantPoolCompactor(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /*
+     * the class with its constant pool compacted, or the very same array if there was nothing
+     * to drop or reorder, or the class could not be walked
+     */
+    static byte[] compact(byte[] classFile) {
+        try {
+            return new ConstantPoolCompactor(classFile).rewrite();
+        } catch (UnknownLayout | IndexOutOfBoundsException e) {
+            return classFile;
+        }
+    }
+
+    private byte[] rewrite() throws UnknownLayout {
+        readPool();
+        readClass();
+
+        boolean[] live = new boolean[count];
+        int[] work = new int[count];
+        int pending = 0;
+        for (int i = 0; i < wideCount; i++) {
+            pending = mark(u2(wideSites[i]), live, work, pending);
+        }
+        for (int i = 0; i < narrowCount; i++) {
+            pending = mark(u1(narrowSites[i]), live, work, pending);
+        }
+        while (pending > 0) {
+            int index = work[--pending];
+            for (int ref : references(index)) {
+                pending = mark(ref, live, work, pending);
+            }
+        }
+
+        List<Integer> order = order(live);
+        int[] renumbered = new int[count];
+        int next = 1;
+        boolean identity = true;
+        for (int index : order) {
+            identity &= index == next;
+            renumbered[index] = next;
+            next += isWide(tags[index]) ? 2 : 1;
+        }
+        if (identity && next == count) {
+            return bytes;
+        }
+        for (int i = 0; i < narrowCount; i++) {
+            if (renumbered[u1(narrowSites[i])] > LDC_LIMIT) {
+                throw new UnknownLayout("ldc operand beyond " + LDC_LIMIT);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        out.write(bytes, 0, 8);
+        out.write(next >> 8);
+        out.write(next);
+        for (int index : order) {
+            writeEntry(out, index, renumbered);
+        }
+        byte[] rest = Arrays.copyOfRange(bytes, poolEnd, bytes.length);
+        for (int i = 0; i < wideCount; i++) {
+            int at = wideSites[i] - poolEnd;
+            int index = renumbered[u2(wideSites[i])];
+            rest[at] = (byte) (index >> 8);
+            rest[at + 1] = (byte) index;
+        }
+        for (int i = 0; i < narrowCount; i++) {
+            rest[narrowSites[i] - poolEnd] = (byte) renumbered[u1(narrowSites[i])];
+        }
+        out.write(rest, 0, rest.length);
+        return out.toByteArray();
+    }
+
+    private int mark(int index, boolean[] live, int[] work, int pending) throws UnknownLayout {
+        if (index <= 0 || index >= count || offsets[index] == 0) {
+            throw new UnknownLayout("bad constant pool index " + index);
+        }
+        if (!live[index]) {
+            live[index] = true;
+            work[pending++] = index;
+        }
+        return pending;
+    }
+
+    /*
+     * constants loaded by ldc first, most loaded first; the rest keep their relative order
+     */
+    private List<Integer> order(boolean[] live) {
+        List<Integer> loaded = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            if (live[i] && loads[i] > 0) {
+                loaded.add(i);
+            }
+        }
+        loaded.sort((a, b) -> loads[a] != loads[b] ? Integer.compare(loads[b], loads[a]) : Integer.compare(a, b));
+        if (loaded.size() > LDC_LIMIT) {
+            // constants already loaded by a one byte ldc must stay within its reach
+            List<Integer> narrow = new ArrayList<>();
+            List<Integer> wide = new ArrayList<>();
+            for (int index : loaded) {
+                (loadedNarrow[index] ? narrow : wide).add(index);
+            }
+            loaded = narrow;
+            loaded.addAll(wide);
+        }
+        List<Integer> order = new ArrayList<>(loaded);
+        for (int i = 1; i < count; i++) {
+            if (live[i] && loads[i] == 0) {
+                order.add(i);
+            }
+        }
+        return order;
+    }
+
+    private static boolean isWide(int tag) {
+        return tag == LONG || tag == DOUBLE;
+    }
+
+    private void readPool() throws UnknownLayout {
+        if (u4(0) != 0xCAFEBABE) {
+            throw new UnknownLayout("not a class file");
+        }
+        count = u2(8);
+        tags = new int[count];
+        offsets = new int[count];
+        loads = new int[count];
+        loadedNarrow = new boolean[count];
+        pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = u1(pos);
+            tags[i] = tag;
+            offsets[i] = ++pos;
+            switch (tag) {
+                case UTF8:
+                    pos += 2 + u2(pos);
+                    break;
+                case INTEGER:
+                case FLOAT:
+                    pos += 4;
+                    break;
+                case LONG:
+                case DOUBLE:
+                    pos += 8;
+                    i++;
+                    break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    pos += 2;
+                    break;
+                case METHOD_HANDLE:
+                    pos += 3;
+                    break;
+                case FIELDREF:
+                case METHODREF:
+                case INTERFACE_METHODREF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    pos += 4;
+                    break;
+                default:
+                    throw new UnknownLayout("constant pool tag " + tag);
+            }
+        }
+        poolEnd = pos;
+    }
+
+    /*
+     * pool entries the entry at index refers to
+     */
+    private int[] references(int index) {
+        int at = offsets[index];
+        switch (tags[index]) {
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                return new int[] { u2(at) };
+            case FIELDREF:
+            case METHODREF:
+            case INTERFACE_METHODREF:
+            case NAME_AND_TYPE:
+                return new int[] { u2(at), u2(at + 2) };
+            case METHOD_HANDLE:
+                return new int[] { u2(at + 1) };
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                // the first index is into BootstrapMethods, not the pool
+                return new int[] { u2(at + 2) };
+            default:
+                return new int[0];
+        }
+    }
+
+    private void writeEntry(ByteArrayOutputStream out, int index, int[] renumbered) {
+        int at = offsets[index];
+        int tag = tags[index];
+        out.write(tag);
+        switch (tag) {
+            case UTF8:
+                out.write(bytes, at, 2 + u2(at));
+                break;
+            case INTEGER:
+            case FLOAT:
+                out.write(bytes, at, 4);
+                break;
+            case LONG:
+            case DOUBLE:
+                out.write(bytes, at, 8);
+                break;
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                writeIndex(out, renumbered[u2(at)]);
+                break;
+            case METHOD_HANDLE:
+                out.write(bytes[at]);
+                writeIndex(out, renumbered[u2(at + 1)]);
+                break;
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                out.write(bytes, at, 2);
+                writeIndex(out, renumbered[u2(at + 2)]);
+                break;
+            default:
+                writeIndex(out, renumbered[u2(at)]);
+                writeIndex(out, renumbered[u2(at + 2)]);
+                break;
+        }
+    }
+
+    private static void writeIndex(ByteArrayOutputStream out, int index) {
+        out.write(index >> 8);
+        out.write(index);
+    }
+
+    private void readClass() throws UnknownLayout {
+        pos = poolEnd + 2; // access flags
+        index(); // this_class
+        optionalIndex(); // super_class, none for java.lang.Object
+        indexList(); // interfaces
+        for (int members = 0; members < 2; members++) {
+            int n = u2(pos);
+            pos += 2;
+            for (int i = 0; i < n; i++) {
+                pos += 2; // access flags
+                index(); // name
+                index(); // descriptor
+                attributes();
+            }
+        }
+        attributes();
+        if (pos != bytes.length) {
+            throw new UnknownLayout("trailing bytes");
+        }
+    }
+
+    private void attributes() throws UnknownLayout {
+        int n = u2(pos);
+        pos += 2;
+        for (int i = 0; i < n; i++) {
+            int nameIndex = u2(pos);
+            index();
+            int length = u4(pos);
+            pos += 4;
+            int end = pos + length;
+            attribute(utf8(nameIndex), end);
+            if (pos != end) {
+                throw new UnknownLayout("malformed " + utf8(nameIndex) + " attribute");
+            }
+        }
+    }
+
+    private void attribute(String name, int end) throws UnknownLayout {
+        switch (name) {
+            case "SourceFile":
+            case "Signature":
+            case "ConstantValue":
+            case "NestHost":
+            case "ModuleMainClass":
+                index();
+                break;
+            case "Exceptions":
+            case "NestMembers":
+            case "PermittedSubclasses":
+            case "ModulePackages":
+                indexList();
+                break;
+            case "Synthetic":
+            case "Deprecated":
+                break;
+            case "SourceDebugExtension":
+                // free-form, no indices
+                pos = end;
+                break;
+            case "InnerClasses": {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    index(); // inner class
+                    optionalIndex(); // outer class
+                    optionalIndex(); // simple name
+                    pos += 2;
+                }
+                break;
+            }
+            case "EnclosingMethod":
+                index();
+                optionalIndex();
+                break;
+            case "BootstrapMethods": {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    index();
+                    indexList();
+                }
+                break;
+            }
+            case "MethodParameters": {
+                int n = u1(pos++);
+                for (int i = 0; i < n; i++) {
+                    optionalIndex();
+                    pos += 2;
+                }
+                break;
+            }
+            case "Code":
+                code();
+                break;
+            case "LineNumberTable":
+                pos += 2 + 4 * u2(pos);
+                break;
+            case "LocalVariableTable":
+            case "LocalVariableTypeTable": {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    pos += 4; // start_pc, length
+                    index();
+                    index();
+                    pos += 2; // slot
+                }
+                break;
+            }
+            case "StackMapTable":
+                stackMapTable();
+                break;
+            case "RuntimeVisibleAnnotations":
+            case "RuntimeInvisibleAnnotations":
+                annotations();
+                break;
+            case "RuntimeVisibleParameterAnnotations":
+            case "RuntimeInvisibleParameterAnnotations": {
+                int n = u1(pos++);
+                for (int i = 0; i < n; i++) {
+                    annotations();
+                }
+                break;
+            }
+            case "RuntimeVisibleTypeAnnotations":
+            case "RuntimeInvisibleTypeAnnotations": {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    typeAnnotation();
+                }
+                break;
+            }
+            case "AnnotationDefault":
+                elementValue();
+                break;
+            case "Record": {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    index(); // name
+                    index(); // descriptor
+                    attributes();
+                }
+                break;
+            }
+            case "Module":
+                module();
+                break;
+            default:
+                throw new UnknownLayout("attribute " + name);
+        }
+    }
+
+    private void code() throws UnknownLayout {
+        pos += 4; // max_stack, max_locals
+        int length = u4(pos);
+        pos += 4;
+        int start = pos;
+        int pc = 0;
+        while (pc < length) {
+            int at = start + pc;
+            int op = u1(at);
+            switch (op) {
+                case 0x12: // ldc
+                    addNarrowSite(at + 1);
+                    loads[u1(at + 1)]++;
+                    loadedNarrow[u1(at + 1)] = true;
+                    pc += 2;
+                    break;
+                case 0x13: // ldc_w
+                    addWideSite(at + 1);
+                    loads[u2(at + 1)]++;
+                    pc += 3;
+                    break;
+                case 0xaa: { // tableswitch
+                    int table = at + 1 + (3 - pc % 4);
+                    int low = u4(table + 4);
+                    int high = u4(table + 8);
+                    pc = table - start + 12 + 4 * (high - low + 1);
+                    break;
+                }
+                case 0xab: { // lookupswitch
+                    int table = at + 1 + (3 - pc % 4);
+                    pc = table - start + 8 + 8 * u4(table + 4);
+                    break;
+                }
+                case 0xc4: // wide
+                    pc += u1(at + 1) == 0x84 ? 6 : 4;
+                    break;
+                default:
+                    if (referencesPool(op)) {
+                        addWideSite(at + 1);
+                    }
+                    int size = length(op);
+                    if (size == 0) {
+                        throw new UnknownLayout("opcode " + op);
+                    }
+                    pc += size;
+                    break;
+            }
+        }
+        if (pc != length) {
+            throw new UnknownLayout("instruction past the end of the code");
+        }
+        pos = start + length;
+        int handlers = u2(pos);
+        pos += 2;
+        for (int i = 0; i < handlers; i++) {
+            pos += 6; // start_pc, end_pc, handler_pc
+            optionalIndex(); // catch_type, none for finally
+        }
+        attributes();
+    }
+
+    /*
+     * instructions with a two byte pool index right after the opcode, besides ldc_w
+     */
+    private static boolean referencesPool(int op) {
+        return op == 0x14 // ldc2_w
+                || (op >= 0xb2 && op <= 0xbb) // field access, invoke*, new
+                || op == 0xbd || op == 0xc0 || op == 0xc1 || op == 0xc5; // anewarray, checkcast, instanceof, multianewarray
+    }
+
+    /*
+     * length of an instruction other than the switches and wide, 0 if the opcode is undefined
+     */
+    private static int length(int op) {
+        if (op == 0x10 || op == 0x12 || (op >= 0x15 && op <= 0x19) || (op >= 0x36 && op <= 0x3a)
+                || op == 0xa9 || op == 0xbc) {
+            return 2;
+        }
+        if (op == 0x11 || op == 0x13 || op == 0x14 || op == 0x84 || (op >= 0x99 && op <= 0xa8)
+                || (op >= 0xb2 && op <= 0xb8) || op == 0xbb || op == 0xbd || op == 0xc0 || op == 0xc1
+                || op == 0xc6 || op == 0xc7) {
+            return 3;
+        }
+        if (op == 0xc5) {
+            return 4;
+        }
+        if (op == 0xb9 || op == 0xba || op == 0xc8 || op == 0xc9) {
+            return 5;
+        }
+        return op <= 0xbf || op == 0xc2 || op == 0xc3 || op == 0xca ? 1 : 0;
+    }
+
+    private void stackMapTable() throws UnknownLayout {
+        int n = u2(pos);
+        pos += 2;
+        for (int i = 0; i < n; i++) {
+            int type = u1(pos++);
+            if (type <= 63) {
+                continue;
+            } else if (type <= 127) {
+                verificationType();
+            } else if (type == 247) {
+                pos += 2;
+                verificationType();
+            } else if (type >= 248 && type <= 251) {
+                pos += 2;
+            } else if (type <= 254) {
+                pos += 2;
+                for (int k = 0; k < type - 251; k++) {
+                    verificationType();
+                }
+            } else if (type == 255) {
+                pos += 2;
+                for (int list = 0; list < 2; list++) {
+                    int size = u2(pos);
+                    pos += 2;
+                    for (int k = 0; k < size; k++) {
+                        verificationType();
+                    }
+                }
+            } else {
+                throw new UnknownLayout("stack map frame type " + type);
+            }
+        }
+    }
+
+    private void verificationType() throws UnknownLayout {
+        int tag = u1(pos++);
+        if (tag == StackMapFrames.OBJECT) {
+            index();
+        } else if (tag == StackMapFrames.UNINITIALIZED) {
+            pos += 2; // offset of the NEW instruction
+        } else if (tag > StackMapFrames.UNINITIALIZED) {
+            throw new UnknownLayout("verification type " + tag);
+        }
+    }
+
+    private void annotations() throws UnknownLayout {
+        int n = u2(pos);
+        pos += 2;
+        for (int i = 0; i < n; i++) {
+            annotation();
+        }
+    }
+
+    private void annotation() throws UnknownLayout {
+        index(); // type
+        int pairs = u2(pos);
+        pos += 2;
+        for (int i = 0; i < pairs; i++) {
+            index(); // element name
+            elementValue();
+        }
+    }
+
+    private void elementValue() throws UnknownLayout {
+        char tag = (char) u1(pos++);
+        switch (tag) {
+            case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z': case 's': case 'c':
+                index();
+                break;
+            case 'e':
+                index(); // type
+                index(); // constant name
+                break;
+            case '@':
+                annotation();
+                break;
+            case '[': {
+                int n = u2(pos);
+                pos += 2;
+                for (int i = 0; i < n; i++) {
+                    elementValue();
+                }
+                break;
+            }
+            default:
+                throw new UnknownLayout("element value tag " + tag);
+        }
+    }
+
+    private void typeAnnotation() throws UnknownLayout {
+        int target = u1(pos++);
+        switch (target) {
+            case 0x00: case 0x01: case 0x16:
+                pos += 1;
+                break;
+            case 0x10: case 0x11: case 0x12: case 0x17: case 0x42:
+            case 0x43: case 0x44: case 0x45: case 0x46:
+                pos += 2;
+                break;
+            case 0x13: case 0x14: case 0x15:
+                break;
+            case 0x40: case 0x41:
+                pos += 2 + 6 * u2(pos);
+                break;
+            case 0x47: case 0x48: case 0x49: case 0x4a: case 0x4b:
+                pos += 3;
+                break;
+            default:
+                throw new UnknownLayout("type annotation target " + target);
+        }
+        pos += 1 + 2 * u1(pos); // type_path
+        annotation();
+    }
+
+    private void module() throws UnknownLayout {
+        index(); // name
+        pos += 2; // flags
+        optionalIndex(); // version
+        int requires = u2(pos);
+        pos += 2;
+        for (int i = 0; i < requires; i++) {
+            index();
+            pos += 2;
+            optionalIndex();
+        }
+        for (int list = 0; list < 2; list++) { // exports, then opens
+            int n = u2(pos);
+            pos += 2;
+            for (int i = 0; i < n; i++) {
+                index();
+                pos += 2;
+                indexList();
+            }
+        }
+        indexList(); // uses
+        int provides = u2(pos);
+        pos += 2;
+        for (int i = 0; i < provides; i++) {
+            index();
+            indexList();
+        }
+    }
+
+    private void index() throws UnknownLayout {
+        if (u2(pos) == 0) {
+            throw new UnknownLayout("missing constant pool index");
+        }
+        addWideSite(pos);
+        pos += 2;
+    }
+
+    /*
+     * an index where 0 means none
+     */
+    private void optionalIndex() {
+        if (u2(pos) != 0) {
+            addWideSite(pos);
+        }
+        pos += 2;
+    }
+
+    private void indexList() throws UnknownLayout {
+        int n = u2(pos);
+        pos += 2;
+        for (int i = 0; i < n; i++) {
+            index();
+        }
+    }
+
+    private void addWideSite(int at) {
+        if (wideCount == wideSites.length) {
+            wideSites = Arrays.copyOf(wideSites, wideCount * 2);
+        }
+        wideSites[wideCount++] = at;
+    }
+
+    private void addNarrowSite(int at) {
+        if (narrowCount == narrowSites.length) {
+            narrowSites = Arrays.copyOf(narrowSites, narrowCount * 2);
+        }
+        narrowSites[narrowCount++] = at;
+    }
+
+    private String utf8(int index) throws UnknownLayout {
+        if (index <= 0 || index >= count || tags[index] != UTF8) {
+            throw new UnknownLayout("attribute name is not a Utf8 constant");
+        }
+        int at = offsets[index];
+        return new String(bytes, at + 2, u2(at), StandardCharsets.UTF_8);
+    }
+
+    private int u1(int at) {
+        return bytes[at] & 0xff;
+    }
+
+    private int u2(int at) {
+        return ((bytes[at] & 0xff) << 8) | (bytes[at + 1] & 0xff);
+    }
+
+    private int u4(int at) {
+        return ((bytes[at] & 0xff) << 24) | ((bytes[at + 1] & 0xff) << 16) | ((bytes[at + 2] & 0xff) << 8)
+                | (bytes[at + 3] & 0xff);
+    }
+}
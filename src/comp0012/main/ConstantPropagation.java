@@ -0,0 +1,500 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+import comp0012.main.ControlFlowGraph.BasicBlock;
+
+/**
+ * Forward dataflow analysis over a {@link ControlFlowGraph} recording, for every local slot and
+ * operand stack word before each reachable instruction, whether it holds the same int, long,
+ * float or double constant on every path leading there. States are merged at join points and
+ * the worklist runs until no block entry state changes, so loops are handled soundly.
+ */
+public class ConstantPropagation {
+
+    // lattice: null means no path has reached the slot yet, then a boxed constant, then NOT_CONSTANT
+    static final Object NOT_CONSTANT = new Object() {
+        @Override
+        public String toString() {
+            return "?";
+        }
+    };
+    // the second word of a long or double
+    static final Object HIGH_WORD = new Object() {
+        @Override
+        public String toString() {
+            return "^";
+        }
+    };
+
+    /**
+     * Abstract locals and operand stack at one program point, one entry per word.
+     */
+    static final class State {
+        final Object[] locals;
+        final Object[] stack;
+        int sp;
+
+        State(int maxLocals, int maxStack) {
+            locals = new Object[maxLocals];
+            stack = new Object[maxStack];
+        }
+
+        State(State other) {
+            locals = other.locals.clone();
+            stack = other.stack.clone();
+            sp = other.sp;
+        }
+
+        Object local(int slot) {
+            return slot < locals.length ? locals[slot] : null;
+        }
+
+        /*
+         * the word depth words below the top of the stack
+         */
+        Object peek(int depth) {
+            return stack[sp - 1 - depth];
+        }
+
+        /*
+         * the value on top of the stack, read according to the size of its type
+         */
+        Object top(Type type) {
+            return peek(type.getSize() - 1);
+        }
+
+        void push(Object word) {
+            stack[sp++] = word;
+        }
+
+        void push(Type type, Object value) {
+            push(value);
+            if (type.getSize() == 2) {
+                push(HIGH_WORD);
+            }
+        }
+
+        Object pop() {
+            return stack[--sp];
+        }
+
+        Object pop(Type type) {
+            if (type.getSize() == 2) {
+                sp--;
+            }
+            return pop();
+        }
+
+        void store(int slot, Type type, Object value) {
+            // overwriting either half of a long or double destroys it
+            if (slot > 0 && locals[slot - 1] != null && locals[slot] == HIGH_WORD) {
+                locals[slot - 1] = NOT_CONSTANT;
+            }
+            if (type.getSize() == 2) {
+                if (slot + 2 < locals.length && locals[slot + 2] == HIGH_WORD) {
+                    locals[slot + 2] = NOT_CONSTANT;
+                }
+                locals[slot + 1] = HIGH_WORD;
+            } else if (slot + 1 < locals.length && locals[slot + 1] == HIGH_WORD) {
+                locals[slot + 1] = NOT_CONSTANT;
+            }
+            locals[slot] = value;
+        }
+
+        /*
+         * merge other into this state, returning true if anything changed
+         */
+        boolean merge(State other, boolean withStack) {
+            boolean changed = mergeWords(locals, other.locals, locals.length);
+            if (withStack) {
+                changed |= mergeWords(stack, other.stack, sp);
+            }
+            return changed;
+        }
+
+        private static boolean mergeWords(Object[] into, Object[] from, int length) {
+            boolean changed = false;
+            for (int i = 0; i < length; i++) {
+                Object merged = meet(into[i], from[i]);
+                if (merged != into[i]) {
+                    into[i] = merged;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return "locals=" + Arrays.toString(locals) + " stack=" + Arrays.toString(Arrays.copyOf(stack, sp));
+        }
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null || a == NOT_CONSTANT || a.equals(b)) {
+            return a;
+        }
+        return NOT_CONSTANT;
+    }
+
+    static boolean isConstant(Object word) {
+        return word instanceof Number;
+    }
+
+    private final ControlFlowGraph cfg;
+    private final ConstantPoolGen cpgen;
+    private final Map<BasicBlock, State> entry = new HashMap<>();
+    private final Map<InstructionHandle, State> before = new HashMap<>();
+
+    public ConstantPropagation(MethodGen mg, ControlFlowGraph cfg, ConstantPoolGen cpgen) {
+        this.cfg = cfg;
+        this.cpgen = cpgen;
+        mg.setMaxLocals();
+        mg.setMaxStack();
+        solve(initialState(mg));
+    }
+
+    private static State initialState(MethodGen mg) {
+        // one spare local keeps the wide-store bookkeeping in bounds
+        State state = new State(mg.getMaxLocals() + 1, mg.getMaxStack() + 1);
+        int slot = 0;
+        if (!mg.isStatic()) {
+            state.locals[slot++] = NOT_CONSTANT;
+        }
+        for (Type arg : mg.getArgumentTypes()) {
+            state.store(slot, arg, NOT_CONSTANT);
+            slot += arg.getSize();
+        }
+        return state;
+    }
+
+    private void solve(State initial) {
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        entry.put(cfg.getEntry(), initial);
+        work.add(cfg.getEntry());
+        while (!work.isEmpty()) {
+            BasicBlock block = work.poll();
+            State state = new State(entry.get(block));
+            for (InstructionHandle ih : block.getInstructions()) {
+                for (BasicBlock handler : block.getHandlers()) {
+                    // whatever the locals hold when an instruction throws reaches the handler
+                    State caught = new State(state);
+                    caught.sp = 0;
+                    caught.push(NOT_CONSTANT);
+                    if (flow(handler, caught)) {
+                        work.add(handler);
+                    }
+                }
+                execute(ih.getInstruction(), state);
+            }
+            for (BasicBlock successor : block.getSuccessors()) {
+                if (flow(successor, state)) {
+                    work.add(successor);
+                }
+            }
+        }
+        for (Map.Entry<BasicBlock, State> e : entry.entrySet()) {
+            State state = new State(e.getValue());
+            for (InstructionHandle ih : e.getKey().getInstructions()) {
+                before.put(ih, new State(state));
+                execute(ih.getInstruction(), state);
+            }
+        }
+    }
+
+    private boolean flow(BasicBlock to, State state) {
+        State current = entry.get(to);
+        if (current == null) {
+            entry.put(to, new State(state));
+            return true;
+        }
+        return current.merge(state, true);
+    }
+
+    public boolean isReachable(BasicBlock block) {
+        return entry.containsKey(block);
+    }
+
+    /*
+     * the state before ih, or null if ih is unreachable
+     */
+    State before(InstructionHandle ih) {
+        return before.get(ih);
+    }
+
+    /*
+     * the state after ih falls through, or null if ih is unreachable
+     */
+    State after(InstructionHandle ih) {
+        State state = before.get(ih);
+        if (state == null) {
+            return null;
+        }
+        state = new State(state);
+        execute(ih.getInstruction(), state);
+        return state;
+    }
+
+    /*
+     * the abstract effect of one instruction; anything not modelled precisely consumes its
+     * operands and pushes unknown words
+     */
+    void execute(Instruction inst, State state) {
+        short op = inst.getOpcode();
+        if (inst instanceof ConstantPushInstruction) {
+            ConstantPushInstruction push = (ConstantPushInstruction) inst;
+            state.push(push.getType(cpgen), push.getValue());
+        } else if (inst instanceof LDC) {
+            Object value = ((LDC) inst).getValue(cpgen);
+            state.push(value instanceof Number ? value : NOT_CONSTANT);
+        } else if (inst instanceof LDC2_W) {
+            state.push(Type.LONG, ((LDC2_W) inst).getValue(cpgen));
+        } else if (inst instanceof LoadInstruction) {
+            LoadInstruction load = (LoadInstruction) inst;
+            Type type = load.getType(cpgen);
+            state.push(type, type instanceof BasicType ? known(state.local(load.getIndex())) : NOT_CONSTANT);
+        } else if (inst instanceof StoreInstruction) {
+            StoreInstruction store = (StoreInstruction) inst;
+            Type type = store.getType(cpgen);
+            state.store(store.getIndex(), type, state.pop(type));
+        } else if (inst instanceof IINC) {
+            IINC iinc = (IINC) inst;
+            Object value = state.local(iinc.getIndex());
+            state.store(iinc.getIndex(), Type.INT,
+                    value instanceof Integer ? (Object) ((Integer) value + iinc.getIncrement()) : NOT_CONSTANT);
+        } else if (inst instanceof ArithmeticInstruction) {
+            Type type = ((ArithmeticInstruction) inst).getType(cpgen);
+            boolean unary = op == Constants.INEG || op == Constants.LNEG || op == Constants.FNEG || op == Constants.DNEG;
+            boolean longShift = op == Constants.LSHL || op == Constants.LSHR || op == Constants.LUSHR;
+            Object b = unary ? null : longShift ? state.pop() : state.pop(type);
+            Object a = state.pop(type);
+            state.push(type, evaluate(op, a, b));
+        } else if (inst instanceof ConversionInstruction) {
+            Object a = state.pop(operandType(op));
+            state.push(((ConversionInstruction) inst).getType(cpgen), evaluate(op, a, null));
+        } else if (op == Constants.LCMP || op == Constants.FCMPL || op == Constants.FCMPG
+                || op == Constants.DCMPL || op == Constants.DCMPG) {
+            Type type = ((TypedInstruction) inst).getType(cpgen);
+            Object b = state.pop(type);
+            Object a = state.pop(type);
+            state.push(evaluate(op, a, b));
+        } else if (inst instanceof StackInstruction) {
+            shuffle(op, state);
+        } else {
+            for (int i = inst.consumeStack(cpgen); i > 0; i--) {
+                state.pop();
+            }
+            for (int i = inst.produceStack(cpgen); i > 0; i--) {
+                state.push(NOT_CONSTANT);
+            }
+        }
+    }
+
+    private static Object known(Object word) {
+        return word == null ? NOT_CONSTANT : word;
+    }
+
+    static Type operandType(short op) {
+        switch (op) {
+            case Constants.L2I: case Constants.L2F: case Constants.L2D:
+                return Type.LONG;
+            case Constants.F2I: case Constants.F2L: case Constants.F2D:
+                return Type.FLOAT;
+            case Constants.D2I: case Constants.D2L: case Constants.D2F:
+                return Type.DOUBLE;
+            default:
+                return Type.INT;
+        }
+    }
+
+    /*
+     * POP, DUP and friends move words around without looking at them
+     */
+    private static void shuffle(short op, State s) {
+        Object w1, w2, w3, w4;
+        switch (op) {
+            case Constants.POP:
+                s.pop();
+                break;
+            case Constants.POP2:
+                s.pop();
+                s.pop();
+                break;
+            case Constants.DUP:
+                s.push(s.peek(0));
+                break;
+            case Constants.DUP_X1:
+                w1 = s.pop(); w2 = s.pop();
+                s.push(w1); s.push(w2); s.push(w1);
+                break;
+            case Constants.DUP_X2:
+                w1 = s.pop(); w2 = s.pop(); w3 = s.pop();
+                s.push(w1); s.push(w3); s.push(w2); s.push(w1);
+                break;
+            case Constants.DUP2:
+                w1 = s.pop(); w2 = s.pop();
+                s.push(w2); s.push(w1); s.push(w2); s.push(w1);
+                break;
+            case Constants.DUP2_X1:
+                w1 = s.pop(); w2 = s.pop(); w3 = s.pop();
+                s.push(w2); s.push(w1); s.push(w3); s.push(w2); s.push(w1);
+                break;
+            case Constants.DUP2_X2:
+                w1 = s.pop(); w2 = s.pop(); w3 = s.pop(); w4 = s.pop();
+                s.push(w2); s.push(w1); s.push(w4); s.push(w3); s.push(w2); s.push(w1);
+                break;
+            case Constants.SWAP:
+                w1 = s.pop(); w2 = s.pop();
+                s.push(w1); s.push(w2);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected stack instruction " + Constants.OPCODE_NAMES[op]);
+        }
+    }
+
+    /*
+     * fold one arithmetic, conversion or comparison opcode over constant operands; b is null for
+     * unary opcodes. Anything that would throw at run time is left unknown.
+     */
+    static Object evaluate(short op, Object a, Object b) {
+        if (!isConstant(a) || (b != null && !isConstant(b))) {
+            return NOT_CONSTANT;
+        }
+        Number x = (Number) a;
+        Number y = (Number) b;
+        switch (op) {
+            case Constants.IADD: return x.intValue() + y.intValue();
+            case Constants.ISUB: return x.intValue() - y.intValue();
+            case Constants.IMUL: return x.intValue() * y.intValue();
+            case Constants.IDIV: return y.intValue() == 0 ? NOT_CONSTANT : (Object) (x.intValue() / y.intValue());
+            case Constants.IREM: return y.intValue() == 0 ? NOT_CONSTANT : (Object) (x.intValue() % y.intValue());
+            case Constants.INEG: return -x.intValue();
+            case Constants.ISHL: return x.intValue() << y.intValue();
+            case Constants.ISHR: return x.intValue() >> y.intValue();
+            case Constants.IUSHR: return x.intValue() >>> y.intValue();
+            case Constants.IAND: return x.intValue() & y.intValue();
+            case Constants.IOR: return x.intValue() | y.intValue();
+            case Constants.IXOR: return x.intValue() ^ y.intValue();
+
+            case Constants.LADD: return x.longValue() + y.longValue();
+            case Constants.LSUB: return x.longValue() - y.longValue();
+            case Constants.LMUL: return x.longValue() * y.longValue();
+            case Constants.LDIV: return y.longValue() == 0 ? NOT_CONSTANT : (Object) (x.longValue() / y.longValue());
+            case Constants.LREM: return y.longValue() == 0 ? NOT_CONSTANT : (Object) (x.longValue() % y.longValue());
+            case Constants.LNEG: return -x.longValue();
+            case Constants.LSHL: return x.longValue() << y.intValue();
+            case Constants.LSHR: return x.longValue() >> y.intValue();
+            case Constants.LUSHR: return x.longValue() >>> y.intValue();
+            case Constants.LAND: return x.longValue() & y.longValue();
+            case Constants.LOR: return x.longValue() | y.longValue();
+            case Constants.LXOR: return x.longValue() ^ y.longValue();
+
+            case Constants.FADD: return x.floatValue() + y.floatValue();
+            case Constants.FSUB: return x.floatValue() - y.floatValue();
+            case Constants.FMUL: return x.floatValue() * y.floatValue();
+            case Constants.FDIV: return x.floatValue() / y.floatValue();
+            case Constants.FREM: return x.floatValue() % y.floatValue();
+            case Constants.FNEG: return -x.floatValue();
+
+            case Constants.DADD: return x.doubleValue() + y.doubleValue();
+            case Constants.DSUB: return x.doubleValue() - y.doubleValue();
+            case Constants.DMUL: return x.doubleValue() * y.doubleValue();
+            case Constants.DDIV: return x.doubleValue() / y.doubleValue();
+            case Constants.DREM: return x.doubleValue() % y.doubleValue();
+            case Constants.DNEG: return -x.doubleValue();
+
+            case Constants.I2L: return (long) x.intValue();
+            case Constants.I2F: return (float) x.intValue();
+            case Constants.I2D: return (double) x.intValue();
+            case Constants.I2B: return (int) (byte) x.intValue();
+            case Constants.I2C: return (int) (char) x.intValue();
+            case Constants.I2S: return (int) (short) x.intValue();
+            case Constants.L2I: return (int) x.longValue();
+            case Constants.L2F: return (float) x.longValue();
+            case Constants.L2D: return (double) x.longValue();
+            case Constants.F2I: return (int) x.floatValue();
+            case Constants.F2L: return (long) x.floatValue();
+            case Constants.F2D: return (double) x.floatValue();
+            case Constants.D2I: return (int) x.doubleValue();
+            case Constants.D2L: return (long) x.doubleValue();
+            case Constants.D2F: return (float) x.doubleValue();
+
+            case Constants.LCMP: return Long.compare(x.longValue(), y.longValue());
+            case Constants.FCMPL: case Constants.FCMPG: {
+                float f = x.floatValue(), g = y.floatValue();
+                if (Float.isNaN(f) || Float.isNaN(g))
+                    return op == Constants.FCMPG ? 1 : -1;
+                return f > g ? 1 : f == g ? 0 : -1;
+            }
+            case Constants.DCMPL: case Constants.DCMPG: {
+                double d = x.doubleValue(), e = y.doubleValue();
+                if (Double.isNaN(d) || Double.isNaN(e))
+                    return op == Constants.DCMPG ? 1 : -1;
+                return d > e ? 1 : d == e ? 0 : -1;
+            }
+            default:
+                return NOT_CONSTANT;
+        }
+    }
+
+    /*
+     * outcome of an int conditional branch over constant operands, or null if not decidable;
+     * b is null for the single-operand IFxx forms
+     */
+    static Boolean branchTaken(short op, Object a, Object b) {
+        if (!(a instanceof Integer) || (b != null && !(b instanceof Integer))) {
+            return null;
+        }
+        int x = (Integer) a;
+        int y = b == null ? 0 : (Integer) b;
+        switch (op) {
+            case Constants.IFEQ: case Constants.IF_ICMPEQ: return x == y;
+            case Constants.IFNE: case Constants.IF_ICMPNE: return x != y;
+            case Constants.IFLT: case Constants.IF_ICMPLT: return x < y;
+            case Constants.IFGE: case Constants.IF_ICMPGE: return x >= y;
+            case Constants.IFGT: case Constants.IF_ICMPGT: return x > y;
+            case Constants.IFLE: case Constants.IF_ICMPLE: return x <= y;
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * the shortest instruction pushing an int, long, float or double constant
+     */
+    static Instruction push(Object value, ConstantPoolGen cpgen) {
+        if (value instanceof Integer) {
+            int i = (Integer) value;
+            if (i >= -1 && i <= 5)
+                return new ICONST(i);
+            if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE)
+                return new BIPUSH((byte) i);
+            if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE)
+                return new SIPUSH((short) i);
+            return new LDC(cpgen.addInteger(i));
+        }
+        if (value instanceof Long) {
+            long l = (Long) value;
+            return l == 0 || l == 1 ? new LCONST(l) : new LDC2_W(cpgen.addLong(l));
+        }
+        if (value instanceof Float) {
+            float f = (Float) value;
+            // FCONST only covers +0.0, 1.0 and 2.0; -0.0 needs the pool
+            boolean small = (f == 0 && Float.floatToRawIntBits(f) == 0) || f == 1 || f == 2;
+            return small ? new FCONST(f) : new LDC(cpgen.addFloat(f));
+        }
+        double d = (Double) value;
+        boolean small = (d == 0 && Double.doubleToRawLongBits(d) == 0) || d == 1;
+        return small ? new DCONST(d) : new LDC2_W(cpgen.addDouble(d));
+    }
+}
@@ -0,0 +1,313 @@
+package comp0012.main;
+
+import java.util.Arrays;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Task 2: evaluates a method whose result only depends on constants assigned to its locals
+ * and replaces the whole body with a load of the result and a return.
+ */
+public class ConstantVariableFoldingPass implements OptimizationPass {
+
+    static final String NAME = "constant";
+
+    // give up on methods that loop for longer than this while being evaluated
+    static final int MAX_STEPS = 100000;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /*
+     * main method implementing task 2 as defined on the handout
+     */
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionList il = ir.getInstructionList();
+
+        InstructionList optimizedIl = simulateInstructionList(ir.getMethodGen(), cpgen);
+        if (optimizedIl == null) {
+            ir.getMetrics().current().stoppedEvaluations(1);
+            return false;
+        }
+
+        // already reduced to the same constant return on an earlier run
+        if (Arrays.equals(optimizedIl.getByteCode(), il.getByteCode()))
+            return false;
+
+        ir.setInstructionList(optimizedIl);
+        ir.getMetrics().current().foldedConstants(1);
+        return true;
+    }
+
+    /*
+     * task 2 helper method: run the method from its first instruction, following jumps, and
+     * return a body pushing the returned constant, or null if the result depends on anything
+     * but constants or the method has effects other than computing it
+     */
+    InstructionList simulateInstructionList(MethodGen mg, ConstantPoolGen cpgen) {
+        InstructionList il = mg.getInstructionList();
+        mg.setMaxLocals();
+        mg.setMaxStack();
+        EvaluationFrame frame = EvaluationFrame.acquire(mg.getMaxLocals(), mg.getMaxStack());
+
+        Type type = mg.getReturnType();
+        Object result = evaluate(il.getStart(), type, frame, cpgen);
+        if (result == null) {
+            return null;
+        }
+
+        InstructionList newIl = new InstructionList();
+        newIl.append(ConstantPropagation.push(result, cpgen));
+        newIl.append(InstructionFactory.createReturn(type));
+        newIl.setPositions();  // Ensure instruction positions are computed.
+        return newIl;
+    }
+
+    /*
+     * run code from start on a frame already holding whatever locals are known, returning the
+     * constant it returns as the given type, or null if it cannot be evaluated
+     */
+    static Object evaluate(InstructionHandle start, Type type, EvaluationFrame frame, ConstantPoolGen cpgen) {
+        InstructionHandle ih = start;
+        for (int steps = 0; !(ih.getInstruction() instanceof ReturnInstruction); steps++) {
+            if (steps == MAX_STEPS) {
+                return null;
+            }
+            InstructionHandle next = step(ih, frame, cpgen);
+            if (next == null) {
+                return null;
+            }
+            ih = next;
+        }
+
+        // the returned value must have the type the method returns; ireturn narrows it to
+        // a boolean, byte, char or short return type as the JVM does
+        byte tag = frame.topTag();
+        if (tag == EvaluationFrame.INT && ih.getInstruction() instanceof IRETURN) {
+            int i = frame.popInt();
+            return type == Type.BOOLEAN ? i & 1 : type == Type.BYTE ? (byte) i : type == Type.CHAR ? (char) i
+                    : type == Type.SHORT ? (short) i : i;
+        } else if (tag == EvaluationFrame.LONG && type == Type.LONG) {
+            return frame.popLong();
+        } else if (tag == EvaluationFrame.FLOAT && type == Type.FLOAT) {
+            return frame.popFloat();
+        } else if (tag == EvaluationFrame.DOUBLE && type == Type.DOUBLE) {
+            return frame.popDouble();
+        }
+        // void methods and anything returning a reference
+        return null;
+    }
+
+    /*
+     * task 2 helper method: execute one instruction on the frame, dispatching on its opcode, and
+     * return the instruction to run next, or null if it cannot be evaluated: it reads a value
+     * that is not known, touches references, calls out or would throw. Every value on the stack
+     * is known, since loading an unknown one stops the evaluation.
+     */
+    private static InstructionHandle step(InstructionHandle ih, EvaluationFrame frame, ConstantPoolGen cpgen) {
+        Instruction inst = ih.getInstruction();
+        int i;
+        long l;
+        float f;
+        double d;
+        switch (inst.getOpcode()) {
+            case Constants.NOP:
+                break;
+
+            // constants
+            case Constants.ICONST_M1: case Constants.ICONST_0: case Constants.ICONST_1: case Constants.ICONST_2:
+            case Constants.ICONST_3: case Constants.ICONST_4: case Constants.ICONST_5:
+            case Constants.BIPUSH: case Constants.SIPUSH:
+                frame.pushInt(((ConstantPushInstruction) inst).getValue().intValue());
+                break;
+            case Constants.LCONST_0: case Constants.LCONST_1:
+                frame.pushLong(((LCONST) inst).getValue().longValue());
+                break;
+            case Constants.FCONST_0: case Constants.FCONST_1: case Constants.FCONST_2:
+                frame.pushFloat(((FCONST) inst).getValue().floatValue());
+                break;
+            case Constants.DCONST_0: case Constants.DCONST_1:
+                frame.pushDouble(((DCONST) inst).getValue().doubleValue());
+                break;
+            case Constants.LDC: case Constants.LDC_W: {
+                // strings and class literals are not folded
+                Object value = ((LDC) inst).getValue(cpgen);
+                if (value instanceof Integer) {
+                    frame.pushInt((Integer) value);
+                } else if (value instanceof Float) {
+                    frame.pushFloat((Float) value);
+                } else {
+                    return null;
+                }
+                break;
+            }
+            case Constants.LDC2_W: {
+                Object value = ((LDC2_W) inst).getValue(cpgen);
+                if (value instanceof Long) {
+                    frame.pushLong((Long) value);
+                } else {
+                    frame.pushDouble((Double) value);
+                }
+                break;
+            }
+
+            // locals; parameters and other locals never stored in this method have no known value
+            case Constants.ILOAD: case Constants.ILOAD_0: case Constants.ILOAD_1: case Constants.ILOAD_2: case Constants.ILOAD_3:
+                return frame.load(((LoadInstruction) inst).getIndex(), EvaluationFrame.INT) ? ih.getNext() : null;
+            case Constants.LLOAD: case Constants.LLOAD_0: case Constants.LLOAD_1: case Constants.LLOAD_2: case Constants.LLOAD_3:
+                return frame.load(((LoadInstruction) inst).getIndex(), EvaluationFrame.LONG) ? ih.getNext() : null;
+            case Constants.FLOAD: case Constants.FLOAD_0: case Constants.FLOAD_1: case Constants.FLOAD_2: case Constants.FLOAD_3:
+                return frame.load(((LoadInstruction) inst).getIndex(), EvaluationFrame.FLOAT) ? ih.getNext() : null;
+            case Constants.DLOAD: case Constants.DLOAD_0: case Constants.DLOAD_1: case Constants.DLOAD_2: case Constants.DLOAD_3:
+                return frame.load(((LoadInstruction) inst).getIndex(), EvaluationFrame.DOUBLE) ? ih.getNext() : null;
+            case Constants.ISTORE: case Constants.ISTORE_0: case Constants.ISTORE_1: case Constants.ISTORE_2: case Constants.ISTORE_3:
+            case Constants.LSTORE: case Constants.LSTORE_0: case Constants.LSTORE_1: case Constants.LSTORE_2: case Constants.LSTORE_3:
+            case Constants.FSTORE: case Constants.FSTORE_0: case Constants.FSTORE_1: case Constants.FSTORE_2: case Constants.FSTORE_3:
+            case Constants.DSTORE: case Constants.DSTORE_0: case Constants.DSTORE_1: case Constants.DSTORE_2: case Constants.DSTORE_3:
+                frame.store(((StoreInstruction) inst).getIndex());
+                break;
+            case Constants.IINC:
+                return frame.increment(((IINC) inst).getIndex(), ((IINC) inst).getIncrement()) ? ih.getNext() : null;
+
+            // stack
+            case Constants.POP: frame.pop(1); break;
+            case Constants.POP2: frame.pop(2); break;
+            case Constants.DUP: frame.dup(1, 0); break;
+            case Constants.DUP_X1: frame.dup(1, 1); break;
+            case Constants.DUP_X2: frame.dup(1, 2); break;
+            case Constants.DUP2: frame.dup(2, 0); break;
+            case Constants.DUP2_X1: frame.dup(2, 1); break;
+            case Constants.DUP2_X2: frame.dup(2, 2); break;
+            case Constants.SWAP: frame.swap(); break;
+
+            // ints; division by zero would throw, which is not a constant result
+            case Constants.IADD: i = frame.popInt(); frame.pushInt(frame.popInt() + i); break;
+            case Constants.ISUB: i = frame.popInt(); frame.pushInt(frame.popInt() - i); break;
+            case Constants.IMUL: i = frame.popInt(); frame.pushInt(frame.popInt() * i); break;
+            case Constants.IDIV:
+                if ((i = frame.popInt()) == 0)
+                    return null;
+                frame.pushInt(frame.popInt() / i);
+                break;
+            case Constants.IREM:
+                if ((i = frame.popInt()) == 0)
+                    return null;
+                frame.pushInt(frame.popInt() % i);
+                break;
+            case Constants.INEG: frame.pushInt(-frame.popInt()); break;
+            case Constants.ISHL: i = frame.popInt(); frame.pushInt(frame.popInt() << i); break;
+            case Constants.ISHR: i = frame.popInt(); frame.pushInt(frame.popInt() >> i); break;
+            case Constants.IUSHR: i = frame.popInt(); frame.pushInt(frame.popInt() >>> i); break;
+            case Constants.IAND: i = frame.popInt(); frame.pushInt(frame.popInt() & i); break;
+            case Constants.IOR: i = frame.popInt(); frame.pushInt(frame.popInt() | i); break;
+            case Constants.IXOR: i = frame.popInt(); frame.pushInt(frame.popInt() ^ i); break;
+
+            // longs; shift distances are ints
+            case Constants.LADD: l = frame.popLong(); frame.pushLong(frame.popLong() + l); break;
+            case Constants.LSUB: l = frame.popLong(); frame.pushLong(frame.popLong() - l); break;
+            case Constants.LMUL: l = frame.popLong(); frame.pushLong(frame.popLong() * l); break;
+            case Constants.LDIV:
+                if ((l = frame.popLong()) == 0)
+                    return null;
+                frame.pushLong(frame.popLong() / l);
+                break;
+            case Constants.LREM:
+                if ((l = frame.popLong()) == 0)
+                    return null;
+                frame.pushLong(frame.popLong() % l);
+                break;
+            case Constants.LNEG: frame.pushLong(-frame.popLong()); break;
+            case Constants.LSHL: i = frame.popInt(); frame.pushLong(frame.popLong() << i); break;
+            case Constants.LSHR: i = frame.popInt(); frame.pushLong(frame.popLong() >> i); break;
+            case Constants.LUSHR: i = frame.popInt(); frame.pushLong(frame.popLong() >>> i); break;
+            case Constants.LAND: l = frame.popLong(); frame.pushLong(frame.popLong() & l); break;
+            case Constants.LOR: l = frame.popLong(); frame.pushLong(frame.popLong() | l); break;
+            case Constants.LXOR: l = frame.popLong(); frame.pushLong(frame.popLong() ^ l); break;
+
+            // floats and doubles
+            case Constants.FADD: f = frame.popFloat(); frame.pushFloat(frame.popFloat() + f); break;
+            case Constants.FSUB: f = frame.popFloat(); frame.pushFloat(frame.popFloat() - f); break;
+            case Constants.FMUL: f = frame.popFloat(); frame.pushFloat(frame.popFloat() * f); break;
+            case Constants.FDIV: f = frame.popFloat(); frame.pushFloat(frame.popFloat() / f); break;
+            case Constants.FREM: f = frame.popFloat(); frame.pushFloat(frame.popFloat() % f); break;
+            case Constants.FNEG: frame.pushFloat(-frame.popFloat()); break;
+            case Constants.DADD: d = frame.popDouble(); frame.pushDouble(frame.popDouble() + d); break;
+            case Constants.DSUB: d = frame.popDouble(); frame.pushDouble(frame.popDouble() - d); break;
+            case Constants.DMUL: d = frame.popDouble(); frame.pushDouble(frame.popDouble() * d); break;
+            case Constants.DDIV: d = frame.popDouble(); frame.pushDouble(frame.popDouble() / d); break;
+            case Constants.DREM: d = frame.popDouble(); frame.pushDouble(frame.popDouble() % d); break;
+            case Constants.DNEG: frame.pushDouble(-frame.popDouble()); break;
+
+            // conversions
+            case Constants.I2L: frame.pushLong(frame.popInt()); break;
+            case Constants.I2F: frame.pushFloat(frame.popInt()); break;
+            case Constants.I2D: frame.pushDouble(frame.popInt()); break;
+            case Constants.I2B: frame.pushInt((byte) frame.popInt()); break;
+            case Constants.I2C: frame.pushInt((char) frame.popInt()); break;
+            case Constants.I2S: frame.pushInt((short) frame.popInt()); break;
+            case Constants.L2I: frame.pushInt((int) frame.popLong()); break;
+            case Constants.L2F: frame.pushFloat(frame.popLong()); break;
+            case Constants.L2D: frame.pushDouble(frame.popLong()); break;
+            case Constants.F2I: frame.pushInt((int) frame.popFloat()); break;
+            case Constants.F2L: frame.pushLong((long) frame.popFloat()); break;
+            case Constants.F2D: frame.pushDouble(frame.popFloat()); break;
+            case Constants.D2I: frame.pushInt((int) frame.popDouble()); break;
+            case Constants.D2L: frame.pushLong((long) frame.popDouble()); break;
+            case Constants.D2F: frame.pushFloat((float) frame.popDouble()); break;
+
+            // comparisons; FCMPG and DCMPG differ from the L forms only on NaN
+            case Constants.LCMP: l = frame.popLong(); frame.pushInt(Long.compare(frame.popLong(), l)); break;
+            case Constants.FCMPL: case Constants.FCMPG: {
+                float b = frame.popFloat();
+                float a = frame.popFloat();
+                frame.pushInt(a > b ? 1 : a == b ? 0 : a < b ? -1 : inst.getOpcode() == Constants.FCMPG ? 1 : -1);
+                break;
+            }
+            case Constants.DCMPL: case Constants.DCMPG: {
+                double b = frame.popDouble();
+                double a = frame.popDouble();
+                frame.pushInt(a > b ? 1 : a == b ? 0 : a < b ? -1 : inst.getOpcode() == Constants.DCMPG ? 1 : -1);
+                break;
+            }
+
+            // control flow
+            case Constants.IFEQ: return frame.popInt() == 0 ? target(inst) : ih.getNext();
+            case Constants.IFNE: return frame.popInt() != 0 ? target(inst) : ih.getNext();
+            case Constants.IFLT: return frame.popInt() < 0 ? target(inst) : ih.getNext();
+            case Constants.IFGE: return frame.popInt() >= 0 ? target(inst) : ih.getNext();
+            case Constants.IFGT: return frame.popInt() > 0 ? target(inst) : ih.getNext();
+            case Constants.IFLE: return frame.popInt() <= 0 ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPEQ: i = frame.popInt(); return frame.popInt() == i ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPNE: i = frame.popInt(); return frame.popInt() != i ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPLT: i = frame.popInt(); return frame.popInt() < i ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPGE: i = frame.popInt(); return frame.popInt() >= i ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPGT: i = frame.popInt(); return frame.popInt() > i ? target(inst) : ih.getNext();
+            case Constants.IF_ICMPLE: i = frame.popInt(); return frame.popInt() <= i ? target(inst) : ih.getNext();
+            case Constants.GOTO: case Constants.GOTO_W:
+                return target(inst);
+            case Constants.TABLESWITCH: case Constants.LOOKUPSWITCH: {
+                Select select = (Select) inst;
+                int key = frame.popInt();
+                int[] matches = select.getMatchs();
+                for (int k = 0; k < matches.length; k++) {
+                    if (matches[k] == key)
+                        return select.getTargets()[k];
+                }
+                return select.getTarget();
+            }
+
+            default:
+                // references, fields, calls, throws and subroutines
+                return null;
+        }
+        return ih.getNext();
+    }
+
+    private static InstructionHandle target(Instruction inst) {
+        return ((BranchInstruction) inst).getTarget();
+    }
+}
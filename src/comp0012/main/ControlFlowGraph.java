@@ -0,0 +1,234 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Basic-block control flow graph of one method. Blocks are split at branch targets, after
+ * every transfer of control and at the boundaries of exception handler ranges, so a block is
+ * either entirely inside or entirely outside each protected range.
+ */
+public class ControlFlowGraph {
+
+    public static class BasicBlock {
+        final int index;
+        final InstructionHandle start;
+        InstructionHandle end;
+        final List<BasicBlock> successors = new ArrayList<>();
+        final List<BasicBlock> predecessors = new ArrayList<>();
+        // handler blocks reached when an instruction of this block throws
+        final List<BasicBlock> handlers = new ArrayList<>();
+
+        BasicBlock(int index, InstructionHandle start) {
+            this.index = index;
+            this.start = start;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public InstructionHandle getStart() {
+            return start;
+        }
+
+        public InstructionHandle getEnd() {
+            return end;
+        }
+
+        public List<BasicBlock> getSuccessors() {
+            return successors;
+        }
+
+        public List<BasicBlock> getPredecessors() {
+            return predecessors;
+        }
+
+        public List<BasicBlock> getHandlers() {
+            return handlers;
+        }
+
+        /*
+         * normal successors followed by exception handlers
+         */
+        public List<BasicBlock> getAllSuccessors() {
+            List<BasicBlock> all = new ArrayList<>(successors);
+            all.addAll(handlers);
+            return all;
+        }
+
+        public List<InstructionHandle> getInstructions() {
+            List<InstructionHandle> list = new ArrayList<>();
+            for (InstructionHandle ih = start; ; ih = ih.getNext()) {
+                list.add(ih);
+                if (ih == end)
+                    break;
+            }
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return "B" + index + "[" + start.getPosition() + ".." + end.getPosition() + "]";
+        }
+    }
+
+    private final List<BasicBlock> blocks = new ArrayList<>();
+    private final Map<InstructionHandle, BasicBlock> blockOf = new HashMap<>();
+    private final Map<InstructionHandle, Integer> indexOf = new HashMap<>();
+
+    public ControlFlowGraph(MethodGen mg) {
+        InstructionList il = mg.getInstructionList();
+        il.setPositions();
+        CodeExceptionGen[] handlers = mg.getExceptionHandlers();
+
+        int n = 0;
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            indexOf.put(ih, n++);
+        }
+
+        Set<InstructionHandle> leaders = new HashSet<>();
+        leaders.add(il.getStart());
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof BranchInstruction) {
+                leaders.add(((BranchInstruction) inst).getTarget());
+                if (inst instanceof Select) {
+                    leaders.addAll(Arrays.asList(((Select) inst).getTargets()));
+                }
+            }
+            if (endsBlock(inst) && ih.getNext() != null) {
+                leaders.add(ih.getNext());
+            }
+        }
+        for (CodeExceptionGen h : handlers) {
+            leaders.add(h.getStartPC());
+            leaders.add(h.getHandlerPC());
+            if (h.getEndPC().getNext() != null) {
+                leaders.add(h.getEndPC().getNext());
+            }
+        }
+
+        BasicBlock current = null;
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            if (current == null || leaders.contains(ih)) {
+                current = new BasicBlock(blocks.size(), ih);
+                blocks.add(current);
+            }
+            current.end = ih;
+            blockOf.put(ih, current);
+        }
+
+        for (BasicBlock b : blocks) {
+            Instruction last = b.end.getInstruction();
+            if (last instanceof BranchInstruction) {
+                link(b, blockOf.get(((BranchInstruction) last).getTarget()));
+                if (last instanceof Select) {
+                    for (InstructionHandle t : ((Select) last).getTargets()) {
+                        link(b, blockOf.get(t));
+                    }
+                }
+            }
+            if (!isUnconditional(last) && b.end.getNext() != null) {
+                link(b, blockOf.get(b.end.getNext()));
+            }
+            for (CodeExceptionGen h : handlers) {
+                if (covers(h, b.start)) {
+                    BasicBlock handler = blockOf.get(h.getHandlerPC());
+                    if (!b.handlers.contains(handler)) {
+                        b.handlers.add(handler);
+                        handler.predecessors.add(b);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void link(BasicBlock from, BasicBlock to) {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    static boolean endsBlock(Instruction inst) {
+        return inst instanceof BranchInstruction || isUnconditional(inst);
+    }
+
+    /*
+     * true if the method calls jsr/ret subroutines, which the graph does not model: a jsr is an
+     * unconditional jump with no edge to the instruction it returns to, and a ret ends its
+     * block, so the code after each jsr would look unreachable. Passes building a graph leave
+     * such methods alone.
+     */
+    static boolean hasSubroutines(InstructionList il) {
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            if (ih.getInstruction() instanceof JsrInstruction || ih.getInstruction() instanceof RET) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * instructions after which control never falls through to the next one
+     */
+    static boolean isUnconditional(Instruction inst) {
+        return inst instanceof UnconditionalBranch || inst instanceof Select || inst instanceof ReturnInstruction
+                || inst instanceof ATHROW || inst instanceof RET;
+    }
+
+    /*
+     * true if ih lies inside the protected range of h
+     */
+    boolean covers(CodeExceptionGen h, InstructionHandle ih) {
+        int i = indexOf.get(ih);
+        return indexOf.get(h.getStartPC()) <= i && i <= indexOf.get(h.getEndPC());
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    public BasicBlock blockOf(InstructionHandle ih) {
+        return blockOf.get(ih);
+    }
+
+    /*
+     * position of ih in the instruction list at the time the graph was built
+     */
+    public int indexOf(InstructionHandle ih) {
+        return indexOf.get(ih);
+    }
+
+    /*
+     * blocks reachable from the entry through normal or exceptional edges
+     */
+    public Set<BasicBlock> reachable() {
+        Set<BasicBlock> seen = new LinkedHashSet<>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        work.add(getEntry());
+        seen.add(getEntry());
+        while (!work.isEmpty()) {
+            for (BasicBlock s : work.poll().getAllSuccessors()) {
+                if (seen.add(s)) {
+                    work.add(s);
+                }
+            }
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,68 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Removes stores to locals that are never read afterwards, typically left behind once the
+ * folding passes have replaced every load of a variable with its constant. The stored value
+ * is popped instead, and values that were only computed to be stored disappear with it unless
+ * computing them could have a side effect.
+ */
+public class DeadStoreEliminationPass implements OptimizationPass {
+
+    static final String NAME = "deadstore";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionList il = ir.getInstructionList();
+        if (ControlFlowGraph.hasSubroutines(il)) {
+            // subroutines keep their return addresses in locals, leave them alone
+            return false;
+        }
+        List<InstructionHandle> handles = new ArrayList<>();
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            handles.add(ih);
+        }
+        Liveness liveness = new Liveness(new ControlFlowGraph(ir.getMethodGen()), cpgen);
+
+        List<InstructionHandle> dead = new ArrayList<>();
+        for (InstructionHandle ih : handles) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof StoreInstruction || inst instanceof IINC) {
+                LocalVariableInstruction local = (LocalVariableInstruction) inst;
+                int slot = local.getIndex();
+                int size = inst instanceof IINC ? 1 : local.getType(cpgen).getSize();
+                if (!liveness.isLiveAfter(ih, slot) && (size == 1 || !liveness.isLiveAfter(ih, slot + 1))) {
+                    dead.add(ih);
+                }
+            }
+        }
+        if (dead.isEmpty()) {
+            return false;
+        }
+
+        // frames still name the handles the analysis saw, so fix them up before editing
+        ir.clearDeadLocals(liveness);
+        for (InstructionHandle ih : dead) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof IINC) {
+                ir.remove(ih);
+            } else {
+                int size = ((StoreInstruction) inst).getType(cpgen).getSize();
+                ih.setInstruction(size == 2 ? new POP2() : new POP());
+            }
+        }
+        ir.getMetrics().current().removedStores(dead.size());
+        ir.removeDiscardedValues();
+        ir.removeStaleLocalVariables();
+        return true;
+    }
+}
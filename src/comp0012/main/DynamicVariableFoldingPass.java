@@ -0,0 +1,134 @@
+package comp0012.main;
+
+import org.apache.bcel.generic.*;
+
+import comp0012.main.ConstantPropagation.State;
+
+/**
+ * Task 3: runs constant propagation over the control flow graph and rewrites what it proves.
+ * Loads of locals holding the same constant on every path become pushes of that constant,
+ * arithmetic with a constant result is replaced by the result, conditional branches on
+ * constants become jumps (or fall through) and the code they cut off is deleted.
+ */
+public class DynamicVariableFoldingPass implements OptimizationPass {
+
+    static final String NAME = "dynamic";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /*
+     * method to implement task3 on the handout, completing dynamic variable folding
+     * as required
+     */
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        if (ControlFlowGraph.hasSubroutines(mg.getInstructionList())) {
+            return false;
+        }
+        ControlFlowGraph cfg = new ControlFlowGraph(mg);
+        ConstantPropagation constants = new ConstantPropagation(mg, cfg, cpgen);
+        PassMetrics metrics = ir.getMetrics().current();
+        boolean modified = false;
+
+        for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()) {
+            if (!constants.isReachable(block)) {
+                continue;
+            }
+            for (InstructionHandle ih : block.getInstructions()) {
+                Instruction inst = ih.getInstruction();
+                State before = constants.before(ih);
+
+                if (inst instanceof LoadInstruction && !(inst instanceof ALOAD)) {
+                    // Replace the load with a direct push if the local is constant on every path
+                    LoadInstruction load = (LoadInstruction) inst;
+                    Object value = before.local(load.getIndex());
+                    if (matches(value, load.getType(cpgen))) {
+                        ih.setInstruction(ConstantPropagation.push(value, cpgen));
+                        metrics.foldedConstants(1);
+                        modified = true;
+                    }
+                } else if (isPureComputation(inst)) {
+                    // Computations on constants: drop the operands and push the result
+                    Type type = ((TypedInstruction) inst).getType(cpgen);
+                    Type result = inst instanceof ArithmeticInstruction || inst instanceof ConversionInstruction
+                            ? type : Type.INT;
+                    Object value = constants.after(ih).top(result);
+                    if (ConstantPropagation.isConstant(value)) {
+                        InstructionList pops = MethodIR.discardOperands(inst, cpgen);
+                        ir.insertBefore(ih, pops);
+                        ih.setInstruction(ConstantPropagation.push(value, cpgen));
+                        metrics.foldedConstants(1);
+                        modified = true;
+                    }
+                } else if (inst instanceof IfInstruction) {
+                    // Branches on constants are decided now
+                    IfInstruction branch = (IfInstruction) inst;
+                    int operands = branch.consumeStack(cpgen);
+                    Object a = before.peek(operands - 1);
+                    Object b = operands == 2 ? before.peek(0) : null;
+                    Boolean taken = ConstantPropagation.branchTaken(inst.getOpcode(), a, b);
+                    if (taken != null) {
+                        InstructionList pops = new InstructionList();
+                        for (int i = 0; i < operands; i++) {
+                            pops.append(new POP());
+                        }
+                        ir.insertBefore(ih, pops);
+                        if (taken) {
+                            ih.setInstruction(new GOTO(branch.getTarget()));
+                        } else {
+                            ir.remove(ih);
+                        }
+                        metrics.resolvedBranches(1);
+                        modified = true;
+                    }
+                }
+            }
+        }
+
+        // other passes may have cut off code too, so this is not limited to branches decided here
+        modified |= ir.removeUnreachableCode();
+        modified |= removeJumpsToNext(ir);
+        if (modified) {
+            ir.removeDiscardedValues();
+        }
+        return modified;
+    }
+
+    private static boolean matches(Object value, Type type) {
+        return (value instanceof Integer && type == Type.INT) || (value instanceof Long && type == Type.LONG)
+                || (value instanceof Float && type == Type.FLOAT) || (value instanceof Double && type == Type.DOUBLE);
+    }
+
+    /*
+     * arithmetic, conversions and comparisons never touch memory, so when their result is known
+     * they can be replaced outright
+     */
+    private static boolean isPureComputation(Instruction inst) {
+        if (inst instanceof ArithmeticInstruction || inst instanceof ConversionInstruction) {
+            return true;
+        }
+        return inst instanceof LCMP || inst instanceof FCMPL || inst instanceof FCMPG
+                || inst instanceof DCMPL || inst instanceof DCMPG;
+    }
+
+    /*
+     * a GOTO left pointing at the instruction right after it once the code in between is gone
+     */
+    private static boolean removeJumpsToNext(MethodIR ir) {
+        boolean removed = false;
+        InstructionHandle ih = ir.getInstructionList().getStart();
+        while (ih != null) {
+            InstructionHandle next = ih.getNext();
+            if (ih.getInstruction() instanceof GOTO && ((GOTO) ih.getInstruction()).getTarget() == next) {
+                ir.remove(ih);
+                removed = true;
+            }
+            ih = next;
+        }
+        return removed;
+    }
+}
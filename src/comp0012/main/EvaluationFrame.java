@@ -0,0 +1,178 @@
+package comp0012.main;
+
+import java.util.Arrays;
+
+/**
+ * Locals and operand stack of the constant evaluator, held as raw 64-bit words with a type tag
+ * per slot instead of boxed values. Longs and doubles take two slots as in the JVM: the value
+ * in the first and a HIGH tag in the second. One frame is kept per thread and only grown, so
+ * evaluating a method allocates nothing per instruction.
+ */
+final class EvaluationFrame {
+
+    static final byte UNKNOWN = 0;
+    static final byte INT = 1;
+    static final byte FLOAT = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte HIGH = 5;
+
+    private static final ThreadLocal<EvaluationFrame> CURRENT = ThreadLocal.withInitial(EvaluationFrame::new);
+
+    private long[] locals = new long[16];
+    private byte[] localTags = new byte[16];
+    private long[] stack = new long[16];
+    private byte[] stackTags = new byte[16];
+    private int sp;
+
+    private EvaluationFrame() {
+    }
+
+    /*
+     * this thread's frame, emptied and big enough for a method with the given limits
+     */
+    static EvaluationFrame acquire(int maxLocals, int maxStack) {
+        EvaluationFrame frame = CURRENT.get();
+        if (frame.locals.length < maxLocals) {
+            frame.locals = new long[maxLocals];
+            frame.localTags = new byte[maxLocals];
+        } else {
+            Arrays.fill(frame.localTags, 0, maxLocals, UNKNOWN);
+        }
+        if (frame.stack.length < maxStack) {
+            frame.stack = new long[maxStack];
+            frame.stackTags = new byte[maxStack];
+        }
+        frame.sp = 0;
+        return frame;
+    }
+
+    static boolean isWide(byte tag) {
+        return tag == LONG || tag == DOUBLE;
+    }
+
+    /*
+     * tag of the value on top of the stack, looking through the HIGH half of a wide value
+     */
+    byte topTag() {
+        if (sp == 0) {
+            return UNKNOWN;
+        }
+        byte tag = stackTags[sp - 1];
+        return tag == HIGH ? stackTags[sp - 2] : tag;
+    }
+
+    private void push(byte tag, long bits) {
+        stack[sp] = bits;
+        stackTags[sp++] = tag;
+        if (isWide(tag)) {
+            stackTags[sp++] = HIGH;
+        }
+    }
+
+    void pushInt(int value) {
+        push(INT, value);
+    }
+
+    void pushLong(long value) {
+        push(LONG, value);
+    }
+
+    void pushFloat(float value) {
+        push(FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    void pushDouble(double value) {
+        push(DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    int popInt() {
+        return (int) stack[--sp];
+    }
+
+    long popLong() {
+        sp -= 2;
+        return stack[sp];
+    }
+
+    float popFloat() {
+        return Float.intBitsToFloat((int) stack[--sp]);
+    }
+
+    double popDouble() {
+        sp -= 2;
+        return Double.longBitsToDouble(stack[sp]);
+    }
+
+    /*
+     * drop words from the top of the stack, whatever they hold
+     */
+    void pop(int words) {
+        sp -= words;
+    }
+
+    /*
+     * copy the top words of the stack and insert the copy below the depth words under them,
+     * which covers the whole DUP family: DUP_X1 is dup(1, 1), DUP2_X2 is dup(2, 2)
+     */
+    void dup(int words, int depth) {
+        int base = sp - words - depth;
+        System.arraycopy(stack, base, stack, base + words, words + depth);
+        System.arraycopy(stackTags, base, stackTags, base + words, words + depth);
+        System.arraycopy(stack, sp, stack, base, words);
+        System.arraycopy(stackTags, sp, stackTags, base, words);
+        sp += words;
+    }
+
+    void swap() {
+        long bits = stack[sp - 1];
+        byte tag = stackTags[sp - 1];
+        stack[sp - 1] = stack[sp - 2];
+        stackTags[sp - 1] = stackTags[sp - 2];
+        stack[sp - 2] = bits;
+        stackTags[sp - 2] = tag;
+    }
+
+    /*
+     * move the value on top of the stack into a local, invalidating any wide value it overlaps
+     */
+    void store(int slot) {
+        byte tag = topTag();
+        long bits = stack[sp - (isWide(tag) ? 2 : 1)];
+        sp -= isWide(tag) ? 2 : 1;
+        if (slot > 0 && localTags[slot] == HIGH) {
+            localTags[slot - 1] = UNKNOWN;
+        }
+        int end = slot + (isWide(tag) ? 2 : 1);
+        if (end < localTags.length && localTags[end] == HIGH) {
+            localTags[end] = UNKNOWN;
+        }
+        locals[slot] = bits;
+        localTags[slot] = tag;
+        if (isWide(tag)) {
+            localTags[slot + 1] = HIGH;
+        }
+    }
+
+    /*
+     * push a local, returning false if nothing known has been stored in it
+     */
+    boolean load(int slot, byte expected) {
+        if (localTags[slot] != expected) {
+            return false;
+        }
+        push(expected, locals[slot]);
+        return true;
+    }
+
+    /*
+     * add to an int local, returning false if its value is not known
+     */
+    boolean increment(int slot, int amount) {
+        if (localTags[slot] != INT) {
+            return false;
+        }
+        locals[slot] = (int) locals[slot] + amount;
+        return true;
+    }
+}
@@ -0,0 +1,144 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+import comp0012.main.ConstantPropagation.State;
+
+/**
+ * Replaces calls to pure methods with their result when constant propagation proves every
+ * argument constant. The callee may live in any class of the input: it is looked up in the
+ * run's SymbolIndex and evaluated on its original code. A call on an object keeps its
+ * null check, unless the object is this.
+ */
+public class InterproceduralFoldingPass implements OptimizationPass {
+
+    static final String NAME = "calls";
+
+    private static final String OBJECTS = "java.util.Objects";
+    private static final String REQUIRE_NON_NULL = "requireNonNull";
+    private static final String REQUIRE_NON_NULL_SIGNATURE = "(Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private final SymbolIndex index;
+
+    public InterproceduralFoldingPass(OptimizationOptions options) {
+        this.index = options.getSymbols();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        // most methods call nothing indexed, so look before running the analysis
+        List<InstructionHandle> calls = new ArrayList<>();
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            if (ih.getInstruction() instanceof InvokeInstruction
+                    && index.lookup((InvokeInstruction) ih.getInstruction(), cpgen) != null) {
+                calls.add(ih);
+            }
+        }
+        if (calls.isEmpty() || ControlFlowGraph.hasSubroutines(mg.getInstructionList())) {
+            return false;
+        }
+
+        ConstantPropagation constants = new ConstantPropagation(mg, new ControlFlowGraph(mg), cpgen);
+        PassMetrics metrics = ir.getMetrics().current();
+        boolean modified = false;
+        for (InstructionHandle ih : calls) {
+            SymbolIndex.Callee callee = index.lookup((InvokeInstruction) ih.getInstruction(), cpgen);
+            State before = constants.before(ih);
+            if (before == null || (callee.isStatic && !index.isInitialised(callee.className, mg.getClassName()))) {
+                continue;
+            }
+            Object[] args = arguments(before, callee.argumentTypes);
+            Object result = args == null ? null : callee.evaluate(args);
+            if (result == null) {
+                continue;
+            }
+
+            InstructionList code = new InstructionList();
+            for (int i = args.length - 1; i >= 0; i--) {
+                code.append(callee.argumentTypes[i].getSize() == 2 ? new POP2() : new POP());
+            }
+            if (!callee.isStatic) {
+                code.append(new INVOKESTATIC(cpgen.addMethodref(OBJECTS, REQUIRE_NON_NULL, REQUIRE_NON_NULL_SIGNATURE)));
+                code.append(new POP());
+            }
+            ir.insertBefore(ih, code);
+            ih.setInstruction(ConstantPropagation.push(result, cpgen));
+            metrics.foldedConstants(1);
+            modified = true;
+        }
+        if (modified) {
+            ir.removeDiscardedValues();
+            removeThisChecks(ir, cpgen);
+        }
+        return modified;
+    }
+
+    /*
+     * the constant arguments of a call, first argument first, or null if any is not constant
+     */
+    private static Object[] arguments(State before, Type[] types) {
+        Object[] args = new Object[types.length];
+        int depth = 0;
+        for (int i = types.length - 1; i >= 0; i--) {
+            Object value = before.peek(depth + types[i].getSize() - 1);
+            if (!ConstantPropagation.isConstant(value)) {
+                return null;
+            }
+            args[i] = value;
+            depth += types[i].getSize();
+        }
+        return args;
+    }
+
+    /*
+     * aload_0; Objects.requireNonNull; pop in an instance method that never overwrites slot 0
+     * checks this, which is never null
+     */
+    private static void removeThisChecks(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        if (mg.isStatic()) {
+            return;
+        }
+        InstructionList il = mg.getInstructionList();
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof StoreInstruction && ((StoreInstruction) inst).getIndex() == 0) {
+                return;
+            }
+        }
+        InstructionHandle ih = il.getStart();
+        while (ih != null) {
+            InstructionHandle check = ih.getNext();
+            InstructionHandle pop = check == null ? null : check.getNext();
+            if (pop != null && pop.getNext() != null && ih.getInstruction() instanceof ALOAD
+                    && ((ALOAD) ih.getInstruction()).getIndex() == 0 && isNullCheck(check.getInstruction(), cpgen)
+                    && pop.getInstruction() instanceof POP && MethodIR.isStraightLine(ih, pop)) {
+                InstructionHandle next = pop.getNext();
+                ir.replace(ih, pop, new InstructionList());
+                ih = next;
+            } else {
+                ih = check;
+            }
+        }
+    }
+
+    private static boolean isNullCheck(Instruction inst, ConstantPoolGen cpgen) {
+        if (!(inst instanceof INVOKESTATIC)) {
+            return false;
+        }
+        INVOKESTATIC call = (INVOKESTATIC) inst;
+        // a static call always names a class, never an array type
+        return ((ObjectType) call.getReferenceType(cpgen)).getClassName().equals(OBJECTS)
+                && call.getMethodName(cpgen).equals(REQUIRE_NON_NULL)
+                && call.getSignature(cpgen).equals(REQUIRE_NON_NULL_SIGNATURE);
+    }
+}
@@ -0,0 +1,117 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Backward dataflow over the control flow graph: which local variable slots may still be read
+ * before being overwritten. A long or double occupies both of its slots, and everything live
+ * at the entry of a handler is live throughout the range it protects, since any instruction
+ * there might throw.
+ */
+public class Liveness {
+
+    private final ConstantPoolGen cpgen;
+    // slots live right before and right after each instruction
+    private final Map<InstructionHandle, BitSet> liveBefore = new HashMap<>();
+    private final Map<InstructionHandle, BitSet> liveOut = new HashMap<>();
+    private final Map<ControlFlowGraph.BasicBlock, BitSet> liveIn = new HashMap<>();
+
+    public Liveness(ControlFlowGraph cfg, ConstantPoolGen cpgen) {
+        this.cpgen = cpgen;
+        List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            liveIn.put(b, new BitSet());
+        }
+
+        // backwards problem, so seed the worklist from the end of the method
+        ArrayDeque<ControlFlowGraph.BasicBlock> work = new ArrayDeque<>();
+        boolean[] queued = new boolean[blocks.size()];
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            work.add(blocks.get(i));
+            queued[i] = true;
+        }
+        while (!work.isEmpty()) {
+            ControlFlowGraph.BasicBlock b = work.poll();
+            queued[b.getIndex()] = false;
+            BitSet in = transfer(b, false);
+            if (!in.equals(liveIn.get(b))) {
+                liveIn.put(b, in);
+                for (ControlFlowGraph.BasicBlock p : b.getPredecessors()) {
+                    if (!queued[p.getIndex()]) {
+                        work.add(p);
+                        queued[p.getIndex()] = true;
+                    }
+                }
+            }
+        }
+        for (ControlFlowGraph.BasicBlock b : blocks) {
+            transfer(b, true);
+        }
+    }
+
+    /*
+     * walk the block backwards from its live-out set, returning its live-in set
+     */
+    private BitSet transfer(ControlFlowGraph.BasicBlock b, boolean record) {
+        BitSet live = new BitSet();
+        for (ControlFlowGraph.BasicBlock s : b.getSuccessors()) {
+            live.or(liveIn.get(s));
+        }
+        BitSet caught = new BitSet();
+        for (ControlFlowGraph.BasicBlock h : b.getHandlers()) {
+            caught.or(liveIn.get(h));
+        }
+        List<InstructionHandle> instructions = b.getInstructions();
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            InstructionHandle ih = instructions.get(i);
+            live.or(caught);
+            if (record) {
+                liveOut.put(ih, (BitSet) live.clone());
+            }
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof StoreInstruction) {
+                StoreInstruction store = (StoreInstruction) inst;
+                live.clear(store.getIndex(), store.getIndex() + size(store));
+            } else if (inst instanceof LoadInstruction) {
+                LoadInstruction load = (LoadInstruction) inst;
+                live.set(load.getIndex(), load.getIndex() + size(load));
+            } else if (inst instanceof IINC) {
+                live.set(((IINC) inst).getIndex());
+            } else if (inst instanceof RET) {
+                live.set(((RET) inst).getIndex());
+            }
+            live.or(caught);
+            if (record) {
+                liveBefore.put(ih, (BitSet) live.clone());
+            }
+        }
+        return live;
+    }
+
+    private int size(LocalVariableInstruction inst) {
+        return inst.getType(cpgen).getSize();
+    }
+
+    /*
+     * true if the value in slot may be read after ih has executed
+     */
+    public boolean isLiveAfter(InstructionHandle ih, int slot) {
+        BitSet live = liveOut.get(ih);
+        return live == null || live.get(slot);
+    }
+
+    /*
+     * true if the value in slot may be read from ih on; instructions added since the analysis
+     * ran are assumed to read everything
+     */
+    public boolean isLiveBefore(InstructionHandle ih, int slot) {
+        BitSet live = liveBefore.get(ih);
+        return live == null || live.get(slot);
+    }
+}
@@ -0,0 +1,260 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+import comp0012.main.ControlFlowGraph.BasicBlock;
+import comp0012.main.Loops.NaturalLoop;
+
+/**
+ * Loop-invariant code motion: a computation inside a natural loop whose operands cannot change
+ * while the loop runs is evaluated once, in a preheader in front of the loop header, and the
+ * loop reads its result from a fresh local instead. The preheader runs even when the body
+ * would not, so only computations that can neither throw nor have an effect move: arithmetic,
+ * conversions and comparisons except integer division and remainder, over constants, locals
+ * the loop never writes and the results of pure methods that always return.
+ */
+public class LoopInvariantCodeMotionPass implements OptimizationPass {
+
+    static final String NAME = "licm";
+
+    /*
+     * an invariant value on the simulated operand stack, computed by the run first..last
+     */
+    private static final class Invariant {
+        final InstructionHandle first;
+        final InstructionHandle last;
+        final int operations;
+
+        Invariant(InstructionHandle first, InstructionHandle last, int operations) {
+            this.first = first;
+            this.last = last;
+            this.operations = operations;
+        }
+    }
+
+    private final SymbolIndex index;
+
+    public LoopInvariantCodeMotionPass(OptimizationOptions options) {
+        this.index = options.getSymbols();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        if (ControlFlowGraph.hasSubroutines(mg.getInstructionList())) {
+            return false;
+        }
+        Loops loops = new Loops(new ControlFlowGraph(mg));
+        if (loops.isEmpty()) {
+            return false;
+        }
+
+        // hoisting edits the blocks of the loop and of every loop around it, so those wait
+        // for the next round
+        Set<BasicBlock> edited = new HashSet<>();
+        int hoisted = 0;
+        for (NaturalLoop loop : loops.getLoops()) {
+            boolean overlaps = false;
+            for (BasicBlock b : loop.getBlocks()) {
+                overlaps |= edited.contains(b);
+            }
+            if (overlaps) {
+                continue;
+            }
+            int n = hoist(ir, loop, cpgen);
+            if (n > 0) {
+                edited.addAll(loop.getBlocks());
+                hoisted += n;
+            }
+        }
+        if (hoisted == 0) {
+            return false;
+        }
+        ir.getMetrics().current().hoistedComputations(hoisted);
+        return true;
+    }
+
+    /*
+     * move the invariant computations of one loop into a new preheader; returns how many
+     */
+    private int hoist(MethodIR ir, NaturalLoop loop, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        InstructionHandle header = loop.getHeader().getStart();
+        if (!loop.isEnteredByFallThrough()) {
+            return 0;
+        }
+        Set<InstructionHandle> body = loop.getInstructions();
+        for (CodeExceptionGen h : mg.getExceptionHandlers()) {
+            if (!body.contains(h.getHandlerPC())) {
+                continue;
+            }
+            // the handler's frame holds the new locals, so everything it protects must too
+            for (InstructionHandle ih = h.getStartPC(); ; ih = ih.getNext()) {
+                if (!body.contains(ih)) {
+                    return 0;
+                }
+                if (ih == h.getEndPC()) {
+                    break;
+                }
+            }
+        }
+
+        BitSet written = new BitSet();
+        for (InstructionHandle ih : body) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof StoreInstruction) {
+                int slot = ((StoreInstruction) inst).getIndex();
+                written.set(slot, slot + ((StoreInstruction) inst).getType(cpgen).getSize());
+            } else if (inst instanceof IINC) {
+                written.set(((IINC) inst).getIndex());
+            }
+        }
+        List<Invariant> found = new ArrayList<>();
+        for (BasicBlock b : loop.getBlocks()) {
+            scan(b, written, mg.getClassName(), cpgen, found);
+        }
+        if (found.isEmpty()) {
+            return 0;
+        }
+
+        mg.setMaxLocals();
+        int next = mg.getMaxLocals();
+        // the same computation met twice in the loop is hoisted once
+        Map<String, Integer> slots = new HashMap<>();
+        List<Integer> targets = new ArrayList<>();
+        InstructionList preheader = new InstructionList();
+        for (Invariant inv : found) {
+            Type type = resultType(inv.last.getInstruction(), cpgen);
+            String key = text(inv, cpgen);
+            Integer slot = slots.get(key);
+            if (slot == null) {
+                slot = next;
+                next += type.getSize();
+                slots.put(key, slot);
+                for (InstructionHandle ih = inv.first; ; ih = ih.getNext()) {
+                    preheader.append(ih.getInstruction().copy());
+                    if (ih == inv.last) {
+                        break;
+                    }
+                }
+                preheader.append(InstructionFactory.createStore(type, slot));
+                // before the edits below, which move the frames of the loop onto new handles
+                ir.declareLocal(body, slot, type);
+            }
+            targets.add(slot);
+        }
+        // inserted first, so a computation starting the header is replaced after the preheader
+        ir.insertAbove(header, preheader);
+        for (int i = 0; i < found.size(); i++) {
+            Invariant inv = found.get(i);
+            Type type = resultType(inv.last.getInstruction(), cpgen);
+            ir.replace(inv.first, inv.last, new InstructionList(InstructionFactory.createLoad(type, targets.get(i))));
+        }
+        return found.size();
+    }
+
+    /*
+     * simulate the operand stack of one block, a word per entry with null for anything not
+     * invariant, and collect each maximal invariant computation consumed by an instruction
+     * that is not itself invariant; values entering from other blocks count as variant
+     */
+    private void scan(BasicBlock block, BitSet written, String className, ConstantPoolGen cpgen,
+            List<Invariant> found) {
+        List<Invariant> stack = new ArrayList<>();
+        for (InstructionHandle ih : block.getInstructions()) {
+            Instruction inst = ih.getInstruction();
+            int consumed = inst.consumeStack(cpgen);
+            List<Invariant> operands = new ArrayList<>();
+            boolean complete = true;
+            for (int i = 0; i < consumed; i++) {
+                Invariant word = stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+                complete &= word != null;
+                if (word != null && !operands.contains(word)) {
+                    operands.add(0, word);
+                }
+            }
+            Invariant result = complete ? invariant(ih, operands, written, className, cpgen) : null;
+            if (result == null) {
+                for (Invariant operand : operands) {
+                    if (operand.operations > 0 && MethodIR.isStraightLine(operand.first, operand.last)) {
+                        found.add(operand);
+                    }
+                }
+            }
+            for (int i = inst.produceStack(cpgen); i > 0; i--) {
+                stack.add(result);
+            }
+        }
+    }
+
+    /*
+     * the invariant value ih pushes given its operands, bottom first, or null
+     */
+    private Invariant invariant(InstructionHandle ih, List<Invariant> operands, BitSet written, String className,
+            ConstantPoolGen cpgen) {
+        Instruction inst = ih.getInstruction();
+        if (inst instanceof ConstantPushInstruction || inst instanceof LDC2_W
+                || (inst instanceof LDC && ((LDC) inst).getValue(cpgen) instanceof Number)) {
+            return new Invariant(ih, ih, 0);
+        }
+        if (inst instanceof LoadInstruction && !(inst instanceof ALOAD)) {
+            LoadInstruction load = (LoadInstruction) inst;
+            int slot = load.getIndex();
+            return written.get(slot, slot + load.getType(cpgen).getSize()).isEmpty() ? new Invariant(ih, ih, 0) : null;
+        }
+        if (!MethodIR.isDiscardable(inst) && !isTotalCall(inst, className, cpgen)) {
+            return null;
+        }
+        // the operands must be computed by the instructions right before this one
+        InstructionHandle first = ih;
+        int operations = 1;
+        for (int i = operands.size() - 1; i >= 0; i--) {
+            Invariant operand = operands.get(i);
+            if (operand.last.getNext() != first) {
+                return null;
+            }
+            first = operand.first;
+            operations += operand.operations;
+        }
+        return new Invariant(first, ih, operations);
+    }
+
+    private boolean isTotalCall(Instruction inst, String className, ConstantPoolGen cpgen) {
+        if (!(inst instanceof INVOKESTATIC)) {
+            return false;
+        }
+        SymbolIndex.Callee callee = index.lookup((INVOKESTATIC) inst, cpgen);
+        return callee != null && callee.total && index.isInitialised(callee.className, className);
+    }
+
+    private static Type resultType(Instruction inst, ConstantPoolGen cpgen) {
+        if (inst instanceof InvokeInstruction) {
+            return ((InvokeInstruction) inst).getReturnType(cpgen);
+        }
+        Type type = ((TypedInstruction) inst).getType(cpgen);
+        return inst instanceof ArithmeticInstruction || inst instanceof ConversionInstruction ? type : Type.INT;
+    }
+
+    private static String text(Invariant inv, ConstantPoolGen cpgen) {
+        StringBuilder sb = new StringBuilder();
+        for (InstructionHandle ih = inv.first; ; ih = ih.getNext()) {
+            sb.append(ih.getInstruction().toString(cpgen.getConstantPool())).append(';');
+            if (ih == inv.last) {
+                return sb.toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+import comp0012.main.ConstantPropagation.State;
+import comp0012.main.ControlFlowGraph.BasicBlock;
+import comp0012.main.Loops.NaturalLoop;
+
+/**
+ * Fully unrolls counted loops: a loop whose header only compares an int local against a
+ * constant, whose single back edge is an iinc of that local followed by the jump to the header,
+ * and which is entered with the local holding a constant, runs a number of times known now.
+ * The body is laid out that many times in a row, without the test, as long as the copies stay
+ * within the unrolling budget. Each copy ends by storing the counter's next value, so the
+ * following passes see the local as a constant in every copy and fold it away.
+ */
+public class LoopUnrollingPass implements OptimizationPass {
+
+    static final String NAME = "unroll";
+
+    // bytes of bytecode all copies of a body may take together
+    static final int DEFAULT_BUDGET = 256;
+    // the JVM rejects methods with more code than this
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final int budget;
+
+    public LoopUnrollingPass(OptimizationOptions options) {
+        this.budget = options.getUnrollBudget();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        if (budget <= 0) {
+            return false;
+        }
+        if (ControlFlowGraph.hasSubroutines(mg.getInstructionList())) {
+            return false;
+        }
+        ControlFlowGraph cfg = new ControlFlowGraph(mg);
+        Loops loops = new Loops(cfg);
+        if (loops.isEmpty()) {
+            return false;
+        }
+        ConstantPropagation constants = new ConstantPropagation(mg, cfg, cpgen);
+
+        // unrolling rewrites the loop and every loop around it, so those wait for the next round
+        Set<BasicBlock> edited = new HashSet<>();
+        int unrolled = 0;
+        for (NaturalLoop loop : loops.getLoops()) {
+            boolean overlaps = false;
+            for (BasicBlock b : loop.getBlocks()) {
+                overlaps |= edited.contains(b);
+            }
+            if (!overlaps && unroll(ir, loop, constants, cpgen)) {
+                edited.addAll(loop.getBlocks());
+                unrolled++;
+            }
+        }
+        if (unrolled == 0) {
+            return false;
+        }
+        ir.removeUnreachableCode();
+        ir.getMetrics().current().unrolledLoops(unrolled);
+        return true;
+    }
+
+    private boolean unroll(MethodIR ir, NaturalLoop loop, ConstantPropagation constants, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        if (!loop.isEnteredByFallThrough() || loop.getHeader().getStart().getPrev() == null) {
+            return false;
+        }
+
+        // the header: iload i, the bound if compared against one, and the exit test
+        List<InstructionHandle> test = loop.getHeader().getInstructions();
+        InstructionHandle exit = test.get(test.size() - 1);
+        if (test.size() < 2 || test.size() > 3 || !(exit.getInstruction() instanceof IfInstruction)) {
+            return false;
+        }
+        IfInstruction branch = (IfInstruction) exit.getInstruction();
+        int operands = branch.consumeStack(cpgen);
+        Set<InstructionHandle> body = loop.getInstructions();
+        if (operands != test.size() - 1 || body.contains(branch.getTarget()) || !body.contains(exit.getNext())) {
+            return false;
+        }
+        int counter = -1;
+        for (int i = 0; i < operands; i++) {
+            Instruction inst = test.get(i).getInstruction();
+            if (inst instanceof ILOAD && counter == -1) {
+                counter = i;
+            } else if (!(inst instanceof ConstantPushInstruction || inst instanceof LDC)) {
+                return false;
+            }
+        }
+        if (counter == -1) {
+            return false;
+        }
+        int slot = ((ILOAD) test.get(counter).getInstruction()).getIndex();
+        // states are of the code as analysed, before loops unrolled earlier in this run
+        State before = constants.before(exit);
+        State entry = constants.after(loop.getHeader().getStart().getPrev());
+        if (before == null || entry == null || !(entry.local(slot) instanceof Integer)) {
+            return false;
+        }
+        Object bound = operands == 2 ? before.peek(counter == 0 ? 0 : 1) : null;
+        if (operands == 2 && !(bound instanceof Integer)) {
+            return false;
+        }
+
+        // the single back edge: iinc i; goto header
+        BasicBlock latch = null;
+        for (BasicBlock p : loop.getHeader().getPredecessors()) {
+            if (loop.contains(p)) {
+                if (latch != null) {
+                    return false;
+                }
+                latch = p;
+            }
+        }
+        InstructionHandle jump = latch.getEnd();
+        InstructionHandle step = jump.getPrev();
+        if (!(jump.getInstruction() instanceof GotoInstruction) || latch.getStart() == jump
+                || !(step.getInstruction() instanceof IINC) || ((IINC) step.getInstruction()).getIndex() != slot) {
+            return false;
+        }
+        int increment = ((IINC) step.getInstruction()).getIncrement();
+
+        // the run header..jump holds the loop and the code leaving it early, and touches the
+        // counter only in the latch
+        Set<InstructionHandle> range = new HashSet<>();
+        int count = 0;
+        int bodyLength = 0;
+        for (InstructionHandle ih = loop.getHeader().getStart(); ; ih = ih.getNext()) {
+            if (ih == null) {
+                return false;
+            }
+            range.add(ih);
+            count += body.contains(ih) ? 1 : 0;
+            Instruction inst = ih.getInstruction();
+            if (ih != step && writes(inst, slot, cpgen)) {
+                return false;
+            }
+            if (!test.contains(ih) && ih != jump) {
+                bodyLength += inst.getLength();
+            }
+            if (ih == jump) {
+                break;
+            }
+        }
+        if (count != body.size() || isProtected(mg, range)) {
+            return false;
+        }
+        // only the loop entry may be jumped to from outside the run; jumps are told apart by
+        // handle, as BCEL takes two jumps to the same target for equal
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            if (ih.getInstruction() instanceof BranchInstruction && !range.contains(ih)) {
+                BranchInstruction other = (BranchInstruction) ih.getInstruction();
+                List<InstructionHandle> targets = new ArrayList<>();
+                targets.add(other.getTarget());
+                if (other instanceof Select) {
+                    targets.addAll(Arrays.asList(((Select) other).getTargets()));
+                }
+                for (InstructionHandle target : targets) {
+                    if (target != loop.getHeader().getStart() && range.contains(target)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        int limit = budget / Math.max(bodyLength, 1);
+        int trips = 0;
+        for (int i = (Integer) entry.local(slot); ; i += increment) {
+            Object a = counter == 0 ? i : bound;
+            Object b = operands == 1 ? null : counter == 0 ? bound : i;
+            if (ConstantPropagation.branchTaken(branch.getOpcode(), a, b)) {
+                break;
+            }
+            if (++trips > limit) {
+                return false;
+            }
+        }
+        InstructionList il = mg.getInstructionList();
+        il.setPositions();
+        InstructionHandle end = il.getEnd();
+        if (end.getPosition() + end.getInstruction().getLength() + (trips - 1) * bodyLength > MAX_CODE_LENGTH) {
+            return false;
+        }
+
+        if (trips == 0) {
+            // the body never runs; it is deleted as unreachable
+            exit.setInstruction(new GOTO(branch.getTarget()));
+            for (int i = 0; i < operands; i++) {
+                ir.remove(test.get(i));
+            }
+            return true;
+        }
+        List<InstructionHandle> steps = new ArrayList<>();
+        steps.add(step);
+        for (int k = 1; k < trips; k++) {
+            steps.add(copy(ir, exit.getNext(), step, steps.get(k - 1)));
+        }
+        // a copied jump retargeted to the copy takes the set entry of its equal original along
+        ir.relinkJumps();
+        // each copy stores the counter's next value instead of incrementing it, so the stores
+        // do not depend on each other and die together once the loads are folded
+        int value = (Integer) entry.local(slot);
+        for (InstructionHandle ih : steps) {
+            value += increment;
+            InstructionList store = new InstructionList(ConstantPropagation.push(value, cpgen));
+            store.append(new ISTORE(slot));
+            ir.replace(ih, ih, store);
+        }
+        ir.remove(jump);
+        for (InstructionHandle ih : test) {
+            ir.remove(ih);
+        }
+        return true;
+    }
+
+    /*
+     * true if inst may change the int in slot
+     */
+    private static boolean writes(Instruction inst, int slot, ConstantPoolGen cpgen) {
+        if (inst instanceof IINC) {
+            return ((IINC) inst).getIndex() == slot;
+        }
+        if (inst instanceof StoreInstruction) {
+            StoreInstruction store = (StoreInstruction) inst;
+            return store.getIndex() <= slot && slot < store.getIndex() + store.getType(cpgen).getSize();
+        }
+        return false;
+    }
+
+    /*
+     * true if a handler protects or starts inside the code; copies would need handlers of their own
+     */
+    private static boolean isProtected(MethodGen mg, Set<InstructionHandle> body) {
+        for (CodeExceptionGen h : mg.getExceptionHandlers()) {
+            if (body.contains(h.getHandlerPC())) {
+                return true;
+            }
+            for (InstructionHandle ih = h.getStartPC(); ; ih = ih.getNext()) {
+                if (body.contains(ih)) {
+                    return true;
+                }
+                if (ih == h.getEndPC()) {
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * insert a copy of first..last after the given instruction, with jumps inside the run
+     * redirected into the copy and line numbers and frames copied along; returns the end of the copy
+     */
+    private static InstructionHandle copy(MethodIR ir, InstructionHandle first, InstructionHandle last,
+            InstructionHandle after) {
+        MethodGen mg = ir.getMethodGen();
+        Map<InstructionHandle, InstructionHandle> copies = new HashMap<>();
+        List<InstructionHandle> originals = new ArrayList<>();
+        InstructionList code = new InstructionList();
+        for (InstructionHandle ih = first; ; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction().copy();
+            copies.put(ih, inst instanceof BranchInstruction ? code.append((BranchInstruction) inst) : code.append(inst));
+            originals.add(ih);
+            if (ih == last) {
+                break;
+            }
+        }
+        for (InstructionHandle ih : originals) {
+            if (ih.getInstruction() instanceof BranchInstruction) {
+                BranchInstruction original = (BranchInstruction) ih.getInstruction();
+                BranchInstruction copy = (BranchInstruction) copies.get(ih).getInstruction();
+                // set even when unchanged, so the target knows about the copy
+                copy.setTarget(copies.getOrDefault(original.getTarget(), original.getTarget()));
+                if (original instanceof Select) {
+                    InstructionHandle[] targets = ((Select) original).getTargets();
+                    for (int j = 0; j < targets.length; j++) {
+                        ((Select) copy).setTarget(j, copies.getOrDefault(targets[j], targets[j]));
+                    }
+                }
+            }
+        }
+        InstructionHandle end = code.getEnd();
+        mg.getInstructionList().append(after, code);
+        for (InstructionHandle ih : originals) {
+            for (InstructionTargeter t : ih.hasTargeters() ? ih.getTargeters() : new InstructionTargeter[0]) {
+                if (t instanceof LineNumberGen) {
+                    mg.addLineNumber(copies.get(ih), ((LineNumberGen) t).getSourceLine());
+                }
+            }
+        }
+        ir.copyFrames(copies);
+        ir.markModified();
+        return end;
+    }
+}
@@ -0,0 +1,176 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+
+import comp0012.main.ControlFlowGraph.BasicBlock;
+
+/**
+ * Natural loops of one method. A back edge is a normal edge into a block that dominates its
+ * source; the loop it closes is its target, the header, plus every block that reaches the
+ * source without passing through the header. Loops sharing a header are merged into one, and
+ * loops are listed innermost first.
+ */
+public class Loops {
+
+    public static class NaturalLoop {
+        final BasicBlock header;
+        final Set<BasicBlock> blocks = new LinkedHashSet<>();
+
+        NaturalLoop(BasicBlock header) {
+            this.header = header;
+            blocks.add(header);
+        }
+
+        public BasicBlock getHeader() {
+            return header;
+        }
+
+        public Set<BasicBlock> getBlocks() {
+            return blocks;
+        }
+
+        public boolean contains(BasicBlock b) {
+            return blocks.contains(b);
+        }
+
+        /*
+         * true if every edge into the header from outside the loop is the fall through from the
+         * instruction before it, or the header starts the method, so code inserted right before
+         * the header runs exactly when the loop is entered
+         */
+        public boolean isEnteredByFallThrough() {
+            InstructionHandle start = header.getStart();
+            InstructionHandle prev = start.getPrev();
+            if (prev != null && ControlFlowGraph.isUnconditional(prev.getInstruction())) {
+                return false;
+            }
+            for (BasicBlock p : header.getPredecessors()) {
+                if (blocks.contains(p)) {
+                    continue;
+                }
+                if (p.getEnd() != prev || p.getHandlers().contains(header)) {
+                    return false;
+                }
+                Instruction last = prev.getInstruction();
+                if (last instanceof BranchInstruction && ((BranchInstruction) last).containsTarget(start)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Set<InstructionHandle> getInstructions() {
+            Set<InstructionHandle> handles = new LinkedHashSet<>();
+            for (BasicBlock b : blocks) {
+                handles.addAll(b.getInstructions());
+            }
+            return handles;
+        }
+
+        @Override
+        public String toString() {
+            return "loop " + header + " " + blocks;
+        }
+    }
+
+    // blocks dominating each reachable block, by block index
+    private final Map<BasicBlock, BitSet> dominators = new HashMap<>();
+    private final List<NaturalLoop> loops = new ArrayList<>();
+
+    public Loops(ControlFlowGraph cfg) {
+        Set<BasicBlock> reachable = cfg.reachable();
+        BasicBlock entry = cfg.getEntry();
+        BitSet all = new BitSet();
+        for (BasicBlock b : reachable) {
+            all.set(b.getIndex());
+        }
+        for (BasicBlock b : reachable) {
+            BitSet d = new BitSet();
+            if (b == entry) {
+                d.set(b.getIndex());
+            } else {
+                d.or(all);
+            }
+            dominators.put(b, d);
+        }
+        // reachable() lists blocks breadth first, so this settles in a few rounds
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : reachable) {
+                if (b == entry) {
+                    continue;
+                }
+                BitSet d = (BitSet) all.clone();
+                for (BasicBlock p : b.getPredecessors()) {
+                    BitSet pd = dominators.get(p);
+                    if (pd != null) {
+                        d.and(pd);
+                    }
+                }
+                d.set(b.getIndex());
+                if (!d.equals(dominators.get(b))) {
+                    dominators.put(b, d);
+                    changed = true;
+                }
+            }
+        }
+
+        Map<BasicBlock, NaturalLoop> byHeader = new LinkedHashMap<>();
+        for (BasicBlock b : reachable) {
+            for (BasicBlock s : b.getSuccessors()) {
+                if (dominates(s, b)) {
+                    collect(byHeader.computeIfAbsent(s, NaturalLoop::new), b);
+                }
+            }
+        }
+        loops.addAll(byHeader.values());
+        loops.sort(Comparator.comparingInt(l -> l.blocks.size()));
+    }
+
+    /*
+     * add source and every block reaching it backwards short of the header
+     */
+    private void collect(NaturalLoop loop, BasicBlock source) {
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        if (loop.blocks.add(source)) {
+            work.add(source);
+        }
+        while (!work.isEmpty()) {
+            for (BasicBlock p : work.poll().getPredecessors()) {
+                if (dominators.containsKey(p) && loop.blocks.add(p)) {
+                    work.add(p);
+                }
+            }
+        }
+    }
+
+    /*
+     * true if every path from the entry to b passes through a; unreachable blocks have no dominators
+     */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        BitSet d = dominators.get(b);
+        return d != null && d.get(a.getIndex());
+    }
+
+    public List<NaturalLoop> getLoops() {
+        return loops;
+    }
+
+    public boolean isEmpty() {
+        return loops.isEmpty();
+    }
+}
@@ -4,31 +4,161 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 /**
  * COMP0012 courswork 2
  * Driver class: automatically apply optimisation to all class files in the input directory and save the optimised classes into the output directory
+ * Either side may also be a .jar/.zip archive, which is streamed entry by entry without being extracted
  */
 
 public class Main extends SimpleFileVisitor<Path> {
 
-    @Option(name="-in",required=true, usage="Root directory of the input classfiles")
+    @Option(name="-in",required=true, usage="Root directory or jar of the input classfiles")
     private String inputRoot;
 
-    @Option(name="-out",required=true, usage="Root directory where optimised classfiles will be stored")
+    @Option(name="-out",required=true, usage="Root directory or jar where optimised classfiles will be stored")
     private String outputRoot;
 
+    @Option(name="-threads", usage="Number of worker threads optimising class files (default 1, runs on the walking thread)")
+    private int threads = 1;
+
+    @Option(name="-debug", usage="Dump the original and optimised bytecode of every class")
+    private boolean debug = false;
+
+    @Option(name="-nocache", usage="Re-optimise every class instead of skipping those unchanged since the last run")
+    private boolean noCache = false;
+
+    @Option(name="-O", metaVar="LEVEL", usage="Optimisation level, also written -O0 to -O3: 0 copies classes unchanged, 1 runs only the cheap passes, 2 (default) the whole pipeline, 3 twice the iterations and four times the unroll budget")
+    private int level = OptimizationOptions.DEFAULT_LEVEL;
+
+    @Option(name="-passes", usage="Comma separated pipeline of passes to run (default fields,simple,constant,calls,strings,unroll,dynamic,licm,peephole,deadstore)")
+    private String passes = null;
+
+    @Option(name="-disable", usage="Comma separated passes to leave out of the pipeline")
+    private String disabledPasses = null;
+
+    @Option(name="-iterations", usage="Maximum rounds of the pass pipeline per method (default 10)")
+    private Integer iterations = null;
+
+    @Option(name="-unroll", usage="Bytes of bytecode a fully unrolled loop may take, summed over its copies (default 256, 0 disables unrolling)")
+    private Integer unrollBudget = null;
+
+    @Option(name="-maxinstructions", usage="Leave methods longer than this many instructions unoptimised, and undo the rounds that grow a method past it (default 0, no limit)")
+    private int maxInstructions = 0;
+
+    @Option(name="-maxtime", usage="Milliseconds of passes per method, checked between passes, after which the method keeps what is done so far (default 0, no limit; makes output depend on machine load)")
+    private long maxMillis = 0;
+
+    @Option(name="-keeppool", usage="Keep unused constant pool entries instead of compacting and renumbering the pool")
+    private boolean keepPool = false;
+
+    @Option(name="-daemon", usage="After the first run stay up: rebuild when input classes change and serve OptimiserClient on this local port (0 picks a free one)")
+    private Integer daemonPort = null;
+
+    @Option(name="-instrument", usage="Add invocation and back edge counters to the optimised classes; running them writes a profile to the file named by -Dcomp0012.profile (default comp0012-profile.txt)")
+    private boolean instrument = false;
+
+    @Option(name="-profile", usage="Profile from an -instrument build: only hot methods get the expensive passes (calls,unroll,dynamic,licm), cold ones cheap folding")
+    private String profileFile = null;
+
+    @Option(name="-hot", usage="Invocations plus loop iterations that make a method hot under -profile (default 1000)")
+    private long hotThreshold = Profile.DEFAULT_THRESHOLD;
+
+    @Option(name="-report", usage="Write per class, method and pass metrics of this run to the given JSON file")
+    private String reportFile = null;
+
+    // classes queued or running per worker thread before the walk blocks
+    private static final int IN_FLIGHT_PER_THREAD = 4;
+    private static final int ARCHIVE_BUFFER = 64 * 1024;
+
+    private ForkJoinPool pool = null;
+    private Semaphore inFlight = null;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // set when the output is an archive; entries are then written by the walking thread in input order
+    private ArchiveWriter archiveOut = null;
+
+    // incremental manifest, only kept for directory outputs
+    private OptimisationCache cache = null;
+    // metrics of every class optimised, when -report is given
+    private OptimisationReport report = null;
+
+    private final OptimizationOptions options = new OptimizationOptions();
+
     private void parseArguments(String args[])
     {
         CmdLineParser parser = new CmdLineParser(this);
         parser.setUsageWidth(80);
         try{
-            parser.parseArgument(args);
-        } catch (CmdLineException e) {
+            parser.parseArgument(splitLevels(args));
+            if (threads < 1) {
+                throw new CmdLineException(parser, "-threads must be at least 1");
+            }
+            if (iterations != null && iterations < 1) {
+                throw new CmdLineException(parser, "-iterations must be at least 1");
+            }
+            if (unrollBudget != null && unrollBudget < 0) {
+                throw new CmdLineException(parser, "-unroll must not be negative");
+            }
+            if (maxInstructions < 0 || maxMillis < 0) {
+                throw new CmdLineException(parser, "-maxinstructions and -maxtime must not be negative");
+            }
+            if (daemonPort != null && (isArchive(inputRoot) || isArchive(outputRoot))) {
+                throw new CmdLineException(parser, "-daemon needs a directory as input and output");
+            }
+            options.setLevel(level);
+            List<String> pipeline = passes == null ? options.getPipeline() : PassManager.parsePipeline(passes);
+            if (disabledPasses != null) {
+                pipeline = new ArrayList<>(pipeline);
+                pipeline.removeAll(PassManager.parsePipeline(disabledPasses));
+            }
+            options.setDebug(debug).setPipeline(pipeline).setInstrument(instrument)
+                    .setMaxInstructions(maxInstructions).setMaxMillis(maxMillis);
+            if (iterations != null) {
+                options.setMaxIterations(iterations);
+            }
+            if (unrollBudget != null) {
+                options.setUnrollBudget(unrollBudget);
+            }
+            if (keepPool) {
+                options.setCompactConstantPool(false);
+            }
+            if (profileFile != null) {
+                if (!Files.isRegularFile(Paths.get(profileFile))) {
+                    throw new CmdLineException(parser, "No profile at " + profileFile);
+                }
+                try {
+                    Profile profile = Profile.read(Paths.get(profileFile), hotThreshold);
+                    options.setProfile(profile);
+                    System.out.println("Profile marks " + profile.hotCount() + " methods hot");
+                } catch (IOException | NumberFormatException e) {
+                    throw new CmdLineException(parser, "Cannot read profile " + profileFile + ": " + e.getMessage());
+                }
+            }
+        } catch (CmdLineException | IllegalArgumentException e) {
             System.err.println(e.getMessage());
             System.err.println("java BatchExperiment inputFolder outputFolder");
             parser.printUsage(System.err);
@@ -37,29 +167,434 @@ public class Main extends SimpleFileVisitor<Path> {
         }
     }
 
-    public static void main(String args[]) throws IOException {
+    /*
+     * args4j wants "-O 3"; accept the usual "-O3" too
+     */
+    private static String[] splitLevels(String[] args) {
+        List<String> split = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.matches("-O\\d+")) {
+                split.add("-O");
+                split.add(arg.substring(2));
+            } else {
+                split.add(arg);
+            }
+        }
+        return split.toArray(new String[0]);
+    }
+
+    public static void main(String args[]) throws IOException, InterruptedException {
 	System.out.println("Running COMP207p courswork-2");
         Main main = new Main();
         main.parseArguments(args);
-        Files.walkFileTree(Paths.get(main.inputRoot), main);
+        main.run();
+        if (main.daemonPort != null) {
+            new OptimiserDaemon(Paths.get(main.inputRoot), Paths.get(main.outputRoot), main.daemonPort, main::run).serve();
+        }
+    }
+
+    /*
+     * walk the input tree; with more than one thread the walk only enumerates class files and
+     * hands them to a work-stealing pool, blocking once too many classes are in flight
+     */
+    private void run() throws IOException, InterruptedException {
+        // a daemon runs the same Main again for every rebuild
+        failure.set(null);
+        pool = null;
+        archiveOut = null;
+        cache = null;
+        report = null;
+        if (options.getPipeline().contains(InterproceduralFoldingPass.NAME)
+                || options.getPipeline().contains(StaticFieldFoldingPass.NAME)
+                || options.getPipeline().contains(LoopInvariantCodeMotionPass.NAME)) {
+            indexSymbols();
+        }
+        if (reportFile != null) {
+            report = new OptimisationReport(options.configuration());
+        }
+        if (threads > 1) {
+            pool = new ForkJoinPool(threads);
+            inFlight = new Semaphore(threads * IN_FLIGHT_PER_THREAD);
+        }
+        try {
+            if (isArchive(outputRoot)) {
+                Path out = Paths.get(outputRoot).toAbsolutePath();
+                if (out.getParent() != null) {
+                    Files.createDirectories(out.getParent());
+                }
+                // entries arrive in small writes from the deflater
+                archiveOut = new ArchiveWriter(new BufferedOutputStream(Files.newOutputStream(out), ARCHIVE_BUFFER),
+                        threads * IN_FLIGHT_PER_THREAD);
+            } else if (!noCache) {
+                cache = new OptimisationCache(Paths.get(outputRoot), options.configuration());
+            }
+            if (isArchive(inputRoot)) {
+                optimiseArchive(Paths.get(inputRoot));
+            } else {
+                Files.walkFileTree(Paths.get(inputRoot), this);
+            }
+            if (options.isInstrument() && failure.get() == null) {
+                addProfileRuntime();
+            }
+            if (archiveOut != null) {
+                archiveOut.finish();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            if (archiveOut != null) {
+                archiveOut.close();
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t == null && cache != null) {
+            cache.save();
+            System.out.println("Reused " + cache.hits() + " unchanged classes");
+        }
+        if (t == null && report != null) {
+            report.write(Paths.get(reportFile));
+            System.out.println("Wrote optimisation report to " + reportFile);
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+    }
+
+    /*
+     * instrumented classes call ProfileRuntime, which the optimiser never writes from its own
+     * input, so copy it into the output from the optimiser's classpath
+     */
+    private void addProfileRuntime() throws IOException {
+        String name = ProfileRuntime.class.getName().replace('.', '/') + ".class";
+        byte[] bytes;
+        try (InputStream in = Main.class.getResourceAsStream("/" + name)) {
+            if (in == null) {
+                throw new IOException("Cannot find " + name + " on the optimiser's classpath");
+            }
+            bytes = in.readAllBytes();
+        }
+        if (archiveOut != null) {
+            archiveOut.add(new ZipEntry(name), () -> bytes);
+        } else {
+            Path out = Paths.get(outputRoot, name).toAbsolutePath();
+            Files.createDirectories(out.getParent());
+            ClassFiles.write(out, bytes);
+        }
+    }
+
+    /*
+     * first read of the whole input, before any class is optimised: calls and field reads may
+     * be folded into any class, so every method and field they could be folded from must be
+     * known up front
+     */
+    private void indexSymbols() throws IOException {
+        SymbolIndex index = new SymbolIndex();
+        if (isArchive(inputRoot)) {
+            try (ZipFile zip = new ZipFile(inputRoot)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.endsWith(".class") && !entry.isDirectory() && !isOptimiserClass(Paths.get(name))) {
+                        index.add(readEntry(zip, entry), simpleName(name));
+                    }
+                }
+            }
+        } else {
+            Path root = Paths.get(inputRoot);
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(root)) {
+                classes = files.filter(f -> f.toString().endsWith(".class") && Files.isRegularFile(f)
+                        && !isOptimiserClass(root.relativize(f))).collect(Collectors.toList());
+            }
+            for (Path f : classes) {
+                index.add(ClassFiles.read(f), f.getFileName().toString());
+            }
+        }
+        options.setSymbols(index);
+        System.out.println("Indexed " + index.methodCount() + " pure methods and " + index.fieldCount() + " constant fields");
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-        Path rel = Paths.get(inputRoot).relativize(dir);
-        File outputDir = new File(Paths.get(outputRoot, rel.toString()).toString());
-        outputDir.mkdirs();
+        if (archiveOut == null) {
+            Path rel = Paths.get(inputRoot).relativize(dir);
+            Files.createDirectories(Paths.get(outputRoot, rel.toString()));
+        }
         return super.preVisitDirectory(dir, attrs);
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        String fname = file.toString();
-        if(fname.endsWith(".class") && !fname.endsWith("Main.class") && !fname.endsWith("ConstantFolder.class")){
-            ConstantFolder cf = new ConstantFolder(file.toString());
-            Path rel = Paths.get(inputRoot).relativize(file);
-            cf.write(Paths.get(outputRoot, rel.toString()).toAbsolutePath().toString());
+        Path rel = Paths.get(inputRoot).relativize(file);
+        if (rel.toString().endsWith(".class") && !isOptimiserClass(rel)) {
+            if (archiveOut != null) {
+                byte[] in = ClassFiles.read(file);
+                ZipEntry entry = new ZipEntry(entryName(rel));
+                entry.setTime(attrs.lastModifiedTime().toMillis());
+                archiveOut.add(entry, () -> optimiseClass(in, file.getFileName().toString()).toByteArray());
+            } else {
+                Path out = Paths.get(outputRoot, rel.toString()).toAbsolutePath();
+                if (pool == null) {
+                    optimiseToFile(ClassFiles.read(file), entryName(rel), out);
+                } else {
+                    submit(() -> optimiseToFile(ClassFiles.read(file), entryName(rel), out));
+                }
+            }
+        }
+        return failure.get() == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+    }
+
+    /*
+     * stream every entry of the input archive: classes are folded, everything else
+     * (manifest, resources, directories) is copied through unchanged
+     */
+    private void optimiseArchive(Path archive) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements() && failure.get() == null) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (isSignatureFile(name)) {
+                    // the folded classes no longer match the signed digests
+                    System.out.println("Dropping jar signature " + name);
+                    continue;
+                }
+
+                boolean optimise = name.endsWith(".class") && !entry.isDirectory()
+                        && !isOptimiserClass(Paths.get(name));
+                byte[] in = readEntry(zip, entry);
+                if (archiveOut != null) {
+                    if (optimise) {
+                        archiveOut.add(copyOf(entry, false), () -> optimiseClass(in, simpleName(name)).toByteArray());
+                    } else {
+                        archiveOut.add(copyOf(entry, true), () -> in);
+                    }
+                } else if (entry.isDirectory()) {
+                    Files.createDirectories(extractedPath(name));
+                } else {
+                    Path out = extractedPath(name);
+                    Files.createDirectories(out.getParent());
+                    if (!optimise) {
+                        ClassFiles.write(out, in);
+                    } else if (pool == null) {
+                        optimiseToFile(in, name, out);
+                    } else {
+                        submit(() -> optimiseToFile(in, name, out));
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * where an entry of the input jar goes under the output directory; a crafted name such as
+     * ../x or /x would otherwise be written outside it
+     */
+    private Path extractedPath(String name) throws IOException {
+        Path root = Paths.get(outputRoot).toAbsolutePath().normalize();
+        Path out = root.resolve(name).normalize();
+        if (Paths.get(name).isAbsolute() || !out.startsWith(root)) {
+            throw new IOException("Jar entry " + name + " is outside the output directory");
+        }
+        return out;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private void submit(Task task) throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing class files", e);
+        }
+        pool.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /*
+     * fold one class into a directory output, skipping it when the cache shows that the
+     * same input was already optimised under the same configuration
+     */
+    private void optimiseToFile(byte[] in, String rel, Path out) throws IOException {
+        String key = null;
+        if (cache != null) {
+            key = cache.key(in);
+            if (cache.isUpToDate(rel, key, out)) {
+                if (report != null) {
+                    report.cached();
+                }
+                return;
+            }
+        }
+        ClassFiles.Buffer optimised = optimiseClass(in, simpleName(rel));
+        ClassFiles.write(out, optimised.contents());
+        if (cache != null) {
+            cache.record(rel, key, optimised.contents());
+        }
+    }
+
+    /*
+     * serialise the folded class into the calling thread's buffer, valid until its next call
+     */
+    private ClassFiles.Buffer optimiseClass(byte[] classBytes, String classFileName) throws IOException {
+        long start = System.nanoTime();
+        ConstantFolder cf = new ConstantFolder(classBytes, classFileName, options);
+        ClassFiles.Buffer out = ClassFiles.buffer();
+        cf.write(out);
+        if (report != null) {
+            ClassMetrics metrics = cf.getMetrics();
+            metrics.nanos = System.nanoTime() - start;
+            metrics.bytesIn = classBytes.length;
+            metrics.bytesOut = out.size();
+            report.add(metrics);
+        }
+        return out;
+    }
+
+    private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /*
+     * copy an entry's metadata; stored entries keep their size and CRC so their bytes are
+     * written back without being compressed, unchanged entries keep every header field
+     */
+    private static ZipEntry copyOf(ZipEntry entry, boolean unchanged) {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        copy.setMethod(entry.getMethod());
+        if (entry.getComment() != null) {
+            copy.setComment(entry.getComment());
+        }
+        if (entry.getExtra() != null) {
+            copy.setExtra(entry.getExtra());
+        }
+        if (unchanged && entry.getMethod() == ZipEntry.STORED) {
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        }
+        return copy;
+    }
+
+    private static boolean isArchive(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".jar") || lower.endsWith(".zip");
+    }
+
+    private static boolean isSignatureFile(String name) {
+        String upper = name.toUpperCase();
+        return upper.startsWith("META-INF/") && upper.indexOf('/', "META-INF/".length()) < 0
+                && (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+
+    private static String entryName(Path rel) {
+        return rel.toString().replace(rel.getFileSystem().getSeparator(), "/");
+    }
+
+    private static String simpleName(String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    // the optimiser must not rewrite its own classes while they are in use
+    private static boolean isOptimiserClass(Path rel) {
+        return rel.startsWith(Paths.get("comp0012", "main"));
+    }
+
+    /*
+     * writes archive entries strictly in submission order while up to `window` of them are
+     * still being optimised on the pool, so the output jar is deterministic and memory bounded
+     */
+    private class ArchiveWriter {
+        private final ZipOutputStream zip;
+        private final int window;
+        private final ArrayDeque<ZipEntry> entries = new ArrayDeque<>();
+        private final ArrayDeque<Future<byte[]>> contents = new ArrayDeque<>();
+
+        ArchiveWriter(OutputStream out, int window) {
+            this.zip = new ZipOutputStream(out);
+            this.window = window;
+        }
+
+        void add(ZipEntry entry, Callable<byte[]> content) throws IOException {
+            if (pool == null) {
+                write(entry, call(content));
+                return;
+            }
+            if (contents.size() >= window) {
+                writeOldest();
+            }
+            entries.add(entry);
+            contents.add(pool.submit(content));
+        }
+
+        void finish() throws IOException {
+            while (!contents.isEmpty()) {
+                writeOldest();
+            }
+            zip.finish();
+        }
+
+        void close() throws IOException {
+            for (Future<byte[]> f : contents) {
+                f.cancel(true);
+            }
+            zip.close();
+        }
+
+        private void writeOldest() throws IOException {
+            ZipEntry entry = entries.poll();
+            try {
+                write(entry, contents.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + entry.getName(), e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to optimise " + entry.getName(), e.getCause());
+            }
+        }
+
+        private void write(ZipEntry entry, byte[] bytes) throws IOException {
+            if (entry.getMethod() == ZipEntry.STORED && entry.getCrc() == -1) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                entry.setSize(bytes.length);
+                entry.setCompressedSize(bytes.length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(bytes);
+            zip.closeEntry();
+        }
+
+        private byte[] call(Callable<byte[]> content) throws IOException {
+            try {
+                return content.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
         }
-        return super.visitFile(file, attrs);
     }
 }
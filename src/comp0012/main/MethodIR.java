@@ -0,0 +1,713 @@
+package comp0012.main;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.LocalVariable;
+import org.apache.bcel.classfile.LocalVariableTable;
+import org.apache.bcel.classfile.LocalVariableTypeTable;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+/**
+ * In-memory form of one method, materialised once per class: every folding pass mutates the
+ * same MethodGen / InstructionList in place, and the method is serialised exactly once, and
+ * only if some pass actually changed it.
+ */
+public class MethodIR {
+
+    // class files from Java 6 on carry stack map frames that must match the rewritten code
+    private static final int FIRST_STACK_MAP_VERSION = 50;
+
+    private final Method method;
+    private MethodGen mg;
+    private final ConstantPoolGen cpgen;
+    private final int major;
+    private final BootstrapMethod[] bootstrapMethods;
+    private StackMapFrames frames;
+    private boolean modified = false;
+    private final MethodMetrics metrics;
+
+    /*
+     * BCEL 6.0-SNAPSHOT writes invokedynamic without the two zero bytes after its index, while
+     * still counting five bytes for it, so every later offset in the method comes out wrong
+     */
+    private static final class InvokeDynamic extends INVOKEDYNAMIC {
+        private static final long serialVersionUID = 1L;
+
+        InvokeDynamic(int index) {
+            super(Constants.INVOKEDYNAMIC, index);
+            length = 5;
+        }
+
+        @Override
+        public void dump(DataOutputStream out) throws IOException {
+            super.dump(out);
+            out.writeShort(0);
+        }
+    }
+
+    MethodIR(Method method, String className, ConstantPoolGen cpgen, int major) {
+        this(method, className, cpgen, major, new BootstrapMethod[0]);
+    }
+
+    /*
+     * bootstrapMethods are those of the method's class, which its invokedynamic instructions index
+     */
+    MethodIR(Method method, String className, ConstantPoolGen cpgen, int major, BootstrapMethod[] bootstrapMethods) {
+        this.method = method;
+        this.bootstrapMethods = bootstrapMethods;
+        this.mg = new MethodGen(method, className, cpgen);
+        this.cpgen = cpgen;
+        this.major = major;
+        restoreLocalVariables(method);
+        this.frames = StackMapFrames.decode(mg, cpgen.getConstantPool());
+        InstructionList il = mg.getInstructionList();
+        this.metrics = new MethodMetrics(method.getName() + method.getSignature(), il == null ? 0 : il.getLength());
+    }
+
+    /*
+     * BCEL 6.0-SNAPSHOT lets a LocalVariableTypeTable replace the variables read from the
+     * LocalVariableTable, with their generic signatures cut down to invalid descriptors, so
+     * read them again from the LocalVariableTable alone
+     */
+    private void restoreLocalVariables(Method source) {
+        InstructionList il = mg.getInstructionList();
+        if (il == null) {
+            return;
+        }
+        boolean hasTypeTable = false;
+        for (Attribute a : source.getCode().getAttributes()) {
+            hasTypeTable |= a instanceof LocalVariableTypeTable;
+        }
+        if (!hasTypeTable) {
+            return;
+        }
+        mg.removeLocalVariables();
+        LocalVariableTable table = source.getLocalVariableTable();
+        if (table == null) {
+            return;
+        }
+        for (LocalVariable lv : table.getLocalVariableTable()) {
+            InstructionHandle start = il.findHandle(lv.getStartPC());
+            InstructionHandle end = il.findHandle(lv.getStartPC() + lv.getLength());
+            mg.addLocalVariable(lv.getName(), Type.getType(lv.getSignature()), lv.getIndex(),
+                    start == null ? il.getStart() : start, end == null ? il.getEnd() : end);
+        }
+    }
+
+    public Method getOriginal() {
+        return method;
+    }
+
+    /*
+     * the method as it stands, to go back to with restore() once later passes overshoot a budget
+     */
+    Method snapshot() {
+        modified = true;
+        Method current = getMethod();
+        // BCEL adds the annotations to the attributes of a MethodGen on every getMethod(), so
+        // carry on from a fresh one
+        restore(current);
+        return current;
+    }
+
+    /*
+     * start again from a snapshot, or from the original; earlier handles into the code are stale
+     */
+    void restore(Method snapshot) {
+        mg = new MethodGen(snapshot, mg.getClassName(), cpgen);
+        restoreLocalVariables(snapshot);
+        frames = StackMapFrames.decode(mg, cpgen.getConstantPool());
+        modified = snapshot != method;
+    }
+
+    /*
+     * the BootstrapMethods attribute of a class, empty if it has none
+     */
+    static BootstrapMethod[] bootstrapMethods(ClassGen gen) {
+        for (Attribute a : gen.getAttributes()) {
+            if (a instanceof BootstrapMethods) {
+                return ((BootstrapMethods) a).getBootstrapMethods();
+            }
+        }
+        return new BootstrapMethod[0];
+    }
+
+    public BootstrapMethod[] getBootstrapMethods() {
+        return bootstrapMethods;
+    }
+
+    public MethodGen getMethodGen() {
+        return mg;
+    }
+
+    public String getName() {
+        return method.getName();
+    }
+
+    /*
+     * null for abstract and native methods
+     */
+    public InstructionList getInstructionList() {
+        return mg.getInstructionList();
+    }
+
+    public MethodMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    public void markModified() {
+        modified = true;
+    }
+
+    /*
+     * swap in a freshly built body; debug tables and frames pointing into the old list are dropped
+     */
+    public void setInstructionList(InstructionList il) {
+        if (frames != null) {
+            frames.dispose();
+        }
+        mg.removeLocalVariables();
+        mg.removeLineNumbers();
+        mg.removeExceptionHandlers();
+        mg.setInstructionList(il);
+        modified = true;
+    }
+
+    /*
+     * replace the straight-line run first..last with a single instruction, keeping anything
+     * that targeted the run (line numbers, local variable ranges) on the replacement
+     */
+    public InstructionHandle replace(InstructionHandle first, InstructionHandle last, Instruction replacement) {
+        InstructionList il = mg.getInstructionList();
+        boolean jumps = false;
+        for (InstructionHandle ih = first; ; ih = ih.getNext()) {
+            jumps |= ih.getInstruction() instanceof BranchInstruction;
+            if (ih == last) {
+                break;
+            }
+        }
+        first.setInstruction(replacement);
+        if (first != last) {
+            try {
+                il.delete(first.getNext(), last);
+            } catch (TargetLostException e) {
+                for (InstructionHandle lost : e.getTargets()) {
+                    for (InstructionTargeter t : targeters(lost)) {
+                        t.updateTarget(lost, first);
+                    }
+                }
+            }
+        }
+        if (jumps) {
+            relinkJumps();
+        }
+        modified = true;
+        return first;
+    }
+
+    /*
+     * replace the straight-line run first..last with code, which may be empty; whatever targeted
+     * the run moves to the start of the code, or to the instruction after the run
+     */
+    public void replace(InstructionHandle first, InstructionHandle last, InstructionList code) {
+        if (!code.isEmpty()) {
+            insertBefore(first, code);
+        }
+        InstructionHandle end = last.getNext();
+        for (InstructionHandle ih = first; ih != end; ) {
+            InstructionHandle next = ih.getNext();
+            remove(ih);
+            ih = next;
+        }
+        modified = true;
+    }
+
+    /*
+     * insert code in front of ih so that every jump, handler range and frame that led to ih now
+     * leads to the inserted code; ranges ending at ih keep covering it
+     */
+    public InstructionHandle insertBefore(InstructionHandle ih, InstructionList code) {
+        InstructionHandle first = mg.getInstructionList().insert(ih, code);
+        for (InstructionTargeter t : targeters(ih)) {
+            if (t instanceof LocalVariableGen) {
+                LocalVariableGen lv = (LocalVariableGen) t;
+                if (lv.getStart() == ih) {
+                    lv.setStart(first);
+                }
+                // moving the start dropped lv from ih's targeters, though its range may end there
+                if (lv.getEnd() == ih) {
+                    ih.addTargeter(lv);
+                }
+            } else if (t instanceof CodeExceptionGen) {
+                CodeExceptionGen h = (CodeExceptionGen) t;
+                if (h.getStartPC() == ih) {
+                    h.setStartPC(first);
+                }
+                if (h.getHandlerPC() == ih) {
+                    h.setHandlerPC(first);
+                }
+                // as for lv: a range ending at ih must stay registered there, or removing ih misses it
+                if (h.getEndPC() == ih) {
+                    ih.addTargeter(h);
+                }
+            } else {
+                t.updateTarget(ih, first);
+            }
+        }
+        modified = true;
+        return first;
+    }
+
+    /*
+     * insert code in front of ih that only the instruction before ih falls into: jumps, handler
+     * ranges and frames stay on ih, as for a loop preheader run once rather than on every back edge
+     */
+    public InstructionHandle insertAbove(InstructionHandle ih, InstructionList code) {
+        InstructionHandle first = mg.getInstructionList().insert(ih, code);
+        modified = true;
+        return first;
+    }
+
+    /*
+     * the jumps to ih, each by identity. BCEL compares instructions by value and keeps the
+     * targeters of an instruction in a hash set, so of two equal jumps to ih, e.g. a jump and
+     * its copy, the set records one and the other would miss every retargeting
+     */
+    private List<BranchInstruction> jumpsTo(InstructionHandle ih) {
+        List<BranchInstruction> jumps = new ArrayList<>();
+        for (InstructionHandle j = mg.getInstructionList().getStart(); j != null; j = j.getNext()) {
+            if (j.getInstruction() instanceof BranchInstruction) {
+                BranchInstruction branch = (BranchInstruction) j.getInstruction();
+                if (branch.containsTarget(ih)) {
+                    jumps.add(branch);
+                }
+            }
+        }
+        return jumps;
+    }
+
+    /*
+     * whatever targets ih; the list is only scanned for jumps when the set names one
+     */
+    private Collection<InstructionTargeter> targeters(InstructionHandle ih) {
+        Set<InstructionTargeter> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean jumps = false;
+        for (InstructionTargeter t : ih.getTargeters()) {
+            if (t instanceof BranchInstruction) {
+                jumps = true;
+            } else {
+                all.add(t);
+            }
+        }
+        if (jumps) {
+            all.addAll(jumpsTo(ih));
+        }
+        return all;
+    }
+
+    /*
+     * register every jump with its targets again. Deleting or retargeting one of two equal jumps
+     * may remove the set entry of the other, which isStraightLine would then miss, or leave its
+     * own entry behind, which would keep an instruction nothing jumps to from being deleted
+     */
+    void relinkJumps() {
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            forgetJumps(ih);
+        }
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            if (ih.getInstruction() instanceof BranchInstruction) {
+                BranchInstruction branch = (BranchInstruction) ih.getInstruction();
+                branch.getTarget().addTargeter(branch);
+                if (branch instanceof Select) {
+                    for (InstructionHandle target : ((Select) branch).getTargets()) {
+                        target.addTargeter(branch);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * drop the jumps from the targeters of ih; the set cannot be trusted to remove one jump by
+     * itself, as it may find an equal one first
+     */
+    private static void forgetJumps(InstructionHandle ih) {
+        if (!ih.hasTargeters()) {
+            return;
+        }
+        InstructionTargeter[] targeters = ih.getTargeters();
+        ih.removeAllTargeters();
+        for (InstructionTargeter t : targeters) {
+            if (!(t instanceof BranchInstruction)) {
+                ih.addTargeter(t);
+            }
+        }
+    }
+
+    /*
+     * delete one instruction that has a successor, moving whatever targeted it onto that successor
+     */
+    public void remove(InstructionHandle ih) {
+        InstructionHandle next = ih.getNext();
+        InstructionHandle prev = ih.getPrev();
+        boolean jump = ih.getInstruction() instanceof BranchInstruction;
+        for (InstructionTargeter t : targeters(ih)) {
+            if (t instanceof LocalVariableGen) {
+                LocalVariableGen lv = (LocalVariableGen) t;
+                if (lv.getStart() == ih && lv.getEnd() == ih) {
+                    mg.removeLocalVariable(lv);
+                    continue;
+                }
+                if (lv.getStart() == ih) {
+                    lv.setStart(next);
+                }
+                if (lv.getEnd() == ih) {
+                    lv.setEnd(prev);
+                }
+            } else if (t instanceof CodeExceptionGen) {
+                CodeExceptionGen h = (CodeExceptionGen) t;
+                if (h.getStartPC() == ih && h.getEndPC() == ih) {
+                    removeExceptionHandler(h);
+                    continue;
+                }
+                if (h.getStartPC() == ih) {
+                    h.setStartPC(next);
+                }
+                if (h.getEndPC() == ih) {
+                    h.setEndPC(prev);
+                }
+                if (h.getHandlerPC() == ih) {
+                    h.setHandlerPC(next);
+                }
+            } else {
+                t.updateTarget(ih, next);
+            }
+        }
+        // every jump to ih has moved; an entry left is one the set failed to remove
+        forgetJumps(ih);
+        try {
+            mg.getInstructionList().delete(ih);
+        } catch (TargetLostException e) {
+            throw new IllegalStateException("Instruction still targeted after its targeters moved", e);
+        }
+        if (jump) {
+            relinkJumps();
+        }
+        modified = true;
+    }
+
+    /*
+     * delete every instruction the control flow graph cannot reach, shrinking or dropping the
+     * handler and local variable ranges that covered it; returns true if anything was deleted
+     */
+    public boolean removeUnreachableCode() {
+        ControlFlowGraph cfg = new ControlFlowGraph(mg);
+        Set<ControlFlowGraph.BasicBlock> live = cfg.reachable();
+        if (live.size() == cfg.getBlocks().size()) {
+            return false;
+        }
+        Set<InstructionHandle> dead = new HashSet<>();
+        for (ControlFlowGraph.BasicBlock b : cfg.getBlocks()) {
+            if (!live.contains(b)) {
+                dead.addAll(b.getInstructions());
+            }
+        }
+
+        for (CodeExceptionGen h : mg.getExceptionHandlers()) {
+            InstructionHandle[] range = liveRange(h.getStartPC(), h.getEndPC(), dead);
+            if (range == null) {
+                removeExceptionHandler(h);
+            } else {
+                h.setStartPC(range[0]);
+                h.setEndPC(range[1]);
+            }
+        }
+        for (LocalVariableGen lv : mg.getLocalVariables()) {
+            InstructionHandle[] range = liveRange(lv.getStart(), lv.getEnd(), dead);
+            if (range == null) {
+                mg.removeLocalVariable(lv);
+            } else {
+                lv.setStart(range[0]);
+                lv.setEnd(range[1]);
+            }
+        }
+        for (LineNumberGen line : mg.getLineNumbers()) {
+            if (dead.contains(line.getInstruction())) {
+                mg.removeLineNumber(line);
+                line.getInstruction().removeTargeter(line);
+            }
+        }
+
+        InstructionList il = mg.getInstructionList();
+        for (InstructionHandle ih : dead) {
+            try {
+                il.delete(ih);
+            } catch (TargetLostException e) {
+                // only frames and jumps inside the deleted code still point here; they are dropped
+                for (InstructionHandle lost : e.getTargets()) {
+                    for (InstructionTargeter t : targeters(lost)) {
+                        t.updateTarget(lost, null);
+                    }
+                }
+            }
+        }
+        relinkJumps();
+        modified = true;
+        return true;
+    }
+
+    /*
+     * delete values computed only to be discarded: a constant push, load or dup directly
+     * followed by the POP or POP2 dropping it goes entirely, and a computation that cannot throw
+     * is replaced by pops of its operands, which are then examined in turn. Returns true if
+     * anything was deleted.
+     */
+    public boolean removeDiscardedValues() {
+        boolean removed = false;
+        InstructionList il = mg.getInstructionList();
+        InstructionHandle ih = il.getStart();
+        while (ih != null) {
+            InstructionHandle prev = ih.getPrev();
+            Instruction inst = ih.getInstruction();
+            int words = inst instanceof POP ? 1 : inst instanceof POP2 ? 2 : 0;
+            if (words == 0 || prev == null || ih.getNext() == null || !isStraightLine(prev, ih)) {
+                ih = ih.getNext();
+                continue;
+            }
+            Instruction value = prev.getInstruction();
+            if (pushedWords(value) == words || (words == 1 && value instanceof DUP)
+                    || (words == 2 && value instanceof DUP2)) {
+                // step back so a push uncovered by this pair is matched with a later pop
+                InstructionHandle before = prev.getPrev();
+                remove(prev);
+                remove(ih);
+                ih = before == null ? il.getStart() : before;
+                removed = true;
+            } else if (isDiscardable(value) && value.produceStack(cpgen) == words) {
+                InstructionHandle first = insertBefore(prev, discardOperands(value, cpgen));
+                remove(prev);
+                remove(ih);
+                ih = first;
+                removed = true;
+            } else {
+                ih = ih.getNext();
+            }
+        }
+        return removed;
+    }
+
+    /*
+     * words a constant push, load or dup adds to the stack, 0 for anything else
+     */
+    private static int pushedWords(Instruction inst) {
+        if (inst instanceof ConstantPushInstruction || inst instanceof LDC || inst instanceof LDC2_W
+                || inst instanceof LoadInstruction || inst instanceof ACONST_NULL) {
+            return inst.produceStack(null);
+        }
+        return 0;
+    }
+
+    /*
+     * arithmetic, conversions and comparisons have no effect besides their result, except
+     * integer division and remainder, which throw on a zero divisor
+     */
+    static boolean isDiscardable(Instruction inst) {
+        if (inst instanceof IDIV || inst instanceof IREM || inst instanceof LDIV || inst instanceof LREM) {
+            return false;
+        }
+        return inst instanceof ArithmeticInstruction || inst instanceof ConversionInstruction
+                || inst instanceof LCMP || inst instanceof FCMPL || inst instanceof FCMPG
+                || inst instanceof DCMPL || inst instanceof DCMPG;
+    }
+
+    /*
+     * pops discarding the operands of a computation, one per value, topmost first
+     */
+    static InstructionList discardOperands(Instruction inst, ConstantPoolGen cpgen) {
+        short op = inst.getOpcode();
+        Type type = inst instanceof ConversionInstruction ? ConstantPropagation.operandType(op)
+                : ((TypedInstruction) inst).getType(cpgen);
+        int operands = inst.consumeStack(cpgen) / type.getSize();
+        InstructionList pops = new InstructionList();
+        if (op == Constants.LSHL || op == Constants.LSHR || op == Constants.LUSHR) {
+            // the shift distance is an int
+            pops.append(new POP());
+            operands = 1;
+        }
+        for (int i = 0; i < operands; i++) {
+            pops.append(type.getSize() == 2 ? new POP2() : new POP());
+        }
+        return pops;
+    }
+
+    /*
+     * forget the types of locals that are dead at each stack map frame, see
+     * StackMapFrames.clearDeadLocals
+     */
+    void clearDeadLocals(Liveness liveness) {
+        if (frames != null) {
+            frames.clearDeadLocals(liveness);
+        }
+    }
+
+    /*
+     * record that a local a pass introduced holds a value of type in the stack map frames of
+     * the instructions in scope, which is where it is live
+     */
+    void declareLocal(Set<InstructionHandle> scope, int slot, Type type) {
+        if (frames != null) {
+            frames.declareLocal(scope, slot, StackMapFrames.VType.of(type));
+        }
+    }
+
+    /*
+     * stack map frames for instructions a pass duplicated, copied from their originals
+     */
+    void copyFrames(Map<InstructionHandle, InstructionHandle> copies) {
+        if (frames != null) {
+            frames.copyFrames(copies);
+        }
+    }
+
+    /*
+     * MethodGen forgets the handler but leaves it registered on its instructions
+     */
+    private void removeExceptionHandler(CodeExceptionGen h) {
+        mg.removeExceptionHandler(h);
+        h.setStartPC(null);
+        h.setEndPC(null);
+        h.setHandlerPC(null);
+    }
+
+    /*
+     * the first and last live instructions of start..end, or null if the whole range is dead
+     */
+    private static InstructionHandle[] liveRange(InstructionHandle start, InstructionHandle end,
+            Set<InstructionHandle> dead) {
+        InstructionHandle first = null;
+        InstructionHandle last = null;
+        for (InstructionHandle ih = start; ih != null; ih = ih.getNext()) {
+            if (!dead.contains(ih)) {
+                if (first == null) {
+                    first = ih;
+                }
+                last = ih;
+            }
+            if (ih == end) {
+                break;
+            }
+        }
+        return first == null ? null : new InstructionHandle[] { first, last };
+    }
+
+    /*
+     * drop the debug entries of locals that hold nothing any more: no store of their kind is
+     * left for their slot, e.g. once dead store elimination deleted the only one while another
+     * local reuses the slot, or the local would reach past max_locals, which makes the JVM
+     * reject the whole class. Parameters are stored by the caller and only face the second check.
+     */
+    void removeStaleLocalVariables() {
+        if (mg.getInstructionList() == null) {
+            return;
+        }
+        Set<Integer> stored = new HashSet<>();
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof StoreInstruction || inst instanceof IINC) {
+                LocalVariableInstruction local = (LocalVariableInstruction) inst;
+                stored.add(kindInSlot(local.getIndex(), local.getType(cpgen)));
+            }
+        }
+        int parameters = mg.isStatic() ? 0 : 1;
+        for (Type t : mg.getArgumentTypes()) {
+            parameters += t.getSize();
+        }
+        mg.setMaxLocals();
+        for (LocalVariableGen lv : mg.getLocalVariables()) {
+            int slot = lv.getIndex();
+            if (slot + lv.getType().getSize() > mg.getMaxLocals()
+                    || (slot >= parameters && !stored.contains(kindInSlot(slot, lv.getType())))) {
+                mg.removeLocalVariable(lv);
+            }
+        }
+    }
+
+    // a slot and the verification tag of what it holds, so an int store does not keep a long alive
+    private static int kindInSlot(int slot, Type type) {
+        return slot * 16 + StackMapFrames.VType.of(type).tag;
+    }
+
+    /*
+     * true if control can only enter first..last at first, so the run may be folded
+     */
+    public static boolean isStraightLine(InstructionHandle first, InstructionHandle last) {
+        for (InstructionHandle ih = first; ih != last; ) {
+            ih = ih.getNext();
+            if (ih == null) {
+                return false;
+            }
+            for (InstructionTargeter t : ih.hasTargeters() ? ih.getTargeters() : new InstructionTargeter[0]) {
+                if (!(t instanceof LineNumberGen) && !(t instanceof LocalVariableGen)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * serialise the method once all passes are done; an untouched method is returned as parsed
+     */
+    Method getMethod() {
+        if (!modified || mg.getInstructionList() == null) {
+            return method;
+        }
+        InstructionList il = mg.getInstructionList();
+        for (Attribute a : mg.getCodeAttributes()) {
+            // stack maps are re-encoded below, other code attributes would carry stale offsets
+            mg.removeCodeAttribute(a);
+        }
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof INVOKEDYNAMIC && !(inst instanceof InvokeDynamic)) {
+                ih.setInstruction(new InvokeDynamic(((INVOKEDYNAMIC) inst).getIndex()));
+            }
+        }
+        il.setPositions(true);
+        mg.setMaxStack();
+        // also recomputes max_locals; whatever pass left a local behind, it must fit in it
+        removeStaleLocalVariables();
+
+        if (major >= FIRST_STACK_MAP_VERSION) {
+            boolean needsFrames = !StackMapFrames.requiredFrames(il, mg.getExceptionHandlers()).isEmpty();
+            if (needsFrames) {
+                Attribute table = frames == null ? null : frames.encode(mg, cpgen);
+                if (table == null) {
+                    metrics.keptOriginal = "cannot rebuild stack map frames";
+                    return method;
+                }
+                mg.addCodeAttribute(table);
+            }
+        }
+        metrics.instructionsAfter = il.getLength();
+        return mg.getMethod();
+    }
+}
@@ -0,0 +1,61 @@
+package comp0012.main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the pipeline did to one method: its size before and after, and counters per pass.
+ */
+public class MethodMetrics {
+
+    final String name;
+    final int instructionsBefore;
+    int instructionsAfter;
+    final Map<String, PassMetrics> passes = new LinkedHashMap<>();
+    // the per-method budget that stopped the pipeline early, null if none did
+    String budgetExceeded;
+    // why the method was written out as parsed, null if its optimised form was kept
+    String keptOriginal;
+    // counters reported by a pass go to the one PassManager is running
+    private PassMetrics current = new PassMetrics();
+
+    MethodMetrics(String name, int instructionsBefore) {
+        this.name = name;
+        this.instructionsBefore = instructionsBefore;
+        this.instructionsAfter = instructionsBefore;
+    }
+
+    PassMetrics begin(String pass) {
+        current = passes.computeIfAbsent(pass, p -> new PassMetrics());
+        return current;
+    }
+
+    public PassMetrics current() {
+        return current;
+    }
+
+    void writeJson(StringBuilder out) {
+        out.append("{\"name\":");
+        OptimisationReport.quote(out, name);
+        out.append(",\"instructionsBefore\":").append(instructionsBefore)
+                .append(",\"instructionsAfter\":").append(instructionsAfter);
+        if (budgetExceeded != null) {
+            out.append(",\"budgetExceeded\":");
+            OptimisationReport.quote(out, budgetExceeded);
+        }
+        if (keptOriginal != null) {
+            out.append(",\"keptOriginal\":");
+            OptimisationReport.quote(out, keptOriginal);
+        }
+        out.append(",\"passes\":{");
+        String sep = "";
+        for (Map.Entry<String, PassMetrics> e : passes.entrySet()) {
+            out.append(sep);
+            OptimisationReport.quote(out, e.getKey());
+            out.append(':');
+            e.getValue().writeJson(out);
+            sep = ",";
+        }
+        out.append("}}");
+    }
+}
@@ -0,0 +1,125 @@
+package comp0012.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent manifest kept in the output root recording, for every class, a hash of its input
+ * bytes together with the optimiser version and pass configuration, and a hash of the class
+ * that was written for it. A class whose key and output are both unchanged is not re-optimised.
+ */
+public class OptimisationCache {
+
+    static final String FILE_NAME = ".constantfolder-cache";
+    private static final String HEADER = "# constant folder cache v1";
+
+    private final Path manifest;
+    private final byte[] configuration;
+    private final Map<String, Entry> previous = new ConcurrentHashMap<>();
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final String key;
+        final String output;
+
+        Entry(String key, String output) {
+            this.key = key;
+            this.output = output;
+        }
+    }
+
+    /*
+     * load the manifest of the last run, if any; a missing or foreign file just means a cold cache
+     */
+    public OptimisationCache(Path outputRoot, String configuration) throws IOException {
+        this.manifest = outputRoot.resolve(FILE_NAME);
+        this.configuration = configuration.getBytes(StandardCharsets.UTF_8);
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(in.readLine())) {
+                return;
+            }
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length == 3) {
+                    previous.put(fields[2], new Entry(fields[0], fields[1]));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first run into this output root
+        }
+    }
+
+    /*
+     * hash identifying one optimisation: the input class under the current configuration
+     */
+    public String key(byte[] input) {
+        return key(configuration, input);
+    }
+
+    static String key(byte[] configuration, byte[] input) {
+        MessageDigest digest = ClassFiles.sha256();
+        digest.update(configuration);
+        digest.update((byte) 0);
+        return ClassFiles.hex(digest.digest(input));
+    }
+
+    /*
+     * true when rel was produced from the same key last time and its output is still intact;
+     * the entry is then carried over into the manifest written by save()
+     */
+    public boolean isUpToDate(String rel, String key, Path output) throws IOException {
+        Entry last = previous.get(rel);
+        if (last == null || !last.key.equals(key) || !Files.isRegularFile(output)) {
+            return false;
+        }
+        if (!last.output.equals(ClassFiles.hex(ClassFiles.sha256().digest(ClassFiles.read(output))))) {
+            return false;
+        }
+        current.put(rel, last);
+        return true;
+    }
+
+    public void record(String rel, String key, ByteBuffer output) {
+        MessageDigest digest = ClassFiles.sha256();
+        digest.update(output);
+        current.put(rel, new Entry(key, ClassFiles.hex(digest.digest())));
+    }
+
+    /*
+     * replace the manifest atomically so an interrupted run never leaves a half-written cache;
+     * classes not seen in this run are dropped
+     */
+    public void save() throws IOException {
+        Path tmp = manifest.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (Map.Entry<String, Entry> e : new TreeMap<>(current).entrySet()) {
+                out.write(e.getValue().key + " " + e.getValue().output + " " + e.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int hits() {
+        int hits = 0;
+        for (Map.Entry<String, Entry> e : current.entrySet()) {
+            if (previous.get(e.getKey()) == e.getValue()) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
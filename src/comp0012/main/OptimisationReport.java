@@ -0,0 +1,123 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the metrics of every class optimised in one run, from any number of threads, and
+ * writes them as a JSON document: run totals, totals per pass, then each class with its
+ * methods and their per-pass counters.
+ */
+public class OptimisationReport {
+
+    private final String configuration;
+    private final ConcurrentLinkedQueue<ClassMetrics> classes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final long started = System.nanoTime();
+
+    public OptimisationReport(String configuration) {
+        this.configuration = configuration;
+    }
+
+    public void add(ClassMetrics metrics) {
+        classes.add(metrics);
+    }
+
+    /*
+     * a class skipped because the cache held its output
+     */
+    public void cached() {
+        cached.incrementAndGet();
+    }
+
+    public void write(Path file) throws IOException {
+        List<ClassMetrics> sorted = new ArrayList<>(classes);
+        sorted.sort(Comparator.comparing(c -> c.className));
+
+        long methods = 0, overBudget = 0, keptOriginal = 0, instructionsBefore = 0, instructionsAfter = 0, bytesIn = 0, bytesOut = 0, nanos = 0;
+        Map<String, PassMetrics> passes = new LinkedHashMap<>();
+        for (ClassMetrics c : sorted) {
+            methods += c.methods.size();
+            instructionsBefore += c.instructionsBefore();
+            instructionsAfter += c.instructionsAfter();
+            bytesIn += c.bytesIn;
+            bytesOut += c.bytesOut;
+            nanos += c.nanos;
+            for (MethodMetrics m : c.methods) {
+                if (m.budgetExceeded != null) {
+                    overBudget++;
+                }
+                if (m.keptOriginal != null) {
+                    keptOriginal++;
+                }
+                for (Map.Entry<String, PassMetrics> e : m.passes.entrySet()) {
+                    passes.computeIfAbsent(e.getKey(), p -> new PassMetrics()).add(e.getValue());
+                }
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("{\"configuration\":");
+        quote(out, configuration);
+        out.append(",\n\"totals\":{\"classes\":").append(sorted.size())
+                .append(",\"cached\":").append(cached.get())
+                .append(",\"methods\":").append(methods)
+                .append(",\"overBudget\":").append(overBudget)
+                .append(",\"keptOriginal\":").append(keptOriginal)
+                .append(",\"instructionsBefore\":").append(instructionsBefore)
+                .append(",\"instructionsAfter\":").append(instructionsAfter)
+                .append(",\"bytesIn\":").append(bytesIn)
+                .append(",\"bytesOut\":").append(bytesOut)
+                .append(",\"classNanos\":").append(nanos)
+                .append(",\"wallNanos\":").append(System.nanoTime() - started)
+                .append("},\n\"passes\":{");
+        String sep = "";
+        for (Map.Entry<String, PassMetrics> e : passes.entrySet()) {
+            out.append(sep).append('\n');
+            quote(out, e.getKey());
+            out.append(':');
+            e.getValue().writeJson(out);
+            sep = ",";
+        }
+        out.append("},\n\"classes\":[");
+        sep = "";
+        for (ClassMetrics c : sorted) {
+            out.append(sep).append('\n');
+            c.writeJson(out);
+            sep = ",";
+        }
+        out.append("\n]}\n");
+
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write(out.toString());
+        }
+    }
+
+    static void quote(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,115 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * -javaagent entry point folding application classes as they are loaded, with the default
+ * pipeline of Main. Each result is stored in a content-addressed cache directory under the hash
+ * of the loaded bytes and the optimiser configuration, so later starts only read it back.
+ * Without a whole-program view there is no symbol index: calls and static fields of other
+ * classes are not folded. Agent arguments are comma separated:
+ *
+ *   packages=com.example:org.library   only classes in these packages (default: all but the JDK's)
+ *   cache=DIR                          cache directory (default ~/.comp0012-optimiser)
+ */
+public class OptimiserAgent implements ClassFileTransformer {
+
+    // never folded, unless asked for by packages=
+    private static final List<String> EXCLUDED = Arrays.asList("java/", "javax/", "jdk/", "sun/", "com/sun/",
+            "comp0012/main/", "org/apache/bcel/", "org/kohsuke/args4j/");
+
+    private final List<String> packages;
+    private final Path cacheRoot;
+    private final OptimizationOptions options = new OptimizationOptions();
+    private final byte[] configuration = options.configuration().getBytes(StandardCharsets.UTF_8);
+    // set while this thread folds a class, so classes loaded by the folder itself pass untouched
+    private final ThreadLocal<Boolean> folding = ThreadLocal.withInitial(() -> false);
+
+    OptimiserAgent(List<String> packages, Path cacheRoot) {
+        this.packages = packages;
+        this.cacheRoot = cacheRoot;
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        List<String> packages = new ArrayList<>();
+        Path cacheRoot = Paths.get(System.getProperty("user.home"), ".comp0012-optimiser");
+        for (String arg : args == null ? new String[0] : args.split(",")) {
+            if (arg.startsWith("packages=")) {
+                for (String p : arg.substring("packages=".length()).split(":")) {
+                    if (!p.isEmpty()) {
+                        packages.add(p.replace('.', '/') + "/");
+                    }
+                }
+            } else if (arg.startsWith("cache=")) {
+                cacheRoot = Paths.get(arg.substring("cache=".length()));
+            } else if (!arg.isEmpty()) {
+                throw new IllegalArgumentException("Unknown agent argument '" + arg + "', expected packages= or cache=");
+            }
+        }
+        inst.addTransformer(new OptimiserAgent(packages, cacheRoot));
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // redefinitions must keep the class's shape, which is not worth proving here
+        if (className == null || classBeingRedefined != null || !isSelected(className) || folding.get()) {
+            return null;
+        }
+        folding.set(true);
+        try {
+            byte[] optimised = fold(className, classfileBuffer);
+            return Arrays.equals(optimised, classfileBuffer) ? null : optimised;
+        } catch (Throwable t) {
+            // a transformer's exceptions are swallowed by the JVM; say why the class is unchanged
+            System.err.println("Cannot optimize " + className + " at load time: " + t);
+            return null;
+        } finally {
+            folding.set(false);
+        }
+    }
+
+    private boolean isSelected(String className) {
+        if (!packages.isEmpty()) {
+            return packages.stream().anyMatch(className::startsWith);
+        }
+        return EXCLUDED.stream().noneMatch(className::startsWith);
+    }
+
+    /*
+     * the cached result for these bytes, or a fresh one, cached for next time
+     */
+    private byte[] fold(String className, byte[] classBytes) throws IOException {
+        String key = OptimisationCache.key(configuration, classBytes);
+        Path cached = cacheRoot.resolve(key.substring(0, 2)).resolve(key + ".class");
+        try {
+            return ClassFiles.read(cached);
+        } catch (NoSuchFileException e) {
+            // first load of these bytes
+        }
+        String simpleName = className.substring(className.lastIndexOf('/') + 1) + ".class";
+        ByteArrayOutputStream out = new ByteArrayOutputStream(classBytes.length);
+        new ConstantFolder(classBytes, simpleName, options).write(out);
+        byte[] optimised = out.toByteArray();
+        try {
+            Files.createDirectories(cached.getParent());
+            ClassFiles.write(cached, optimised);
+        } catch (IOException e) {
+            // another JVM may be storing the same entry; the class is folded either way
+            System.err.println("Cannot cache " + className + ": " + e);
+        }
+        return optimised;
+    }
+}
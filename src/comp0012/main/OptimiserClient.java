@@ -0,0 +1,37 @@
+package comp0012.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thin client of OptimiserDaemon: sends one request to the daemon on the given local port and
+ * prints its answer. Loads nothing of the optimiser itself, so it starts in a fraction of the
+ * time a full run of Main takes. Exits with 0 if the daemon answered ok.
+ */
+public class OptimiserClient {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("java comp0012.main.OptimiserClient port [" + OptimiserDaemon.OPTIMISE + "|"
+                    + OptimiserDaemon.STOP + "]");
+            System.exit(-1);
+        }
+        String request = args.length == 2 ? args[1] : OptimiserDaemon.OPTIMISE;
+        String answer;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+                    true);
+            out.println(request);
+            answer = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+        }
+        System.out.println(answer == null ? "error no answer" : answer);
+        System.exit(answer != null && answer.startsWith("ok") ? 0 : 1);
+    }
+}
@@ -0,0 +1,188 @@
+package comp0012.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a warm optimiser between builds. The input tree is watched and rebuilt once a burst of
+ * class file changes settles, and OptimiserClient asks for a rebuild over a loopback socket,
+ * getting its answer once the output is up to date. Each rebuild is an ordinary incremental run
+ * of Main, whose cache skips every class unchanged since the previous one, so only changed
+ * classes (and, when an indexed symbol changed, the classes that may have folded it) are
+ * optimised again.
+ */
+public class OptimiserDaemon {
+
+    static final String OPTIMISE = "optimise";
+    static final String STOP = "stop";
+
+    // quiet time after the last change before a burst of changes counts as finished
+    private static final long SETTLE_MILLIS = 200;
+    // how long a client may take to send its request
+    private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    /*
+     * one incremental run of the optimiser over the whole input
+     */
+    interface Build {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private final Path inputRoot;
+    private final Path outputRoot;
+    private final Build build;
+    private final ServerSocket server;
+    private volatile boolean stopped = false;
+
+    OptimiserDaemon(Path inputRoot, Path outputRoot, int port, Build build) throws IOException {
+        this.inputRoot = inputRoot.toAbsolutePath().normalize();
+        this.outputRoot = outputRoot.toAbsolutePath().normalize();
+        this.build = build;
+        // never reachable from other hosts
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /*
+     * answer clients until one asks the daemon to stop, rebuilding on file changes meanwhile
+     */
+    public void serve() throws IOException {
+        Thread watcher = new Thread(this::watch, "optimiser-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("Optimiser daemon watching " + inputRoot + " on port " + getPort());
+        try {
+            while (!stopped) {
+                try (Socket client = server.accept()) {
+                    handle(client);
+                }
+            }
+        } finally {
+            server.close();
+            watcher.interrupt();
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        client.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true);
+        String request;
+        try {
+            request = in.readLine();
+        } catch (IOException e) {
+            System.out.println("Dropped client request: " + e);
+            return;
+        }
+        if (OPTIMISE.equals(request)) {
+            out.println(optimise());
+        } else if (STOP.equals(request)) {
+            stopped = true;
+            out.println("ok stopping");
+        } else {
+            out.println("error unknown request '" + request + "', expected " + OPTIMISE + " or " + STOP);
+        }
+    }
+
+    /*
+     * rebuild, one run at a time; returns the status line sent to clients
+     */
+    private synchronized String optimise() {
+        long start = System.nanoTime();
+        try {
+            build.run();
+            return "ok " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "error interrupted";
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return "error " + e;
+        }
+    }
+
+    private void watch() {
+        try (WatchService watcher = inputRoot.getFileSystem().newWatchService()) {
+            register(watcher, inputRoot);
+            while (!stopped) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                // a build writes its classes one by one; take the whole burst as one change
+                do {
+                    changed |= drain(watcher, key);
+                } while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    System.out.println("Input changed: " + optimise());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Stopped watching " + inputRoot + ": " + e);
+        }
+    }
+
+    /*
+     * handle the events of one key; true if a class file may have changed
+     */
+    private boolean drain(WatchService watcher, WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (path.startsWith(outputRoot)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                register(watcher, path);
+                changed = true;
+            } else if (path.toString().endsWith(".class")) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    // a run only writes outputs, so the class it no longer has is removed here
+                    Files.deleteIfExists(outputRoot.resolve(inputRoot.relativize(path).toString()));
+                }
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void register(WatchService watcher, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.startsWith(outputRoot)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
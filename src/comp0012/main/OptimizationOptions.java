@@ -0,0 +1,170 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings shared by every ConstantFolder of one run. Main fills them in before any class is
+ * optimised and never changes them afterwards, so folders on different threads can share one
+ * instance.
+ */
+public class OptimizationOptions {
+
+    // -O levels: 0 leaves classes as they are, 1 folds cheaply, 2 is the default pipeline and
+    // 3 iterates longer and unrolls bigger loops
+    static final int MAX_LEVEL = 3;
+    static final int DEFAULT_LEVEL = 2;
+
+    private boolean debug = false;
+    private List<String> pipeline = PassManager.defaultPipeline();
+    private int maxIterations = PassManager.DEFAULT_ITERATIONS;
+    private boolean compactConstantPool = true;
+    private SymbolIndex symbols = SymbolIndex.EMPTY;
+    private int unrollBudget = LoopUnrollingPass.DEFAULT_BUDGET;
+    private boolean instrument = false;
+    // null unless the run is profile guided
+    private Profile profile = null;
+    // per-method budgets, 0 for none
+    private int maxInstructions = 0;
+    private long maxMillis = 0;
+
+    /*
+     * set pipeline, iterations, unrolling and pool compaction to those of an -O level;
+     * options set afterwards override the level's choice
+     */
+    public OptimizationOptions setLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Optimisation level must be 0 to " + MAX_LEVEL + ", not " + level);
+        }
+        List<String> all = PassManager.defaultPipeline();
+        setPipeline(level == 0 ? new ArrayList<>() : level == 1 ? PassManager.cheapPipeline(all) : all);
+        setMaxIterations(level == 0 ? 1 : level == 3 ? 2 * PassManager.DEFAULT_ITERATIONS : PassManager.DEFAULT_ITERATIONS);
+        setUnrollBudget(level == 3 ? 4 * LoopUnrollingPass.DEFAULT_BUDGET : LoopUnrollingPass.DEFAULT_BUDGET);
+        setCompactConstantPool(level > 0);
+        return this;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public OptimizationOptions setDebug(boolean debug) {
+        this.debug = debug;
+        return this;
+    }
+
+    public List<String> getPipeline() {
+        return pipeline;
+    }
+
+    public OptimizationOptions setPipeline(List<String> pipeline) {
+        this.pipeline = new ArrayList<>(pipeline);
+        return this;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public OptimizationOptions setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    public boolean isCompactConstantPool() {
+        return compactConstantPool;
+    }
+
+    public OptimizationOptions setCompactConstantPool(boolean compactConstantPool) {
+        this.compactConstantPool = compactConstantPool;
+        return this;
+    }
+
+    public SymbolIndex getSymbols() {
+        return symbols;
+    }
+
+    public OptimizationOptions setSymbols(SymbolIndex symbols) {
+        this.symbols = symbols;
+        return this;
+    }
+
+    public int getUnrollBudget() {
+        return unrollBudget;
+    }
+
+    public OptimizationOptions setUnrollBudget(int unrollBudget) {
+        this.unrollBudget = unrollBudget;
+        return this;
+    }
+
+    public boolean isInstrument() {
+        return instrument;
+    }
+
+    public OptimizationOptions setInstrument(boolean instrument) {
+        this.instrument = instrument;
+        return this;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public OptimizationOptions setProfile(Profile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    public int getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    public OptimizationOptions setMaxInstructions(int maxInstructions) {
+        this.maxInstructions = maxInstructions;
+        return this;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public OptimizationOptions setMaxMillis(long maxMillis) {
+        this.maxMillis = maxMillis;
+        return this;
+    }
+
+    /*
+     * passes hold scratch state, so every folder gets its own manager
+     */
+    PassManager newPassManager() {
+        return new PassManager(pipeline, maxIterations, this);
+    }
+
+    /*
+     * the manager for methods a profile guided run found cold: the pipeline without its
+     * expensive passes; without a profile every method gets the full pipeline
+     */
+    PassManager newColdPassManager() {
+        return new PassManager(profile == null ? pipeline : PassManager.cheapPipeline(pipeline), maxIterations, this);
+    }
+
+    /*
+     * everything besides the input bytes that decides what an optimised class looks like
+     */
+    String configuration() {
+        return "version=" + ConstantFolder.version() + ";" + describe();
+    }
+
+    /*
+     * everything here that changes the optimised output, for the incremental cache key
+     */
+    String describe() {
+        return "passes=" + String.join(",", pipeline) + ";iterations=" + maxIterations
+                + ";compactPool=" + compactConstantPool + ";unroll=" + unrollBudget
+                + ";symbols=" + symbols.digest() + (instrument ? ";instrument" : "")
+                + (profile == null ? "" : ";profile=" + profile.digest())
+                + (maxInstructions == 0 ? "" : ";maxInstructions=" + maxInstructions)
+                + (maxMillis == 0 ? "" : ";maxMillis=" + maxMillis);
+    }
+}
@@ -0,0 +1,21 @@
+package comp0012.main;
+
+import org.apache.bcel.generic.ConstantPoolGen;
+
+/**
+ * One optimisation over a single method. Passes rewrite the shared MethodIR in place and are
+ * run repeatedly by the PassManager, so running a pass on its own output must eventually
+ * report no change.
+ */
+public interface OptimizationPass {
+
+    /*
+     * name used to select the pass in a pipeline, e.g. on the command line
+     */
+    String getName();
+
+    /*
+     * optimise the method, returning true only if its code was changed
+     */
+    boolean run(MethodIR ir, ConstantPoolGen cpgen);
+}
@@ -0,0 +1,203 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ConstantPoolGen;
+
+/**
+ * Runs a configurable pipeline of passes over each method until a full round changes
+ * nothing or the iteration cap is reached, so that folding opportunities exposed by a later
+ * pass are picked up by an earlier one on the next round.
+ */
+public class PassManager {
+
+    // every known pass by name, in the order of the default pipeline
+    private static final Map<String, Function<OptimizationOptions, OptimizationPass>> REGISTRY = new LinkedHashMap<>();
+
+    static {
+        registerConfigured(StaticFieldFoldingPass.NAME, StaticFieldFoldingPass::new);
+        register(SimpleFoldingPass.NAME, SimpleFoldingPass::new);
+        register(ConstantVariableFoldingPass.NAME, ConstantVariableFoldingPass::new);
+        registerConfigured(InterproceduralFoldingPass.NAME, InterproceduralFoldingPass::new);
+        register(StringFoldingPass.NAME, StringFoldingPass::new);
+        registerConfigured(LoopUnrollingPass.NAME, LoopUnrollingPass::new);
+        register(DynamicVariableFoldingPass.NAME, DynamicVariableFoldingPass::new);
+        registerConfigured(LoopInvariantCodeMotionPass.NAME, LoopInvariantCodeMotionPass::new);
+        register(PeepholePass.NAME, PeepholePass::new);
+        register(DeadStoreEliminationPass.NAME, DeadStoreEliminationPass::new);
+    }
+
+    static final int DEFAULT_ITERATIONS = 10;
+
+    // what MethodMetrics.budgetExceeded names
+    static final String BUDGET_INSTRUCTIONS = "instructions";
+    static final String BUDGET_TIME = "time";
+
+    // inlining, unrolling and the dataflow passes, which profile-guided runs keep for hot methods
+    static final List<String> EXPENSIVE = Collections.unmodifiableList(Arrays.asList(
+            InterproceduralFoldingPass.NAME, LoopUnrollingPass.NAME, DynamicVariableFoldingPass.NAME,
+            LoopInvariantCodeMotionPass.NAME));
+
+    private final List<OptimizationPass> passes = new ArrayList<>();
+    private final int maxIterations;
+    // per-method budgets, 0 for none
+    private final int maxInstructions;
+    private final long maxNanos;
+
+    /*
+     * make a pass available to pipelines; passes are created afresh for every PassManager,
+     * so they may keep per-thread scratch state
+     */
+    static synchronized void register(String name, Supplier<OptimizationPass> factory) {
+        REGISTRY.put(name, options -> factory.get());
+    }
+
+    /*
+     * as register, for a pass reading the run's options, e.g. facts gathered from the whole input
+     */
+    static synchronized void registerConfigured(String name, Function<OptimizationOptions, OptimizationPass> factory) {
+        REGISTRY.put(name, factory);
+    }
+
+    static synchronized List<String> defaultPipeline() {
+        return Collections.unmodifiableList(new ArrayList<>(REGISTRY.keySet()));
+    }
+
+    static synchronized boolean isRegistered(String name) {
+        return REGISTRY.containsKey(name);
+    }
+
+    /*
+     * the pipeline without its expensive passes, the cheap folding a cold method gets
+     */
+    static List<String> cheapPipeline(List<String> pipeline) {
+        List<String> cheap = new ArrayList<>(pipeline);
+        cheap.removeAll(EXPENSIVE);
+        return cheap;
+    }
+
+    /*
+     * parse a comma separated list of pass names, rejecting unknown ones
+     */
+    static List<String> parsePipeline(String names) {
+        List<String> pipeline = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            if (!isRegistered(name)) {
+                throw new IllegalArgumentException("Unknown pass '" + name + "', expected one of " + defaultPipeline());
+            }
+            pipeline.add(name);
+        }
+        return pipeline;
+    }
+
+    public PassManager(List<String> pipeline, int maxIterations) {
+        this(pipeline, maxIterations, new OptimizationOptions());
+    }
+
+    public PassManager(List<String> pipeline, int maxIterations, OptimizationOptions options) {
+        synchronized (PassManager.class) {
+            for (String name : pipeline) {
+                Function<OptimizationOptions, OptimizationPass> factory = REGISTRY.get(name);
+                if (factory == null) {
+                    throw new IllegalArgumentException("Unknown pass '" + name + "'");
+                }
+                passes.add(factory.apply(options));
+            }
+        }
+        this.maxIterations = maxIterations;
+        this.maxInstructions = options.getMaxInstructions();
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(options.getMaxMillis());
+    }
+
+    public PassManager() {
+        this(defaultPipeline(), DEFAULT_ITERATIONS);
+    }
+
+    /*
+     * run the pipeline on one method to a fixpoint; returns true if any pass changed it.
+     * A method over the instruction budget is left as it is, and one that grows past it goes
+     * back to the last round that stayed within it. Time is checked between passes, a round
+     * cut short keeping what its finished passes did. Either way the method is done.
+     */
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        if (overSize(ir)) {
+            ir.getMetrics().budgetExceeded = BUDGET_INSTRUCTIONS;
+            return false;
+        }
+        long start = System.nanoTime();
+        // last state within the instruction budget, null while that is the original
+        Method best = null;
+        boolean modified = false;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            boolean changed = false;
+            for (OptimizationPass pass : passes) {
+                changed |= run(pass, ir, cpgen);
+                if (maxNanos > 0 && System.nanoTime() - start > maxNanos) {
+                    ir.getMetrics().budgetExceeded = BUDGET_TIME;
+                    break;
+                }
+            }
+            if (changed) {
+                modified = true;
+                ir.markModified();
+            }
+            if (overSize(ir)) {
+                ir.getMetrics().budgetExceeded = BUDGET_INSTRUCTIONS;
+                ir.restore(best == null ? ir.getOriginal() : best);
+                return ir.isModified();
+            }
+            if (!changed || ir.getMetrics().budgetExceeded != null)
+                break;
+            if (maxInstructions > 0) {
+                best = ir.snapshot();
+            }
+        }
+        return modified;
+    }
+
+    private boolean overSize(MethodIR ir) {
+        return maxInstructions > 0 && ir.getInstructionList().getLength() > maxInstructions;
+    }
+
+    /*
+     * one run of one pass, charged to that pass in the method's metrics
+     */
+    private static boolean run(OptimizationPass pass, MethodIR ir, ConstantPoolGen cpgen) {
+        PassMetrics metrics = ir.getMetrics().begin(pass.getName());
+        int instructions = ir.getInstructionList().getLength();
+        int constants = cpgen.getSize();
+        long start = System.nanoTime();
+        boolean changed = pass.run(ir, cpgen);
+        metrics.nanos += System.nanoTime() - start;
+        metrics.runs++;
+        if (changed) {
+            // passes may swap jumps in place, leaving an equal jump unregistered with its target
+            ir.relinkJumps();
+            metrics.changes++;
+            metrics.instructionsRemoved += instructions - ir.getInstructionList().getLength();
+            metrics.constantPoolAdded += cpgen.getSize() - constants;
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        List<String> names = new ArrayList<>();
+        for (OptimizationPass pass : passes) {
+            names.add(pass.getName());
+        }
+        return String.join(",", names) + " x" + maxIterations;
+    }
+}
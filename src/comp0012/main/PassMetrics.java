@@ -0,0 +1,82 @@
+package comp0012.main;
+
+/**
+ * Counters for one pass, over one method or summed over many. Filled in by PassManager
+ * (runs, changes, time, instructions and constant pool entries) and by the pass itself
+ * (constants folded, branches resolved, stores removed, peephole rewrites, computations hoisted
+ * out of loops, loops unrolled, methods the constant pass could not evaluate).
+ */
+public class PassMetrics {
+
+    long runs;
+    long changes;
+    long nanos;
+    long instructionsRemoved;
+    long constantPoolAdded;
+    long constantsFolded;
+    long branchesResolved;
+    long storesRemoved;
+    long rewritesApplied;
+    long computationsHoisted;
+    long loopsUnrolled;
+    long evaluationsStopped;
+
+    public void foldedConstants(int n) {
+        constantsFolded += n;
+    }
+
+    public void resolvedBranches(int n) {
+        branchesResolved += n;
+    }
+
+    public void removedStores(int n) {
+        storesRemoved += n;
+    }
+
+    public void appliedRewrites(int n) {
+        rewritesApplied += n;
+    }
+
+    public void hoistedComputations(int n) {
+        computationsHoisted += n;
+    }
+
+    public void unrolledLoops(int n) {
+        loopsUnrolled += n;
+    }
+
+    public void stoppedEvaluations(int n) {
+        evaluationsStopped += n;
+    }
+
+    void add(PassMetrics other) {
+        runs += other.runs;
+        changes += other.changes;
+        nanos += other.nanos;
+        instructionsRemoved += other.instructionsRemoved;
+        constantPoolAdded += other.constantPoolAdded;
+        constantsFolded += other.constantsFolded;
+        branchesResolved += other.branchesResolved;
+        storesRemoved += other.storesRemoved;
+        rewritesApplied += other.rewritesApplied;
+        computationsHoisted += other.computationsHoisted;
+        loopsUnrolled += other.loopsUnrolled;
+        evaluationsStopped += other.evaluationsStopped;
+    }
+
+    void writeJson(StringBuilder out) {
+        out.append("{\"runs\":").append(runs)
+                .append(",\"changes\":").append(changes)
+                .append(",\"nanos\":").append(nanos)
+                .append(",\"instructionsRemoved\":").append(instructionsRemoved)
+                .append(",\"constantPoolAdded\":").append(constantPoolAdded)
+                .append(",\"constantsFolded\":").append(constantsFolded)
+                .append(",\"branchesResolved\":").append(branchesResolved)
+                .append(",\"storesRemoved\":").append(storesRemoved)
+                .append(",\"rewritesApplied\":").append(rewritesApplied)
+                .append(",\"computationsHoisted\":").append(computationsHoisted)
+                .append(",\"loopsUnrolled\":").append(loopsUnrolled)
+                .append(",\"evaluationsStopped\":").append(evaluationsStopped)
+                .append('}');
+    }
+}
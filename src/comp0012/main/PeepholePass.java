@@ -0,0 +1,387 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.apache.bcel.util.InstructionFinder;
+
+/**
+ * Local rewrites of short instruction windows, driven by a single table of rules. Each rule is
+ * an InstructionFinder pattern plus a rewrite that either declines the match or supplies the
+ * code replacing it; the table is applied until no rule fires. The rules cover algebraic
+ * identities, strength reduction, increments in place and merged, stores of a local into
+ * itself, store-then-load pairs and the shortest encoding of every constant push.
+ */
+public class PeepholePass implements OptimizationPass {
+
+    static final String NAME = "peephole";
+
+    /*
+     * the code replacing a match, an empty list to delete it, or null to leave it alone
+     */
+    interface Rewrite {
+        InstructionList apply(InstructionHandle[] match, ConstantPoolGen cpgen);
+    }
+
+    static final class Rule {
+        final String name;
+        final String pattern;
+        final Rewrite rewrite;
+
+        Rule(String name, String pattern, Rewrite rewrite) {
+            this.name = name;
+            this.pattern = pattern;
+            this.rewrite = rewrite;
+        }
+    }
+
+    // any instruction pushing a constant, whatever its type
+    private static final String PUSH = "(ConstantPushInstruction|ldc|ldc_w|ldc2_w)";
+
+    private static final List<Rule> RULES = new ArrayList<>();
+
+    static {
+        rule("int-identity", PUSH + " (iadd|isub|imul|idiv|iand|ior|ixor|ishl|ishr|iushr)",
+                PeepholePass::intIdentity);
+        rule("int-identity-left", PUSH + " iload (iadd|imul|iand|ior|ixor)", PeepholePass::intIdentityLeft);
+        rule("long-identity", PUSH + " (ladd|lsub|lmul|ldiv|land|lor|lxor|lshl|lshr|lushr)",
+                PeepholePass::longIdentity);
+        rule("float-identity", PUSH + " (fadd|fsub|fmul|fdiv|dadd|dsub|dmul|ddiv)", PeepholePass::floatIdentity);
+        rule("multiply-power-of-two", PUSH + " (imul|lmul)", PeepholePass::multiplyByPowerOfTwo);
+        rule("divide-power-of-two", PUSH + " (idiv|irem)", PeepholePass::divideByPowerOfTwo);
+        rule("increment", "iload " + PUSH + " (iadd|isub) istore", PeepholePass::increment);
+        rule("increment-left", PUSH + " iload iadd istore", PeepholePass::incrementLeft);
+        rule("merge-increments", "iinc iinc", PeepholePass::mergeIncrements);
+        rule("self-store", "LoadInstruction StoreInstruction", PeepholePass::selfStore);
+        rule("store-load", "StoreInstruction LoadInstruction", PeepholePass::storeLoad);
+        rule("store-copy", "(dup|dup2) StoreInstruction (pop|pop2)", PeepholePass::storeCopy);
+        rule("shortest-constant", PUSH, PeepholePass::shortestConstant);
+    }
+
+    static void rule(String name, String pattern, Rewrite rewrite) {
+        RULES.add(new Rule(name, pattern, rewrite));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        int applied = 0;
+        int round;
+        do {
+            round = 0;
+            for (Rule rule : RULES) {
+                round += apply(rule, ir, cpgen);
+            }
+            applied += round;
+        } while (round > 0);
+        if (applied == 0) {
+            return false;
+        }
+        ir.getMetrics().current().appliedRewrites(applied);
+        ir.removeDiscardedValues();
+        // self-store deletes stores and store-load moves them, so debug entries may have outlived them
+        ir.removeStaleLocalVariables();
+        return true;
+    }
+
+    /*
+     * rewrite every match of one rule, skipping matches an earlier rewrite has disturbed;
+     * returns the number of rewrites
+     */
+    private static int apply(Rule rule, MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionFinder finder = new InstructionFinder(ir.getInstructionList());
+        List<InstructionHandle[]> matches = new ArrayList<>();
+        for (Iterator<?> it = finder.search(rule.pattern); it.hasNext(); ) {
+            matches.add((InstructionHandle[]) it.next());
+        }
+        int applied = 0;
+        for (InstructionHandle[] match : matches) {
+            InstructionHandle last = match[match.length - 1];
+            if (!isIntact(match) || !MethodIR.isStraightLine(match[0], last)) {
+                continue;
+            }
+            InstructionList code = rule.rewrite.apply(match, cpgen);
+            if (code != null) {
+                ir.replace(match[0], last, code);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private static boolean isIntact(InstructionHandle[] match) {
+        for (int i = 0; i < match.length; i++) {
+            if (match[i].getInstruction() == null || (i > 0 && match[i - 1].getNext() != match[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // x + 0, x - 0, x * 1, x / 1, x & -1, x | 0, x ^ 0 and shifts by a multiple of 32 are x;
+    // x * 0 and x & 0 are 0 and x | -1 is -1
+    private static InstructionList intIdentity(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Integer c = intConstant(match[0], cpgen);
+        if (c == null) {
+            return null;
+        }
+        switch (match[1].getInstruction().getOpcode()) {
+            case Constants.IADD: case Constants.ISUB: case Constants.IXOR:
+                return c == 0 ? code() : null;
+            case Constants.IOR:
+                return c == 0 ? code() : c == -1 ? code(new POP(), new ICONST(-1)) : null;
+            case Constants.IMUL:
+                return c == 1 ? code() : c == 0 ? code(new POP(), new ICONST(0)) : null;
+            case Constants.IDIV:
+                return c == 1 ? code() : null;
+            case Constants.IAND:
+                return c == -1 ? code() : c == 0 ? code(new POP(), new ICONST(0)) : null;
+            default:
+                return (c & 31) == 0 ? code() : null;
+        }
+    }
+
+    // 0 + x, 1 * x, -1 & x, 0 | x and 0 ^ x are x; 0 * x and 0 & x are 0
+    private static InstructionList intIdentityLeft(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Integer c = intConstant(match[0], cpgen);
+        if (c == null) {
+            return null;
+        }
+        Instruction load = match[1].getInstruction().copy();
+        switch (match[2].getInstruction().getOpcode()) {
+            case Constants.IMUL:
+                return c == 1 ? code(load) : c == 0 ? code(new ICONST(0)) : null;
+            case Constants.IAND:
+                return c == -1 ? code(load) : c == 0 ? code(new ICONST(0)) : null;
+            default:
+                return c == 0 ? code(load) : null;
+        }
+    }
+
+    private static InstructionList longIdentity(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Object value = constant(match[0], cpgen);
+        short op = match[1].getInstruction().getOpcode();
+        if (op == Constants.LSHL || op == Constants.LSHR || op == Constants.LUSHR) {
+            return value instanceof Integer && ((Integer) value & 63) == 0 ? code() : null;
+        }
+        if (!(value instanceof Long)) {
+            return null;
+        }
+        long c = (Long) value;
+        switch (op) {
+            case Constants.LMUL:
+                return c == 1 ? code() : c == 0 ? code(new POP2(), new LCONST(0)) : null;
+            case Constants.LDIV:
+                return c == 1 ? code() : null;
+            case Constants.LAND:
+                return c == -1 ? code() : c == 0 ? code(new POP2(), new LCONST(0)) : null;
+            case Constants.LOR:
+                return c == 0 ? code() : c == -1 ? code(new POP2(), ConstantPropagation.push(-1L, cpgen)) : null;
+            default:
+                return c == 0 ? code() : null;
+        }
+    }
+
+    /*
+     * x * 1, x / 1, x - +0.0 and x + -0.0 are exactly x for every x, including NaN and -0.0;
+     * x + 0.0 and x * 0 are not, since -0.0 + 0.0 is +0.0 and NaN * 0 is NaN
+     */
+    private static InstructionList floatIdentity(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Object value = constant(match[0], cpgen);
+        if (!(value instanceof Float) && !(value instanceof Double)) {
+            return null;
+        }
+        double c = ((Number) value).doubleValue();
+        boolean negative = Double.doubleToRawLongBits(c) < 0;
+        switch (match[1].getInstruction().getOpcode()) {
+            case Constants.FMUL: case Constants.FDIV: case Constants.DMUL: case Constants.DDIV:
+                return c == 1 ? code() : null;
+            case Constants.FSUB: case Constants.DSUB:
+                return c == 0 && !negative ? code() : null;
+            default:
+                return c == 0 && negative ? code() : null;
+        }
+    }
+
+    // x * 2^k is x << k, for ints and longs alike
+    private static InstructionList multiplyByPowerOfTwo(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Object value = constant(match[0], cpgen);
+        boolean isLong = match[1].getInstruction().getOpcode() == Constants.LMUL;
+        if (!(value instanceof Number) || (value instanceof Long) != isLong) {
+            return null;
+        }
+        int k = log2(((Number) value).longValue());
+        if (k <= 0) {
+            return null;
+        }
+        return code(ConstantPropagation.push(k, cpgen), isLong ? new LSHL() : new ISHL());
+    }
+
+    /*
+     * x / 2^k is x >> k and x % 2^k is x & (2^k - 1), but only when x cannot be negative:
+     * signed division rounds towards zero where the shift rounds down
+     */
+    private static InstructionList divideByPowerOfTwo(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Integer c = intConstant(match[0], cpgen);
+        int k = c == null ? -1 : log2(c);
+        InstructionHandle dividend = match[0].getPrev();
+        if (k <= 0 || dividend == null || !MethodIR.isStraightLine(dividend, match[0])
+                || !isNonNegative(dividend, cpgen)) {
+            return null;
+        }
+        if (match[1].getInstruction().getOpcode() == Constants.IDIV) {
+            return code(ConstantPropagation.push(k, cpgen), new ISHR());
+        }
+        return code(ConstantPropagation.push(c - 1, cpgen), new IAND());
+    }
+
+    /*
+     * true if the int ih leaves on the stack is known to be zero or more from ih alone, or from
+     * ih and the constant operand right before it
+     */
+    private static boolean isNonNegative(InstructionHandle ih, ConstantPoolGen cpgen) {
+        Instruction inst = ih.getInstruction();
+        if (inst instanceof ARRAYLENGTH || inst instanceof CALOAD || inst instanceof I2C) {
+            return true;
+        }
+        Integer c = intConstant(ih, cpgen);
+        if (c != null) {
+            return c >= 0;
+        }
+        InstructionHandle operand = ih.getPrev();
+        if (!(inst instanceof IUSHR || inst instanceof IAND) || operand == null
+                || !MethodIR.isStraightLine(operand, ih)) {
+            return false;
+        }
+        c = intConstant(operand, cpgen);
+        if (c == null) {
+            return false;
+        }
+        return inst instanceof IUSHR ? (c & 31) != 0 : c >= 0;
+    }
+
+    // iload n; push c; iadd; istore n is iinc n c
+    private static InstructionList increment(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Integer c = intConstant(match[1], cpgen);
+        if (c == null) {
+            return null;
+        }
+        boolean subtract = match[2].getInstruction().getOpcode() == Constants.ISUB;
+        return iinc(match[0], match[3], subtract ? -(long) c : c);
+    }
+
+    private static InstructionList incrementLeft(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Integer c = intConstant(match[0], cpgen);
+        return c == null ? null : iinc(match[1], match[3], c);
+    }
+
+    private static InstructionList iinc(InstructionHandle load, InstructionHandle store, long delta) {
+        int n = ((LocalVariableInstruction) load.getInstruction()).getIndex();
+        if (n != ((LocalVariableInstruction) store.getInstruction()).getIndex()
+                || delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+            return null;
+        }
+        return code(new IINC(n, (int) delta));
+    }
+
+    // iinc n a; iinc n b is iinc n a+b, and nothing at all if that is 0
+    private static InstructionList mergeIncrements(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        IINC first = (IINC) match[0].getInstruction();
+        IINC second = (IINC) match[1].getInstruction();
+        if (first.getIndex() != second.getIndex()) {
+            return null;
+        }
+        long delta = (long) first.getIncrement() + second.getIncrement();
+        return delta == 0 ? new InstructionList() : iinc(match[0], match[1], delta);
+    }
+
+    // xload n; xstore n stores back what n already holds
+    private static InstructionList selfStore(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        LoadInstruction load = (LoadInstruction) match[0].getInstruction();
+        StoreInstruction store = (StoreInstruction) match[1].getInstruction();
+        if (load.getIndex() != store.getIndex() || !load.getType(cpgen).equals(store.getType(cpgen))) {
+            return null;
+        }
+        return new InstructionList();
+    }
+
+    /*
+     * xstore n; xload n keeps a copy on the stack instead of reading it back, which is never
+     * longer and leaves the store dead if nothing else reads n. The local's debug range then
+     * starts after the new store; once dead store elimination deletes that store the range
+     * is stale, even if a narrower local reuses n, and MethodIR drops it
+     */
+    private static InstructionList storeLoad(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        StoreInstruction store = (StoreInstruction) match[0].getInstruction();
+        LoadInstruction load = (LoadInstruction) match[1].getInstruction();
+        Type type = store.getType(cpgen);
+        if (store.getIndex() != load.getIndex() || !type.equals(load.getType(cpgen))) {
+            return null;
+        }
+        return code(type.getSize() == 2 ? new DUP2() : new DUP(), store.copy());
+    }
+
+    // dup; xstore n; pop stores the value and drops the copy, as xstore n alone does
+    private static InstructionList storeCopy(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        int words = ((StoreInstruction) match[1].getInstruction()).getType(cpgen).getSize();
+        boolean wide = match[0].getInstruction() instanceof DUP2;
+        if (wide != (words == 2) || wide != (match[2].getInstruction() instanceof POP2)) {
+            return null;
+        }
+        return code(match[1].getInstruction().copy());
+    }
+
+    private static InstructionList shortestConstant(InstructionHandle[] match, ConstantPoolGen cpgen) {
+        Object value = constant(match[0], cpgen);
+        if (value == null) {
+            return null;
+        }
+        Instruction shortest = ConstantPropagation.push(value, cpgen);
+        return shortest.getOpcode() == match[0].getInstruction().getOpcode() ? null : code(shortest);
+    }
+
+    /*
+     * the number ih pushes, or null if it pushes something else
+     */
+    private static Object constant(InstructionHandle ih, ConstantPoolGen cpgen) {
+        Instruction inst = ih.getInstruction();
+        if (inst instanceof ConstantPushInstruction) {
+            return ((ConstantPushInstruction) inst).getValue();
+        }
+        if (inst instanceof LDC) {
+            Object value = ((LDC) inst).getValue(cpgen);
+            return value instanceof Number ? value : null;
+        }
+        if (inst instanceof LDC2_W) {
+            return ((LDC2_W) inst).getValue(cpgen);
+        }
+        return null;
+    }
+
+    private static Integer intConstant(InstructionHandle ih, ConstantPoolGen cpgen) {
+        Object value = constant(ih, cpgen);
+        return value instanceof Integer ? (Integer) value : null;
+    }
+
+    /*
+     * k if c is 2^k, -1 if c is not a positive power of two
+     */
+    private static int log2(long c) {
+        return c > 0 && (c & (c - 1)) == 0 ? Long.numberOfTrailingZeros(c) : -1;
+    }
+
+    private static InstructionList code(Instruction... instructions) {
+        InstructionList il = new InstructionList();
+        for (Instruction inst : instructions) {
+            il.append(inst);
+        }
+        return il;
+    }
+}
@@ -0,0 +1,56 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The hot methods of a profile written by ProfileRuntime: those whose invocations and back
+ * edges taken add up to at least the threshold. Methods the profile does not mention never
+ * ran and are cold.
+ */
+public class Profile {
+
+    static final long DEFAULT_THRESHOLD = 1000;
+
+    // "className methodNameAndSignature"
+    private final Set<String> hot = new TreeSet<>();
+
+    private Profile() {
+    }
+
+    public static Profile read(Path file, long threshold) throws IOException {
+        Profile profile = new Profile();
+        for (Map.Entry<String, long[]> e : ProfileRuntime.read(file).entrySet()) {
+            if (e.getValue()[0] + e.getValue()[1] >= threshold) {
+                profile.hot.add(e.getKey());
+            }
+        }
+        return profile;
+    }
+
+    public boolean isHot(String className, String method) {
+        return hot.contains(className + " " + method);
+    }
+
+    public int hotCount() {
+        return hot.size();
+    }
+
+    /*
+     * hash of the hot set, which is all of the profile that changes the output, for the
+     * incremental cache key
+     */
+    String digest() {
+        MessageDigest digest = ClassFiles.sha256();
+        for (String method : hot) {
+            digest.update(method.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return ClassFiles.hex(digest.digest());
+    }
+}
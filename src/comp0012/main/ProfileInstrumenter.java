@@ -0,0 +1,141 @@
+package comp0012.main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Counts what runs in the classes of an -instrument build: every method bumps its invocation
+ * counter on entry and its back edge counter before every backward jump. The counters are a
+ * long[] in a synthetic static field of the class, handed out by ProfileRuntime from the
+ * static initialiser, so one increment is a getstatic and an array update.
+ */
+final class ProfileInstrumenter {
+
+    static final String FIELD = "$comp0012$profile";
+    private static final String RUNTIME = ProfileRuntime.class.getName();
+    private static final ArrayType COUNTERS = new ArrayType(Type.LONG, 1);
+
+    // longest method list a CONSTANT_Utf8 can hold
+    private static final int UTF8_LIMIT = 65535;
+
+    private ProfileInstrumenter() {
+    }
+
+    /*
+     * instrument the methods of one class after its passes have run; returns false, leaving the
+     * class alone, for interfaces, whose fields must be public and final, and for classes
+     * already instrumented
+     */
+    static boolean instrument(ClassGen gen, List<MethodIR> methods) {
+        if (gen.isInterface() || gen.containsField(FIELD) != null) {
+            return false;
+        }
+        List<MethodIR> counted = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (MethodIR ir : methods) {
+            if (ir.getInstructionList() != null) {
+                counted.add(ir);
+                keys.add(key(ir.getMethodGen()));
+            }
+        }
+        String methodList = String.join("\n", keys);
+        if (counted.isEmpty() || methodList.getBytes(StandardCharsets.UTF_8).length > UTF8_LIMIT) {
+            return false;
+        }
+
+        ConstantPoolGen cpgen = gen.getConstantPool();
+        FieldGen field = new FieldGen(Constants.ACC_PRIVATE | Constants.ACC_STATIC | Constants.ACC_SYNTHETIC,
+                COUNTERS, FIELD, cpgen);
+        gen.addField(field.getField());
+        int fieldRef = cpgen.addFieldref(gen.getClassName(), FIELD, COUNTERS.getSignature());
+
+        MethodIR clinit = null;
+        for (int i = 0; i < counted.size(); i++) {
+            MethodIR ir = counted.get(i);
+            InstructionList il = ir.getInstructionList();
+            il.setPositions();
+            List<InstructionHandle> backEdges = new ArrayList<>();
+            for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+                if (ih.getInstruction() instanceof BranchInstruction && isBackward(ih)) {
+                    backEdges.add(ih);
+                }
+            }
+            for (InstructionHandle ih : backEdges) {
+                ir.insertBefore(ih, increment(cpgen, fieldRef, 2 * i + 1));
+            }
+            // before the first instruction but outside any loop or try block starting there
+            ir.insertAbove(il.getStart(), increment(cpgen, fieldRef, 2 * i));
+            if (ir.getName().equals(Constants.STATIC_INITIALIZER_NAME)) {
+                clinit = ir;
+            }
+        }
+
+        InstructionList registration = register(gen, cpgen, fieldRef, methodList);
+        if (clinit != null) {
+            clinit.insertAbove(clinit.getInstructionList().getStart(), registration);
+        } else {
+            registration.append(new RETURN());
+            MethodGen mg = new MethodGen(Constants.ACC_STATIC, Type.VOID, Type.NO_ARGS, new String[0],
+                    Constants.STATIC_INITIALIZER_NAME, gen.getClassName(), registration, cpgen);
+            mg.setMaxStack();
+            mg.setMaxLocals();
+            gen.addMethod(mg.getMethod());
+        }
+        return true;
+    }
+
+    /*
+     * the name a method goes by in the profile
+     */
+    static String key(MethodGen mg) {
+        return mg.getName() + mg.getSignature();
+    }
+
+    /*
+     * a jump to itself or to an earlier instruction; switches count too, as a case may lead
+     * back into a loop
+     */
+    private static boolean isBackward(InstructionHandle ih) {
+        BranchInstruction branch = (BranchInstruction) ih.getInstruction();
+        if (branch.getTarget().getPosition() <= ih.getPosition()) {
+            return true;
+        }
+        if (branch instanceof Select) {
+            for (InstructionHandle target : ((Select) branch).getTargets()) {
+                if (target.getPosition() <= ih.getPosition()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * counters[slot]++, leaving the operand stack as it was
+     */
+    private static InstructionList increment(ConstantPoolGen cpgen, int fieldRef, int slot) {
+        InstructionList code = new InstructionList();
+        code.append(new GETSTATIC(fieldRef));
+        code.append(ConstantPropagation.push(slot, cpgen));
+        code.append(new DUP2());
+        code.append(new LALOAD());
+        code.append(new LCONST(1));
+        code.append(new LADD());
+        code.append(new LASTORE());
+        return code;
+    }
+
+    private static InstructionList register(ClassGen gen, ConstantPoolGen cpgen, int fieldRef, String methodList) {
+        InstructionList code = new InstructionList();
+        code.append(new LDC(cpgen.addString(gen.getClassName())));
+        code.append(new LDC(cpgen.addString(methodList)));
+        code.append(new INVOKESTATIC(cpgen.addMethodref(RUNTIME, "register",
+                Type.getMethodSignature(COUNTERS, new Type[] { Type.STRING, Type.STRING }))));
+        code.append(new PUTSTATIC(fieldRef));
+        return code;
+    }
+}
@@ -0,0 +1,126 @@
+package comp0012.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters of the classes Main -instrument wrote. Each instrumented class registers its methods
+ * from its static initialiser and bumps its own counters, an invocation count and a back edge
+ * count per method. At exit the counts are added to the profile file named by the
+ * comp0012.profile system property, so the runs of several JVMs, e.g. forked test
+ * classes, add up. Main copies this class file alone into instrumented output, so it must
+ * not use any other class of the optimiser nor have nested classes of its own.
+ */
+public final class ProfileRuntime {
+
+    public static final String FILE_PROPERTY = "comp0012.profile";
+    static final String DEFAULT_FILE = "comp0012-profile.txt";
+
+    // one entry per register() call, in step; a class loaded by several loaders registers once
+    // per loader. Parallel lists rather than a nested class, which would be a second class file
+    private static final List<String> CLASSES = new ArrayList<>();
+    private static final List<String[]> METHODS = new ArrayList<>();
+    private static final List<long[]> COUNTERS = new ArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(ProfileRuntime::dumpQuietly, "profile-dump"));
+    }
+
+    private ProfileRuntime() {
+    }
+
+    /*
+     * the counters of a class whose methods, name and signature, are separated by newlines:
+     * invocations of method i at 2i, back edges taken at 2i + 1. Increments are not atomic;
+     * a lost update now and then does not change whether a method is hot.
+     */
+    public static synchronized long[] register(String className, String methods) {
+        String[] names = methods.split("\n");
+        long[] counters = new long[names.length * 2];
+        CLASSES.add(className);
+        METHODS.add(names);
+        COUNTERS.add(counters);
+        return counters;
+    }
+
+    /*
+     * add the counts so far to the profile file, e.g. before a long-running process is killed
+     */
+    public static synchronized void dump() throws IOException {
+        if (CLASSES.isEmpty()) {
+            // loaded by the optimiser reading a profile, not by instrumented code
+            return;
+        }
+        Path file = Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE)).toAbsolutePath();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path lock = file.resolveSibling(file.getFileName() + ".lock");
+        try (FileChannel channel = FileChannel.open(lock, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // released when the channel closes
+            channel.lock();
+            Map<String, long[]> counts = read(file);
+            for (int r = 0; r < CLASSES.size(); r++) {
+                String[] methods = METHODS.get(r);
+                long[] counters = COUNTERS.get(r);
+                for (int i = 0; i < methods.length; i++) {
+                    long[] c = counts.computeIfAbsent(CLASSES.get(r) + " " + methods[i], k -> new long[2]);
+                    c[0] += counters[2 * i];
+                    c[1] += counters[2 * i + 1];
+                }
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> e : counts.entrySet()) {
+                    out.write(e.getValue()[0] + " " + e.getValue()[1] + " " + e.getKey());
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // counted once; a later dump adds only what runs after this one
+            for (long[] counters : COUNTERS) {
+                Arrays.fill(counters, 0);
+            }
+        }
+    }
+
+    private static void dumpQuietly() {
+        try {
+            dump();
+        } catch (IOException e) {
+            System.err.println("Cannot write profile: " + e);
+        }
+    }
+
+    /*
+     * lines of "invocations backEdges className methodNameAndSignature", keyed by the last two
+     */
+    static Map<String, long[]> read(Path file) throws IOException {
+        Map<String, long[]> counts = new TreeMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length == 3) {
+                    counts.put(fields[2], new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // the first run to write this profile
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,234 @@
+package comp0012.main;
+
+import java.util.Iterator;
+
+import org.apache.bcel.generic.*;
+import org.apache.bcel.util.InstructionFinder;
+
+/**
+ * Task 1: folds a constant push, constant push, arithmetic operation sequence into a single
+ * push of the result, for int, long, float and double operands.
+ */
+public class SimpleFoldingPass implements OptimizationPass {
+
+    static final String NAME = "simple";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /*
+     * method to implement task1 on the handout, completing simple variable folding
+     * as required
+     */
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        boolean modified = false;
+        boolean changed;
+        do {
+            changed = simpleInt(ir, cpgen);
+            changed |= simpleLong(ir, cpgen);
+            changed |= simpleFloat(ir, cpgen);
+            changed |= simpleDouble(ir, cpgen);
+            modified |= changed;
+        } while (changed);
+        return modified;
+    }
+
+    // task1 helper method
+    boolean simpleInt(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionFinder finder = new InstructionFinder(ir.getInstructionList());
+        String pattern = "(ICONST|BIPUSH|SIPUSH|LDC) (ICONST|BIPUSH|SIPUSH|LDC) (IADD|ISUB|IMUL|IDIV)";
+        boolean changed = false;
+
+        for (Iterator<InstructionHandle[]> i = finder.search(pattern); i.hasNext();) {
+            InstructionHandle[] match = i.next();
+            Object o1 = getConstant(match[0].getInstruction(), cpgen, int.class);
+            Object o2 = getConstant(match[1].getInstruction(), cpgen, int.class);
+            if (o1 == null || o2 == null || !MethodIR.isStraightLine(match[0], match[2]))
+                continue;
+            int c1 = (int) o1;
+            int c2 = (int) o2;
+
+            int result = 0;
+            switch (match[2].getInstruction().getName()) {
+                case "iadd":
+                    result = c1 + c2;
+                    break;
+                case "isub":
+                    result = c1 - c2;
+                    break;
+                case "imul":
+                    result = c1 * c2;
+                    break;
+                case "idiv":
+                    // leave the ArithmeticException to happen at run time
+                    if (c2 == 0)
+                        continue;
+                    result = c1 / c2;
+                    break;
+            }
+
+            Instruction inst = null;
+            if (result >= -128 && result <= 127) {
+                inst = new BIPUSH((byte) result);
+            } else if (result >= -32768 && result <= 32767) {
+                inst = new SIPUSH((short) result);
+            } else {
+                inst = new LDC(cpgen.addInteger(result));
+            }
+            replaceInst(match, inst, ir);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // task1 helper method
+    boolean simpleLong(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionFinder finder = new InstructionFinder(ir.getInstructionList());
+        String pattern = "(LCONST|LDC2_W) (LCONST|LDC2_W) (LADD|LSUB|LMUL|LDIV)";
+        boolean changed = false;
+
+        for (Iterator<InstructionHandle[]> i = finder.search(pattern); i.hasNext();) {
+            InstructionHandle[] match = i.next();
+            Object o1 = getConstant(match[0].getInstruction(), cpgen, long.class);
+            Object o2 = getConstant(match[1].getInstruction(), cpgen, long.class);
+            if (o1 == null || o2 == null || !MethodIR.isStraightLine(match[0], match[2]))
+                continue;
+            long l1 = (long) o1;
+            long l2 = (long) o2;
+
+            long result = 0;
+            switch (match[2].getInstruction().getName()) {
+                case "ladd":
+                    result = l1 + l2;
+                    break;
+                case "lsub":
+                    result = l1 - l2;
+                    break;
+                case "lmul":
+                    result = l1 * l2;
+                    break;
+                case "ldiv":
+                    if (l2 == 0)
+                        continue;
+                    result = l1 / l2;
+                    break;
+            }
+
+            Instruction inst = new LDC2_W(cpgen.addLong(result));
+            replaceInst(match, inst, ir);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // task1 helper method
+    boolean simpleFloat(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionFinder finder = new InstructionFinder(ir.getInstructionList());
+        String pattern = "(FCONST|LDC) (FCONST|LDC) (FADD|FSUB|FMUL|FDIV)";
+        boolean changed = false;
+
+        for (Iterator<InstructionHandle[]> i = finder.search(pattern); i.hasNext();) {
+            InstructionHandle[] match = i.next();
+            Object o1 = getConstant(match[0].getInstruction(), cpgen, float.class);
+            Object o2 = getConstant(match[1].getInstruction(), cpgen, float.class);
+            if (o1 == null || o2 == null || !MethodIR.isStraightLine(match[0], match[2]))
+                continue;
+            float f1 = (float) o1;
+            float f2 = (float) o2;
+
+            float result = 0;
+            switch (match[2].getInstruction().getName()) {
+                case "fadd":
+                    result = f1 + f2;
+                    break;
+                case "fsub":
+                    result = f1 - f2;
+                    break;
+                case "fmul":
+                    result = f1 * f2;
+                    break;
+                case "fdiv":
+                    result = f1 / f2;
+                    break;
+            }
+
+            Instruction inst = new LDC_W(cpgen.addFloat(result));
+            replaceInst(match, inst, ir);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // task1 helper method
+    boolean simpleDouble(MethodIR ir, ConstantPoolGen cpgen) {
+        InstructionFinder finder = new InstructionFinder(ir.getInstructionList());
+        String pattern = "(DCONST|LDC2_W) (DCONST|LDC2_W) (DADD|DSUB|DMUL|DDIV)";
+        boolean changed = false;
+
+        for (Iterator<InstructionHandle[]> i = finder.search(pattern); i.hasNext();) {
+            InstructionHandle[] match = i.next();
+            Object o1 = getConstant(match[0].getInstruction(), cpgen, double.class);
+            Object o2 = getConstant(match[1].getInstruction(), cpgen, double.class);
+            if (o1 == null || o2 == null || !MethodIR.isStraightLine(match[0], match[2]))
+                continue;
+            double d1 = (double) o1;
+            double d2 = (double) o2;
+
+            // Perform folding based on operation
+            double result = 0;
+            switch (match[2].getInstruction().getName()) {
+                case "dadd":
+                    result = d1 + d2;
+                    break;
+                case "dsub":
+                    result = d1 - d2;
+                    break;
+                case "dmul":
+                    result = d1 * d2;
+                    break;
+                case "ddiv":
+                    result = d1 / d2;
+                    break;
+            }
+
+            Instruction inst = new LDC2_W(cpgen.addDouble(result));
+            replaceInst(match, inst, ir);
+            changed = true;
+        }
+        return changed;
+    }
+
+    // task1 helper method: the value pushed by a constant instruction of the given type, or null
+    // if it pushes something else (an LDC of a String or of another primitive type)
+    private <T> Object getConstant(org.apache.bcel.generic.Instruction inst, ConstantPoolGen cpgen,
+            Class<T> constantType) {
+        Object value = null;
+        if (inst instanceof ConstantPushInstruction) {
+            value = ((ConstantPushInstruction) inst).getValue();
+        } else if (inst instanceof LDC) {
+            value = ((LDC) inst).getValue(cpgen);
+        } else if (inst instanceof LDC2_W) {
+            value = ((LDC2_W) inst).getValue(cpgen);
+        }
+
+        if (constantType == int.class && value instanceof Integer) {
+            return value;
+        } else if (constantType == long.class && value instanceof Long) {
+            return value;
+        } else if (constantType == float.class && value instanceof Float) {
+            return value;
+        } else if (constantType == double.class && value instanceof Double) {
+            return value;
+        }
+        return null;
+    }
+
+    // task1 helper method: collapse the matched push, push, operation into the folded constant
+    private void replaceInst(InstructionHandle[] toReplace, Instruction replacement, MethodIR ir) {
+        ir.replace(toReplace[0], toReplace[toReplace.length - 1], replacement);
+        ir.getMetrics().current().foldedConstants(1);
+    }
+}
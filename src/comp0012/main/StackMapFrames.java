@@ -0,0 +1,458 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.StackMapTable;
+import org.apache.bcel.classfile.Unknown;
+import org.apache.bcel.generic.*;
+
+/**
+ * The StackMapTable of one method decoded into full frames. Every frame is anchored on an
+ * instruction handle as an InstructionTargeter, so it follows its instruction through edits
+ * exactly like a branch would, and is re-encoded at the new offsets when the method is written.
+ */
+class StackMapFrames {
+
+    // verification type tags, JVMS 4.7.4
+    static final byte TOP = 0;
+    static final byte INTEGER = 1;
+    static final byte FLOAT = 2;
+    static final byte DOUBLE = 3;
+    static final byte LONG = 4;
+    static final byte NULL = 5;
+    static final byte UNINITIALIZED_THIS = 6;
+    static final byte OBJECT = 7;
+    static final byte UNINITIALIZED = 8;
+
+    static final String ATTRIBUTE_NAME = "StackMapTable";
+
+    /*
+     * a verification type; objects carry their internal class name rather than a constant pool
+     * index, uninitialized objects carry the anchor of their NEW instruction
+     */
+    static final class VType {
+        static final VType TOP_TYPE = new VType(TOP, null, null);
+        static final VType INT_TYPE = new VType(INTEGER, null, null);
+        static final VType FLOAT_TYPE = new VType(FLOAT, null, null);
+        static final VType DOUBLE_TYPE = new VType(DOUBLE, null, null);
+        static final VType LONG_TYPE = new VType(LONG, null, null);
+        static final VType NULL_TYPE = new VType(NULL, null, null);
+        static final VType UNINITIALIZED_THIS_TYPE = new VType(UNINITIALIZED_THIS, null, null);
+
+        final byte tag;
+        final String className;
+        final Anchor newSite;
+
+        private VType(byte tag, String className, Anchor newSite) {
+            this.tag = tag;
+            this.className = className;
+            this.newSite = newSite;
+        }
+
+        static VType object(String internalName) {
+            return new VType(OBJECT, internalName, null);
+        }
+
+        static VType of(Type type) {
+            switch (type.getType()) {
+                case Constants.T_BOOLEAN:
+                case Constants.T_BYTE:
+                case Constants.T_CHAR:
+                case Constants.T_SHORT:
+                case Constants.T_INT:
+                    return INT_TYPE;
+                case Constants.T_FLOAT:
+                    return FLOAT_TYPE;
+                case Constants.T_LONG:
+                    return LONG_TYPE;
+                case Constants.T_DOUBLE:
+                    return DOUBLE_TYPE;
+                case Constants.T_ARRAY:
+                    return object(type.getSignature());
+                default:
+                    return object(((ObjectType) type).getClassName().replace('.', '/'));
+            }
+        }
+
+        boolean isWide() {
+            return tag == LONG || tag == DOUBLE;
+        }
+    }
+
+    static final class Anchor implements InstructionTargeter {
+        InstructionHandle handle;
+        final InstructionHandle original;
+
+        Anchor(InstructionHandle handle) {
+            this.handle = handle;
+            this.original = handle;
+            handle.addTargeter(this);
+        }
+
+        @Override
+        public boolean containsTarget(InstructionHandle ih) {
+            return handle == ih;
+        }
+
+        @Override
+        public void updateTarget(InstructionHandle oldIh, InstructionHandle newIh) {
+            if (handle == oldIh) {
+                oldIh.removeTargeter(this);
+                handle = newIh;
+                if (newIh != null) {
+                    newIh.addTargeter(this);
+                }
+            }
+        }
+    }
+
+    /*
+     * locals are indexed by slot; the second slot of a long or double holds TOP
+     */
+    static final class Frame {
+        final Anchor at;
+        VType[] locals;
+        VType[] stack;
+
+        Frame(Anchor at, VType[] locals, VType[] stack) {
+            this.at = at;
+            this.locals = locals;
+            this.stack = stack;
+        }
+    }
+
+    private final List<Frame> frames = new ArrayList<>();
+
+    private StackMapFrames() {
+    }
+
+    List<Frame> getFrames() {
+        return frames;
+    }
+
+    /*
+     * decode the method's StackMapTable, or return null if it has none
+     */
+    static StackMapFrames decode(MethodGen mg, ConstantPool cp) {
+        Attribute table = null;
+        for (Attribute a : mg.getCodeAttributes()) {
+            // as parsed, or as written by encode() into a MethodIR snapshot
+            if (a instanceof StackMapTable || (a instanceof Unknown && ATTRIBUTE_NAME.equals(((Unknown) a).getName()))) {
+                table = a;
+            }
+        }
+        InstructionList il = mg.getInstructionList();
+        if (table == null || il == null) {
+            return null;
+        }
+        il.setPositions();
+
+        StackMapFrames result = new StackMapFrames();
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            table.dump(new DataOutputStream(raw));
+            DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(raw.toByteArray()));
+            in.skipBytes(6); // attribute_name_index, attribute_length
+
+            List<VType> locals = initialLocals(mg);
+            int offset = -1;
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                int frameType = in.readUnsignedByte();
+                VType[] stack = new VType[0];
+                int delta;
+                if (frameType <= 63) {
+                    delta = frameType;
+                } else if (frameType <= 127) {
+                    delta = frameType - 64;
+                    stack = new VType[] { readType(in, cp, il) };
+                } else if (frameType == 247) {
+                    delta = in.readUnsignedShort();
+                    stack = new VType[] { readType(in, cp, il) };
+                } else if (frameType >= 248 && frameType <= 250) {
+                    delta = in.readUnsignedShort();
+                    locals = new ArrayList<>(locals.subList(0, locals.size() - (251 - frameType)));
+                } else if (frameType == 251) {
+                    delta = in.readUnsignedShort();
+                } else if (frameType >= 252 && frameType <= 254) {
+                    delta = in.readUnsignedShort();
+                    locals = new ArrayList<>(locals);
+                    for (int k = 0; k < frameType - 251; k++) {
+                        locals.add(readType(in, cp, il));
+                    }
+                } else if (frameType == 255) {
+                    delta = in.readUnsignedShort();
+                    int nLocals = in.readUnsignedShort();
+                    locals = new ArrayList<>();
+                    for (int k = 0; k < nLocals; k++) {
+                        locals.add(readType(in, cp, il));
+                    }
+                    int nStack = in.readUnsignedShort();
+                    stack = new VType[nStack];
+                    for (int k = 0; k < nStack; k++) {
+                        stack[k] = readType(in, cp, il);
+                    }
+                } else {
+                    return null; // reserved frame type
+                }
+                offset += delta + 1;
+                InstructionHandle ih = il.findHandle(offset);
+                if (ih == null) {
+                    return null;
+                }
+                result.frames.add(new Frame(new Anchor(ih), toSlots(locals), stack));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return result;
+    }
+
+    // the implicit frame at offset 0, against which the first compressed frame is decoded
+    private static List<VType> initialLocals(MethodGen mg) {
+        List<VType> locals = new ArrayList<>();
+        if (!mg.isStatic()) {
+            if ("<init>".equals(mg.getName()) && !"java.lang.Object".equals(mg.getClassName())) {
+                locals.add(VType.UNINITIALIZED_THIS_TYPE);
+            } else {
+                locals.add(VType.object(mg.getClassName().replace('.', '/')));
+            }
+        }
+        for (Type t : mg.getArgumentTypes()) {
+            locals.add(VType.of(t));
+        }
+        return locals;
+    }
+
+    private static VType readType(DataInputStream in, ConstantPool cp, InstructionList il) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TOP: return VType.TOP_TYPE;
+            case INTEGER: return VType.INT_TYPE;
+            case FLOAT: return VType.FLOAT_TYPE;
+            case DOUBLE: return VType.DOUBLE_TYPE;
+            case LONG: return VType.LONG_TYPE;
+            case NULL: return VType.NULL_TYPE;
+            case UNINITIALIZED_THIS: return VType.UNINITIALIZED_THIS_TYPE;
+            case OBJECT: {
+                ConstantClass c = (ConstantClass) cp.getConstant(in.readUnsignedShort());
+                return VType.object(((ConstantUtf8) cp.getConstant(c.getNameIndex())).getBytes());
+            }
+            case UNINITIALIZED: {
+                InstructionHandle site = il.findHandle(in.readUnsignedShort());
+                if (site == null) {
+                    throw new IOException("uninitialized type without a NEW instruction");
+                }
+                return new VType(UNINITIALIZED, null, new Anchor(site));
+            }
+            default:
+                throw new IOException("unknown verification type " + tag);
+        }
+    }
+
+    private static VType[] toSlots(List<VType> locals) {
+        List<VType> slots = new ArrayList<>();
+        for (VType t : locals) {
+            slots.add(t);
+            if (t.isWide()) {
+                slots.add(VType.TOP_TYPE);
+            }
+        }
+        return slots.toArray(new VType[0]);
+    }
+
+    /*
+     * every instruction the verifier needs a frame for: branch targets, handler entries and
+     * whatever follows an unconditional transfer of control
+     */
+    static Set<InstructionHandle> requiredFrames(InstructionList il, CodeExceptionGen[] handlers) {
+        Set<InstructionHandle> required = new HashSet<>();
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof BranchInstruction) {
+                required.add(((BranchInstruction) inst).getTarget());
+                if (inst instanceof Select) {
+                    required.addAll(Arrays.asList(((Select) inst).getTargets()));
+                }
+            }
+            if (ih.getNext() != null && (inst instanceof UnconditionalBranch || inst instanceof Select
+                    || inst instanceof ReturnInstruction || inst instanceof ATHROW || inst instanceof RET)) {
+                required.add(ih.getNext());
+            }
+        }
+        for (CodeExceptionGen handler : handlers) {
+            required.add(handler.getHandlerPC());
+        }
+        return required;
+    }
+
+    /*
+     * re-encode the frames as full frames at the current offsets of their anchors, keeping one
+     * frame per instruction. Returns null if some instruction that needs a frame has none, in
+     * which case the method cannot be written with valid frames.
+     */
+    Attribute encode(MethodGen mg, ConstantPoolGen cpgen) {
+        InstructionList il = mg.getInstructionList();
+        il.setPositions(true);
+        int maxLocals = mg.getMaxLocals();
+
+        Set<InstructionHandle> live = new HashSet<>();
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            live.add(ih);
+        }
+        Map<InstructionHandle, Frame> byHandle = new HashMap<>();
+        for (Frame f : frames) {
+            InstructionHandle ih = f.at.handle;
+            if (ih == null || !live.contains(ih)) {
+                continue;
+            }
+            // a frame that stayed on its own instruction wins over one redirected onto it
+            Frame other = byHandle.get(ih);
+            if (other == null || (other.at.original != ih && f.at.original == ih)) {
+                byHandle.put(ih, f);
+            }
+        }
+        if (!byHandle.keySet().containsAll(requiredFrames(il, mg.getExceptionHandlers()))) {
+            return null;
+        }
+
+        List<InstructionHandle> order = new ArrayList<>(byHandle.keySet());
+        order.sort((a, b) -> Integer.compare(a.getPosition(), b.getPosition()));
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(raw);
+            out.writeShort(order.size());
+            int last = -1;
+            for (InstructionHandle ih : order) {
+                Frame f = byHandle.get(ih);
+                List<VType> locals = new ArrayList<>();
+                int end = Math.min(f.locals.length, maxLocals);
+                while (end > 0 && f.locals[end - 1].tag == TOP) {
+                    end--;
+                }
+                for (int slot = 0; slot < end; slot += locals.get(locals.size() - 1).isWide() ? 2 : 1) {
+                    locals.add(f.locals[slot]);
+                }
+                out.writeByte(255);
+                out.writeShort(ih.getPosition() - last - 1);
+                out.writeShort(locals.size());
+                for (VType t : locals) {
+                    writeType(out, t, cpgen);
+                }
+                out.writeShort(f.stack.length);
+                for (VType t : f.stack) {
+                    writeType(out, t, cpgen);
+                }
+                last = ih.getPosition();
+            }
+            byte[] bytes = raw.toByteArray();
+            return new Unknown(cpgen.addUtf8(ATTRIBUTE_NAME), bytes.length, bytes, cpgen.getConstantPool());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeType(DataOutputStream out, VType t, ConstantPoolGen cpgen) throws IOException {
+        out.writeByte(t.tag);
+        if (t.tag == OBJECT) {
+            out.writeShort(cpgen.addClass(t.className));
+        } else if (t.tag == UNINITIALIZED) {
+            out.writeShort(t.newSite.handle.getPosition());
+        }
+    }
+
+    /*
+     * mark locals that are never read again as TOP, so frames stay valid once the stores that
+     * assigned them are gone; uninitialized objects keep their type for the constructor checks
+     */
+    void clearDeadLocals(Liveness liveness) {
+        for (Frame f : frames) {
+            if (f.at.handle == null) {
+                continue;
+            }
+            VType[] locals = f.locals.clone();
+            for (int slot = 0; slot < locals.length; slot++) {
+                VType t = locals[slot];
+                if (t.tag == UNINITIALIZED || t.tag == UNINITIALIZED_THIS || liveness.isLiveBefore(f.at.handle, slot)) {
+                    continue;
+                }
+                if (t.isWide() && slot + 1 < locals.length && liveness.isLiveBefore(f.at.handle, slot + 1)) {
+                    continue;
+                }
+                locals[slot] = VType.TOP_TYPE;
+            }
+            f.locals = locals;
+        }
+    }
+
+    /*
+     * give slot the type t in every frame anchored in scope, growing the frame's locals with TOP
+     * as needed; the second slot of a long or double becomes TOP
+     */
+    void declareLocal(Set<InstructionHandle> scope, int slot, VType t) {
+        int size = t.isWide() ? 2 : 1;
+        for (Frame f : frames) {
+            if (f.at.handle == null || !scope.contains(f.at.handle)) {
+                continue;
+            }
+            VType[] locals = Arrays.copyOf(f.locals, Math.max(f.locals.length, slot + size));
+            Arrays.fill(locals, f.locals.length, locals.length, VType.TOP_TYPE);
+            locals[slot] = t;
+            if (size == 2) {
+                locals[slot + 1] = VType.TOP_TYPE;
+            }
+            f.locals = locals;
+        }
+    }
+
+    /*
+     * give every copied instruction the frame of its original, if it has one; uninitialized
+     * objects created by a copied NEW refer to the copy
+     */
+    void copyFrames(Map<InstructionHandle, InstructionHandle> copies) {
+        for (Frame f : new ArrayList<>(frames)) {
+            InstructionHandle copy = f.at.handle == null ? null : copies.get(f.at.handle);
+            if (copy != null) {
+                frames.add(new Frame(new Anchor(copy), copyTypes(f.locals, copies), copyTypes(f.stack, copies)));
+            }
+        }
+    }
+
+    private static VType[] copyTypes(VType[] types, Map<InstructionHandle, InstructionHandle> copies) {
+        VType[] copied = types.clone();
+        for (int i = 0; i < copied.length; i++) {
+            VType t = copied[i];
+            if (t.tag == UNINITIALIZED && copies.containsKey(t.newSite.handle)) {
+                copied[i] = new VType(UNINITIALIZED, null, new Anchor(copies.get(t.newSite.handle)));
+            }
+        }
+        return copied;
+    }
+
+    /*
+     * drop every anchor, e.g. when the whole instruction list is being replaced
+     */
+    void dispose() {
+        for (Frame f : frames) {
+            if (f.at.handle != null) {
+                f.at.handle.removeTargeter(f.at);
+            }
+        }
+        frames.clear();
+    }
+}
@@ -0,0 +1,53 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Replaces reads of constant static final fields, in this class or any other class of the
+ * input, with a push of their value, so the other passes see the constant and the read costs
+ * neither a memory load nor a class initialisation check. Fields come from the run's
+ * SymbolIndex; a read is only replaced where skipping it cannot skip a static initialiser
+ * with visible effects.
+ */
+public class StaticFieldFoldingPass implements OptimizationPass {
+
+    static final String NAME = "fields";
+
+    private final SymbolIndex index;
+
+    public StaticFieldFoldingPass(OptimizationOptions options) {
+        this.index = options.getSymbols();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        MethodGen mg = ir.getMethodGen();
+        // the initialiser may read its own fields before setting them
+        boolean initialiser = mg.getName().equals(Constants.STATIC_INITIALIZER_NAME);
+        int folded = 0;
+        for (InstructionHandle ih = mg.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            if (!(ih.getInstruction() instanceof GETSTATIC)) {
+                continue;
+            }
+            SymbolIndex.ConstantField field = index.lookup((GETSTATIC) ih.getInstruction(), cpgen);
+            if (field == null || !index.isInitialised(field.className, mg.getClassName())
+                    || (initialiser && field.className.equals(mg.getClassName()))) {
+                continue;
+            }
+            ih.setInstruction(field.value instanceof String ? new LDC(cpgen.addString((String) field.value))
+                    : ConstantPropagation.push(field.value, cpgen));
+            folded++;
+        }
+        if (folded == 0) {
+            return false;
+        }
+        ir.getMetrics().current().foldedConstants(folded);
+        return true;
+    }
+}
@@ -0,0 +1,390 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+/**
+ * Evaluates string building on constants: a StringBuilder or StringBuffer created, fed only
+ * constants and turned into a string becomes a single ldc of the result, and a run of constant
+ * appends in a chain that goes on to append something else becomes one append of their joined
+ * text. String.valueOf, concat and length of constants are folded too, as is the
+ * invokedynamic that javac 9 and later emits for "a" + b once every operand is a constant.
+ */
+public class StringFoldingPass implements OptimizationPass {
+
+    static final String NAME = "strings";
+
+    private static final String STRING = "java.lang.String";
+    private static final String CONCAT_FACTORY = "java/lang/invoke/StringConcatFactory";
+    // placeholders in a makeConcatWithConstants recipe for an argument and a bootstrap constant
+    private static final char ARGUMENT = '\u0001';
+    private static final char BOOTSTRAP_CONSTANT = '\u0002';
+    // a CONSTANT_Utf8 holds at most this many bytes of modified UTF-8
+    private static final int MAX_UTF8_LENGTH = 65535;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean run(MethodIR ir, ConstantPoolGen cpgen) {
+        int folded = 0;
+        for (InstructionHandle ih = ir.getInstructionList().getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            InstructionHandle result = null;
+            if (inst instanceof NEW) {
+                result = foldBuilder(ir, ih, cpgen);
+            } else if (inst instanceof INVOKEVIRTUAL) {
+                result = isBuilder(owner((INVOKEVIRTUAL) inst, cpgen)) ? mergeAppends(ir, ih, cpgen)
+                        : foldStringMethod(ir, ih, cpgen);
+            } else if (inst instanceof INVOKESTATIC) {
+                result = foldValueOf(ir, ih, cpgen);
+            } else if (inst instanceof INVOKEDYNAMIC) {
+                result = foldConcat(ir, ih, cpgen);
+            }
+            if (result != null) {
+                ih = result;
+                folded++;
+            }
+        }
+        if (folded == 0) {
+            return false;
+        }
+        ir.getMetrics().current().foldedConstants(folded);
+        return true;
+    }
+
+    /*
+     * new B; dup; [constant;] invokespecial B.<init>; (constant; invokevirtual B.append)*, and
+     * then either invokevirtual B.toString, folded into an ldc of the text, or anything else,
+     * with the appends folded into the constructor; returns the last instruction rewritten
+     */
+    private static InstructionHandle foldBuilder(MethodIR ir, InstructionHandle ih, ConstantPoolGen cpgen) {
+        String builder = ((NEW) ih.getInstruction()).getLoadClassType(cpgen).getClassName();
+        InstructionHandle dup = ih.getNext();
+        if (!isBuilder(builder) || dup == null || !(dup.getInstruction() instanceof DUP)) {
+            return null;
+        }
+        InstructionHandle init = dup.getNext();
+        Object argument = null;
+        if (init != null && constant(init.getInstruction(), cpgen) != null) {
+            argument = constant(init.getInstruction(), cpgen);
+            init = init.getNext();
+        }
+        if (init == null || !isCall(init.getInstruction(), Constants.INVOKESPECIAL, builder, Constants.CONSTRUCTOR_NAME,
+                cpgen)) {
+            return null;
+        }
+        Type[] parameters = ((InvokeInstruction) init.getInstruction()).getArgumentTypes(cpgen);
+        StringBuilder text = new StringBuilder();
+        if (parameters.length == 1 && argument != null) {
+            // new StringBuilder(int) only sets the capacity, which must not be negative
+            String s = parameters[0] != Type.INT ? format(argument, parameters[0])
+                    : argument instanceof Integer && (Integer) argument >= 0 ? "" : null;
+            if (s == null) {
+                return null;
+            }
+            text.append(s);
+        } else if (parameters.length != 0 || argument != null) {
+            return null;
+        }
+
+        InstructionHandle last = init;
+        int appends = 0;
+        for (InstructionHandle ih2 = init.getNext(); ih2 != null && ih2.getNext() != null; ih2 = ih2.getNext().getNext()) {
+            String s = appended(ih2, builder, cpgen);
+            if (s == null) {
+                break;
+            }
+            text.append(s);
+            last = ih2.getNext();
+            appends++;
+        }
+        InstructionHandle end = last.getNext();
+        boolean complete = end != null
+                && isCall(end.getInstruction(), Constants.INVOKEVIRTUAL, builder, "toString", cpgen);
+        if (complete) {
+            last = end;
+        } else if (appends == 0) {
+            return null;
+        }
+        if (!fits(text.toString()) || !MethodIR.isStraightLine(ih, last)) {
+            return null;
+        }
+        int index = cpgen.addString(text.toString());
+        if (complete) {
+            return ir.replace(ih, last, new LDC(index));
+        }
+        InstructionList code = new InstructionList(new LDC(index));
+        code.append(new INVOKESPECIAL(cpgen.addMethodref(builder, Constants.CONSTRUCTOR_NAME,
+                Type.getMethodSignature(Type.VOID, new Type[] { Type.STRING }))));
+        ir.replace(dup.getNext(), last, code);
+        return dup.getNext().getNext();
+    }
+
+    /*
+     * two or more constant; invokevirtual B.append pairs in a row, ending at ih, become one
+     * append of their joined text
+     */
+    private static InstructionHandle mergeAppends(MethodIR ir, InstructionHandle ih, ConstantPoolGen cpgen) {
+        String builder = owner((INVOKEVIRTUAL) ih.getInstruction(), cpgen);
+        // the pair ending at ih must end the run, so each run is merged once, from its end
+        InstructionHandle next = ih.getNext();
+        if (next != null && next.getNext() != null && appended(next, builder, cpgen) != null) {
+            return null;
+        }
+        String text = "";
+        InstructionHandle first = null;
+        int appends = 0;
+        for (InstructionHandle push = ih.getPrev(); push != null; ) {
+            String s = appended(push, builder, cpgen);
+            if (s == null) {
+                break;
+            }
+            text = s + text;
+            first = push;
+            appends++;
+            push = push.getPrev() == null ? null : push.getPrev().getPrev();
+        }
+        if (appends < 2 || !fits(text) || !MethodIR.isStraightLine(first, ih)) {
+            return null;
+        }
+        InstructionList code = new InstructionList(new LDC(cpgen.addString(text)));
+        InstructionHandle append = code.append(new INVOKEVIRTUAL(cpgen.addMethodref(builder, "append",
+                Type.getMethodSignature(new ObjectType(builder), new Type[] { Type.STRING }))));
+        ir.replace(first, ih, code);
+        return append;
+    }
+
+    /*
+     * the text appended by the pair constant; invokevirtual B.append starting at push, or null
+     */
+    private static String appended(InstructionHandle push, String builder, ConstantPoolGen cpgen) {
+        Object value = constant(push.getInstruction(), cpgen);
+        InstructionHandle call = push.getNext();
+        if (value == null || call == null || !isCall(call.getInstruction(), Constants.INVOKEVIRTUAL, builder, "append",
+                cpgen)) {
+            return null;
+        }
+        Type[] parameters = ((InvokeInstruction) call.getInstruction()).getArgumentTypes(cpgen);
+        return parameters.length == 1 ? format(value, parameters[0]) : null;
+    }
+
+    /*
+     * ldc s; ldc t; invokevirtual String.concat and ldc s; invokevirtual String.length
+     */
+    private static InstructionHandle foldStringMethod(MethodIR ir, InstructionHandle ih, ConstantPoolGen cpgen) {
+        InvokeInstruction call = (InvokeInstruction) ih.getInstruction();
+        if (!owner(call, cpgen).equals(STRING)) {
+            return null;
+        }
+        String name = call.getMethodName(cpgen);
+        String signature = call.getSignature(cpgen);
+        InstructionHandle target = ih.getPrev();
+        if (target == null) {
+            return null;
+        }
+        if (name.equals("length") && signature.equals("()I")) {
+            Object s = constant(target.getInstruction(), cpgen);
+            if (!(s instanceof String) || !MethodIR.isStraightLine(target, ih)) {
+                return null;
+            }
+            return ir.replace(target, ih, ConstantPropagation.push(((String) s).length(), cpgen));
+        }
+        if (name.equals("concat") && signature.equals("(Ljava/lang/String;)Ljava/lang/String;")) {
+            Object t = constant(target.getInstruction(), cpgen);
+            target = target.getPrev();
+            Object s = target == null ? null : constant(target.getInstruction(), cpgen);
+            if (!(s instanceof String) || !(t instanceof String) || !fits(s + (String) t)
+                    || !MethodIR.isStraightLine(target, ih)) {
+                return null;
+            }
+            return ir.replace(target, ih, new LDC(cpgen.addString(s + (String) t)));
+        }
+        return null;
+    }
+
+    /*
+     * constant; invokestatic String.valueOf
+     */
+    private static InstructionHandle foldValueOf(MethodIR ir, InstructionHandle ih, ConstantPoolGen cpgen) {
+        InvokeInstruction call = (InvokeInstruction) ih.getInstruction();
+        InstructionHandle push = ih.getPrev();
+        if (push == null || !isCall(call, Constants.INVOKESTATIC, STRING, "valueOf", cpgen)) {
+            return null;
+        }
+        Type[] parameters = call.getArgumentTypes(cpgen);
+        Object value = constant(push.getInstruction(), cpgen);
+        String s = value == null || parameters.length != 1 ? null : format(value, parameters[0]);
+        if (s == null || !fits(s) || !MethodIR.isStraightLine(push, ih)) {
+            return null;
+        }
+        return ir.replace(push, ih, new LDC(cpgen.addString(s)));
+    }
+
+    /*
+     * invokedynamic StringConcatFactory.makeConcat or makeConcatWithConstants right after a
+     * constant push for each of its arguments
+     */
+    private static InstructionHandle foldConcat(MethodIR ir, InstructionHandle ih, ConstantPoolGen cpgen) {
+        ConstantPool cp = cpgen.getConstantPool();
+        ConstantInvokeDynamic indy = (ConstantInvokeDynamic) cp.getConstant(((INVOKEDYNAMIC) ih.getInstruction())
+                .getIndex());
+        BootstrapMethod[] bootstrapMethods = ir.getBootstrapMethods();
+        if (indy.getBootstrapMethodAttrIndex() >= bootstrapMethods.length) {
+            return null;
+        }
+        BootstrapMethod bootstrap = bootstrapMethods[indy.getBootstrapMethodAttrIndex()];
+        ConstantMethodHandle handle = (ConstantMethodHandle) cp.getConstant(bootstrap.getBootstrapMethodRef());
+        ConstantCP factory = (ConstantCP) cp.getConstant(handle.getReferenceIndex());
+        ConstantNameAndType method = (ConstantNameAndType) cp.getConstant(factory.getNameAndTypeIndex());
+        if (!factory.getClass(cp).equals(CONCAT_FACTORY.replace('/', '.'))) {
+            return null;
+        }
+        ConstantNameAndType call = (ConstantNameAndType) cp.getConstant(indy.getNameAndTypeIndex());
+        Type[] parameters = Type.getArgumentTypes(call.getSignature(cp));
+        int[] constants = bootstrap.getBootstrapArguments();
+        String recipe;
+        if (method.getName(cp).equals("makeConcat")) {
+            recipe = new String(new char[parameters.length]).replace('\0', ARGUMENT);
+        } else if (method.getName(cp).equals("makeConcatWithConstants") && constants.length > 0
+                && cp.getConstant(constants[0]) instanceof ConstantString) {
+            recipe = ((ConstantString) cp.getConstant(constants[0])).getBytes(cp);
+        } else {
+            return null;
+        }
+
+        // the arguments, pushed in order right before the call
+        String[] arguments = new String[parameters.length];
+        InstructionHandle first = ih;
+        for (int i = parameters.length - 1; i >= 0; i--) {
+            first = first.getPrev();
+            Object value = first == null ? null : constant(first.getInstruction(), cpgen);
+            arguments[i] = value == null ? null : format(value, parameters[i]);
+            if (arguments[i] == null) {
+                return null;
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        int argument = 0;
+        int constant = 1;
+        for (int i = 0; i < recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            if (c == ARGUMENT) {
+                if (argument == arguments.length) {
+                    return null;
+                }
+                text.append(arguments[argument++]);
+            } else if (c == BOOTSTRAP_CONSTANT) {
+                Object value = constants.length > constant ? bootstrapConstant(cp.getConstant(constants[constant++]), cp)
+                        : null;
+                if (value == null) {
+                    return null;
+                }
+                text.append(value);
+            } else {
+                text.append(c);
+            }
+        }
+        if (argument != arguments.length || !fits(text.toString()) || !MethodIR.isStraightLine(first, ih)) {
+            return null;
+        }
+        return ir.replace(first, ih, new LDC(cpgen.addString(text.toString())));
+    }
+
+    private static Object bootstrapConstant(Constant c, ConstantPool cp) {
+        if (c instanceof ConstantString) {
+            return ((ConstantString) c).getBytes(cp);
+        }
+        if (c instanceof ConstantInteger || c instanceof ConstantFloat || c instanceof ConstantLong
+                || c instanceof ConstantDouble) {
+            return ((ConstantObject) c).getConstantValue(cp);
+        }
+        return null;
+    }
+
+    /*
+     * the value a constant push leaves on the stack: a boxed number or a String, or null
+     */
+    private static Object constant(Instruction inst, ConstantPoolGen cpgen) {
+        if (inst instanceof ConstantPushInstruction) {
+            return ((ConstantPushInstruction) inst).getValue();
+        }
+        if (inst instanceof LDC2_W) {
+            return ((LDC2_W) inst).getValue(cpgen);
+        }
+        if (inst instanceof LDC) {
+            Object value = ((LDC) inst).getValue(cpgen);
+            return value instanceof Number || value instanceof String ? value : null;
+        }
+        return null;
+    }
+
+    /*
+     * the text String.valueOf gives for a value passed as a parameter of the given type, or
+     * null if the value does not match the type or its text is not known now
+     */
+    private static String format(Object value, Type type) {
+        if (type == Type.INT || type == Type.SHORT || type == Type.BYTE) {
+            return value instanceof Integer ? String.valueOf(value) : null;
+        }
+        if (type == Type.CHAR) {
+            return value instanceof Integer ? String.valueOf((char) (int) (Integer) value) : null;
+        }
+        if (type == Type.BOOLEAN) {
+            return value instanceof Integer ? String.valueOf((Integer) value != 0) : null;
+        }
+        if (type == Type.LONG) {
+            return value instanceof Long ? String.valueOf(value) : null;
+        }
+        if (type == Type.FLOAT) {
+            return value instanceof Float ? String.valueOf(value) : null;
+        }
+        if (type == Type.DOUBLE) {
+            return value instanceof Double ? String.valueOf(value) : null;
+        }
+        // a String passed as a String, CharSequence or Object is appended as itself
+        boolean textual = type.equals(Type.STRING) || type.equals(Type.OBJECT)
+                || type.equals(new ObjectType("java.lang.CharSequence"));
+        return textual && value instanceof String ? (String) value : null;
+    }
+
+    private static boolean isBuilder(String className) {
+        return className.equals("java.lang.StringBuilder") || className.equals("java.lang.StringBuffer");
+    }
+
+    private static boolean isCall(Instruction inst, short opcode, String className, String name,
+            ConstantPoolGen cpgen) {
+        if (inst.getOpcode() != opcode) {
+            return false;
+        }
+        InvokeInstruction call = (InvokeInstruction) inst;
+        return owner(call, cpgen).equals(className) && call.getMethodName(cpgen).equals(name);
+    }
+
+    /*
+     * the class a call names, or the array type of e.g. int[].clone(), which no folding matches
+     */
+    private static String owner(InvokeInstruction call, ConstantPoolGen cpgen) {
+        ReferenceType type = call.getReferenceType(cpgen);
+        return type instanceof ObjectType ? ((ObjectType) type).getClassName() : type.getSignature();
+    }
+
+    /*
+     * true if the text can be a constant pool string
+     */
+    private static boolean fits(String s) {
+        if (s.length() > MAX_UTF8_LENGTH) {
+            return false;
+        }
+        // modified UTF-8: NUL takes two bytes and each half of a surrogate pair three
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes <= MAX_UTF8_LENGTH;
+    }
+}
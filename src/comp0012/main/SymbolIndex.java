@@ -0,0 +1,362 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantObject;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+/**
+ * Whole-input index of the symbols code in one class may be folded against although they are
+ * declared in another:
+ * - pure methods, a call to which can be replaced by its result when every argument is a
+ *   constant: they cannot be overridden, take and return only primitives and touch nothing but
+ *   their own locals and operand stack, so no field, array, allocation, call, monitor or throw
+ * - constant static final fields, set by a ConstantValue attribute or by a static initialiser
+ *   that does nothing but store constants into its own class's fields
+ * Built from every class of the input before any is optimised, then only read, by any number
+ * of threads.
+ */
+public class SymbolIndex {
+
+    static final SymbolIndex EMPTY = new SymbolIndex();
+
+    // results memoised per callee are capped so an argument-heavy input cannot grow them forever
+    private static final int MAX_RESULTS = 1024;
+    private static final Object NO_RESULT = new Object();
+
+    /**
+     * One indexed method, with its code decoded once and shared by every evaluation.
+     */
+    static final class Callee {
+        final String className;
+        final boolean isStatic;
+        final Type[] argumentTypes;
+        final Type returnType;
+        // returns for every argument: no division that may throw and no jump backwards
+        final boolean total;
+        private final boolean overridable;
+        private final InstructionList code;
+        private final ConstantPoolGen cpgen;
+        private final int maxLocals;
+        private final int maxStack;
+        private final Map<List<Object>, Object> results = new ConcurrentHashMap<>();
+
+        Callee(JavaClass jc, Method m, InstructionList code, ConstantPoolGen cpgen) {
+            Code body = m.getCode();
+            this.className = jc.getClassName();
+            this.isStatic = m.isStatic();
+            this.argumentTypes = m.getArgumentTypes();
+            this.returnType = m.getReturnType();
+            this.total = isTotal(code);
+            this.overridable = !m.isStatic() && !m.isPrivate() && !m.isFinal() && !jc.isFinal();
+            this.code = code;
+            this.cpgen = cpgen;
+            this.maxLocals = body.getMaxLocals();
+            this.maxStack = body.getMaxStack();
+        }
+
+        /*
+         * the constant the method returns for these arguments, or null if evaluating it fails,
+         * e.g. on a division by zero or a loop running too long
+         */
+        Object evaluate(Object[] args) {
+            List<Object> key = Arrays.asList(args);
+            Object result = results.get(key);
+            if (result == null) {
+                result = run(args);
+                if (results.size() < MAX_RESULTS) {
+                    results.put(key, result == null ? NO_RESULT : result);
+                }
+            }
+            return result == NO_RESULT ? null : result;
+        }
+
+        private Object run(Object[] args) {
+            EvaluationFrame frame = EvaluationFrame.acquire(maxLocals, maxStack);
+            int slot = isStatic ? 0 : 1;
+            for (Object arg : args) {
+                if (arg instanceof Integer) {
+                    frame.pushInt((Integer) arg);
+                } else if (arg instanceof Long) {
+                    frame.pushLong((Long) arg);
+                } else if (arg instanceof Float) {
+                    frame.pushFloat((Float) arg);
+                } else {
+                    frame.pushDouble((Double) arg);
+                }
+                frame.store(slot);
+                slot += arg instanceof Long || arg instanceof Double ? 2 : 1;
+            }
+            return ConstantVariableFoldingPass.evaluate(code.getStart(), returnType, frame, cpgen);
+        }
+    }
+
+    private static boolean isTotal(InstructionList code) {
+        for (InstructionHandle ih = code.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof IDIV || inst instanceof IREM || inst instanceof LDIV || inst instanceof LREM) {
+                return false;
+            }
+            if (inst instanceof BranchInstruction) {
+                List<InstructionHandle> targets = new ArrayList<>();
+                targets.add(((BranchInstruction) inst).getTarget());
+                if (inst instanceof Select) {
+                    targets.addAll(Arrays.asList(((Select) inst).getTargets()));
+                }
+                for (InstructionHandle t : targets) {
+                    if (t.getPosition() <= ih.getPosition()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One constant static field and where its value comes from.
+     */
+    static final class ConstantField {
+        final String className;
+        final Object value;
+        // set by the static initialiser rather than by a ConstantValue attribute
+        final boolean initialised;
+
+        ConstantField(String className, Object value, boolean initialised) {
+            this.className = className;
+            this.value = value;
+            this.initialised = initialised;
+        }
+    }
+
+    private final Map<String, Callee> methods = new ConcurrentHashMap<>();
+    private final Map<String, ConstantField> fields = new ConcurrentHashMap<>();
+    private final Map<String, String> superclasses = new ConcurrentHashMap<>();
+    // classes whose static initialiser may do more than store constants into their own fields
+    private final Set<String> initialisers = ConcurrentHashMap.newKeySet();
+    // hash of every class file holding an indexed method or field
+    private final Map<String, byte[]> classHashes = new ConcurrentHashMap<>();
+
+    /*
+     * index the pure methods and constant fields of one class file of the input
+     */
+    public void add(byte[] classBytes, String classFileName) throws IOException {
+        JavaClass jc = new ClassParser(new ByteArrayInputStream(classBytes), classFileName).parse();
+        String className = jc.getClassName();
+        superclasses.put(className, jc.getSuperclassName());
+        ConstantPoolGen cpgen = new ConstantPoolGen(jc.getConstantPool());
+        boolean indexed = false;
+        Set<String> written = new HashSet<>();
+        Map<String, Object> stored = new HashMap<>();
+        for (Method m : jc.getMethods()) {
+            InstructionList code = m.getCode() == null ? null : new InstructionList(m.getCode().getCode());
+            if (m.getName().equals(Constants.STATIC_INITIALIZER_NAME)) {
+                if (!storedConstants(className, code, cpgen, written, stored)) {
+                    initialisers.add(className);
+                }
+            } else if (isPure(m, code)) {
+                methods.put(key(className, m.getName(), m.getSignature()), new Callee(jc, m, code, cpgen));
+                indexed = true;
+            }
+        }
+        for (Field f : jc.getFields()) {
+            if (!f.isStatic() || !f.isFinal()) {
+                continue;
+            }
+            String key = key(className, f.getName(), ":" + f.getSignature());
+            Object value = stored.get(key);
+            boolean initialised = value != null;
+            if (value == null && f.getConstantValue() != null && !written.contains(key)) {
+                Constant c = jc.getConstantPool().getConstant(f.getConstantValue().getConstantValueIndex());
+                value = c instanceof ConstantObject ? ((ConstantObject) c).getConstantValue(jc.getConstantPool()) : null;
+            }
+            if (value instanceof Number || value instanceof String) {
+                fields.put(key, new ConstantField(className, value, initialised));
+                indexed = true;
+            }
+        }
+        if (indexed) {
+            classHashes.put(className, ClassFiles.sha256().digest(classBytes));
+        }
+    }
+
+    /*
+     * record which fields of its own class a static initialiser writes and, if storing
+     * constants into them is all it does, the constants; returns false if it does anything else
+     */
+    private static boolean storedConstants(String className, InstructionList code, ConstantPoolGen cpgen,
+            Set<String> written, Map<String, Object> stored) {
+        boolean quiet = true;
+        Object pending = null;
+        for (InstructionHandle ih = code.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            Object value = constant(inst, cpgen);
+            if (inst instanceof PUTSTATIC && className.equals(owner((PUTSTATIC) inst, cpgen))) {
+                PUTSTATIC put = (PUTSTATIC) inst;
+                String key = key(className, put.getFieldName(cpgen), ":" + put.getSignature(cpgen));
+                written.add(key);
+                if (pending != null) {
+                    stored.put(key, pending);
+                } else {
+                    quiet = false;
+                }
+                pending = null;
+            } else if (pending == null && value != null) {
+                pending = value;
+            } else if (pending != null || !(inst instanceof RETURN)) {
+                quiet = false;
+                pending = null;
+            }
+        }
+        if (!quiet) {
+            stored.clear();
+        }
+        return quiet;
+    }
+
+    /*
+     * the int, long, float, double or string an instruction pushes, or null
+     */
+    private static Object constant(Instruction inst, ConstantPoolGen cpgen) {
+        if (inst instanceof ConstantPushInstruction) {
+            return ((ConstantPushInstruction) inst).getValue();
+        }
+        if (inst instanceof LDC) {
+            Object value = ((LDC) inst).getValue(cpgen);
+            return value instanceof Number || value instanceof String ? value : null;
+        }
+        if (inst instanceof LDC2_W) {
+            return ((LDC2_W) inst).getValue(cpgen);
+        }
+        return null;
+    }
+
+    private static boolean isPure(Method m, InstructionList code) {
+        if (code == null || m.isNative() || m.isAbstract() || m.isSynchronized()
+                || !(m.getReturnType() instanceof BasicType) || m.getReturnType() == Type.VOID) {
+            return false;
+        }
+        for (Type t : m.getArgumentTypes()) {
+            if (!(t instanceof BasicType)) {
+                return false;
+            }
+        }
+        for (InstructionHandle ih = code.getStart(); ih != null; ih = ih.getNext()) {
+            Instruction inst = ih.getInstruction();
+            if (inst instanceof InvokeInstruction || inst instanceof INVOKEDYNAMIC || inst instanceof FieldInstruction
+                    || inst instanceof AllocationInstruction || inst instanceof ArrayInstruction
+                    || inst instanceof ARRAYLENGTH || inst instanceof ATHROW || inst instanceof MONITORENTER
+                    || inst instanceof MONITOREXIT || inst instanceof JsrInstruction || inst instanceof RET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * the indexed method a call certainly runs, or null: invokevirtual and invokespecial only
+     * resolve to a known body when it cannot be overridden
+     */
+    Callee lookup(InvokeInstruction call, ConstantPoolGen cpgen) {
+        if (methods.isEmpty() || call instanceof INVOKEINTERFACE
+                || !(call.getReferenceType(cpgen) instanceof ObjectType)) {
+            return null;
+        }
+        String className = ((ObjectType) call.getReferenceType(cpgen)).getClassName();
+        Callee callee = methods.get(key(className, call.getMethodName(cpgen), call.getSignature(cpgen)));
+        if (callee == null || callee.isStatic != (call instanceof INVOKESTATIC) || callee.overridable) {
+            return null;
+        }
+        return callee;
+    }
+
+    /*
+     * the constant a getstatic reads, or null if the field is not indexed
+     */
+    ConstantField lookup(GETSTATIC get, ConstantPoolGen cpgen) {
+        if (fields.isEmpty()) {
+            return null;
+        }
+        return fields.get(key(owner(get, cpgen), get.getFieldName(cpgen), ":" + get.getSignature(cpgen)));
+    }
+
+    /*
+     * the class a field access names; fields, unlike methods, never belong to an array type
+     */
+    private static String owner(FieldInstruction access, ConstantPoolGen cpgen) {
+        return ((ObjectType) access.getReferenceType(cpgen)).getClassName();
+    }
+
+    /*
+     * true if code in caller touching a static member of className can skip doing so without
+     * skipping an observable static initialiser: the caller is that class, or neither it nor
+     * any superclass has an initialiser doing more than storing constants into its own fields
+     */
+    boolean isInitialised(String className, String caller) {
+        if (className.equals(caller)) {
+            return true;
+        }
+        for (String c = className; !"java.lang.Object".equals(c); c = superclasses.get(c)) {
+            if (c == null || initialisers.contains(c)) {
+                // a superclass outside the input may have an initialiser of its own
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int methodCount() {
+        return methods.size();
+    }
+
+    public int fieldCount() {
+        return fields.size();
+    }
+
+    /*
+     * hash of every class holding an indexed symbol and of where each may be folded; a change
+     * to any of them may change the output of the classes using it, for the incremental cache key
+     */
+    String digest() {
+        if (methods.isEmpty() && fields.isEmpty()) {
+            return "none";
+        }
+        MessageDigest digest = ClassFiles.sha256();
+        for (Map.Entry<String, byte[]> e : new TreeMap<>(classHashes).entrySet()) {
+            digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update(e.getValue());
+        }
+        for (Map.Entry<String, Callee> e : new TreeMap<>(methods).entrySet()) {
+            digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) (isInitialised(e.getValue().className, "") ? 1 : 0));
+        }
+        for (Map.Entry<String, ConstantField> e : new TreeMap<>(fields).entrySet()) {
+            digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) (isInitialised(e.getValue().className, "") ? 1 : 0));
+        }
+        return ClassFiles.hex(digest.digest());
+    }
+
+    private static String key(String className, String name, String signature) {
+        return className + "." + name + signature;
+    }
+}
@@ -28,5 +28,44 @@ public class ConstantVariableFolding {
         return x > y;               // -> True
     }
 
+    public int methodFive(){
+        int sum = 0;                // sum <- 0
+        for (int i = 1; i <= 10; i++) {
+            sum += i * i;           // sum <- 1 + 4 + ... + 100
+        }
+        return sum;                 // -> 385
+    }
+
+    public int methodSix(){
+        int a = 1000 % 7;           // a <- 6
+        long b = -(123456789L << a);// b <- -7901234496
+        byte c = (byte) (a * 100);  // c <- 88
+        char d = (char) (a - 7);    // d <- 65535
+        float e = (float) (b / 3.0);// e <- -2.63374490E9
+        int f = e < 0 ? a ^ 3 : a | 8;  // f <- 5
+        switch (f) {
+            case 4:  return 0;
+            case 5:  return (int) (b >>> 40) + c + d + f;   // -> 16842843
+            default: return -1;
+        }
+    }
+
+    public int methodSeven(){
+        return square(12) - square(5) + cube(3L, 2);   // -> 144 - 25 + 27 = 146
+    }
+
+    public String methodEight(){
+        int id = 7;
+        return "user".concat("-") + id + ':' + "key".length();   // -> "user-7:3"
+    }
+
+    private static int square(int x){
+        return x * x;
+    }
+
+    private int cube(long x, int shift){
+        return (int) (x * x * x) << (shift - 2);
+    }
+
 }
 // @formatter:on
\ No newline at end of file
@@ -35,4 +35,12 @@ public class DynamicVariableFolding {
         b = a + 2;
         return a * b;
     }
+
+    public int methodFive(int a, int b){
+        int sum = 0;
+        for(int i = 0; i < 10; i++){
+            sum += (b - a) * i;
+        }
+        return sum;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package comp0012.target;
+
+public class ExceptionFolding {
+    public int methodOne(int x) {
+        int v = 1;
+        try {
+            v = 2;
+            if (x == 0) throw new IllegalStateException();
+            v = 3;
+        } catch (IllegalStateException e) {
+            return v * 10;
+        } finally {
+            v += 100;
+        }
+        return v;
+    }
+
+    public int methodTwo() {
+        int a = 12;
+        try {
+            a = a * 3;
+        } finally {
+            a = a + 4;
+        }
+        return a;
+    }
+
+    public int methodThree(int a) {
+        try {
+            a = a;
+            a = a + 1;
+        } finally {
+            a = a * 2;
+        }
+        return a;
+    }
+}
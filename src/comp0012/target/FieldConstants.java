@@ -0,0 +1,10 @@
+package comp0012.target;
+
+public class FieldConstants {
+    public static final int SEVEN = 7;
+    public static final int QUIET;
+
+    static {
+        QUIET = 99;
+    }
+}
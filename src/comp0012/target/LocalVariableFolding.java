@@ -0,0 +1,29 @@
+package comp0012.target;
+
+public class LocalVariableFolding {
+    public int methodOne(int n) {
+        int result = n;
+        {
+            long unused = n * 3L;
+            result++;
+        }
+        {
+            String s = "x" + n;
+            result += s.length() + s.indexOf('x');
+        }
+        return result;
+    }
+
+    public int methodTwo(double x) {
+        int result;
+        {
+            long bits = Double.doubleToRawLongBits(x);
+            result = (int) (bits >>> 32);
+        }
+        {
+            String s = String.valueOf(result);
+            result += s.length() + s.indexOf('-');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,9 @@
+package comp0012.target;
+
+public class LoudConstants {
+    public static final int LIMIT = 5;
+
+    static {
+        System.out.println("LoudConstants initialised");
+    }
+}
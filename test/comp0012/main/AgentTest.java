@@ -0,0 +1,49 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the target classes still pass their tests when OptimiserAgent folds them as they
+ * load, and that what it loaded was folded
+ */
+public class AgentTest {
+
+    // the agent jar, built by the agent target before these tests run
+    private static final String AGENT = System.getProperty("comp0012.agent", "build/optimiser-agent.jar");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testFoldedTargetPassesItsTests() throws Exception {
+        Path cache = tmp.newFolder("cache").toPath();
+        Path log = tmp.getRoot().toPath().resolve("junit.log");
+        Process junit = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-javaagent:" + AGENT + "=packages=comp0012.target,cache=" + cache,
+                "-cp", System.getProperty("java.class.path"),
+                "org.junit.runner.JUnitCore", "comp0012.target.ConstantVariableFoldingTest")
+                .redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        int status = junit.waitFor();
+        assertEquals(new String(Files.readAllBytes(log), StandardCharsets.UTF_8), 0, status);
+
+        // the agent stores what it loaded under the hash of the original bytes and configuration
+        byte[] original = Targets.bytes(Targets.root(), "ConstantVariableFolding");
+        String key = OptimisationCache.key(
+                new OptimizationOptions().configuration().getBytes(StandardCharsets.UTF_8), original);
+        Path loaded = cache.resolve(key.substring(0, 2)).resolve(key + ".class");
+        assertTrue("agent cached nothing for ConstantVariableFolding", Files.isRegularFile(loaded));
+        assertEquals(2, Targets.length(Files.readAllBytes(loaded), "methodOne"));
+        assertTrue(Targets.length(original, "methodOne") > 2);
+    }
+}
@@ -0,0 +1,66 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test Main on a jar input, written out to a jar or to a directory
+ */
+public class ArchiveTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testJarToJar() throws Exception {
+        Path in = Targets.jar(tmp.getRoot().toPath().resolve("in.jar"));
+        Path out = tmp.getRoot().toPath().resolve("out.jar");
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+
+        assertEquals(3650, Targets.call(out, "ConstantVariableFolding", "methodOne"));
+        assertEquals(2, Targets.length(out, "ConstantVariableFolding", "methodOne"));
+        assertTrue(Targets.length(in, "ConstantVariableFolding", "methodOne") > 2);
+    }
+
+    @Test
+    public void testJarToDirectory() throws Exception {
+        Path in = Targets.jar(tmp.getRoot().toPath().resolve("in.jar"));
+        Path out = tmp.newFolder("out").toPath();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+
+        assertTrue(Files.isRegularFile(out.resolve(Targets.PACKAGE).resolve("ConstantVariableFolding.class")));
+        assertEquals(3650, Targets.call(out, "ConstantVariableFolding", "methodOne"));
+        assertEquals(2, Targets.length(out, "ConstantVariableFolding", "methodOne"));
+    }
+
+    @Test
+    public void testEntryOutsideOutputDirectory() throws Exception {
+        Path in = tmp.getRoot().toPath().resolve("in.jar");
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(in))) {
+            jar.putNextEntry(new JarEntry("../escaped.txt"));
+            jar.write("escaped".getBytes(StandardCharsets.UTF_8));
+            jar.closeEntry();
+        }
+        Path out = tmp.newFolder("out").toPath();
+        try {
+            Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+            fail("wrote an entry outside the output directory");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("../escaped.txt"));
+        }
+        assertFalse(Files.exists(tmp.getRoot().toPath().resolve("escaped.txt")));
+    }
+}
@@ -0,0 +1,59 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that Main leaves methods over the -maxinstructions budget as they were, while folding
+ * the ones within it, and that -O0 leaves every class as it was
+ */
+public class BudgetTest {
+
+    private static final String CLASS = "ConstantVariableFolding";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testMethodOverBudgetIsUnchanged() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        int budget = 12;
+        assertTrue(Targets.length(in, CLASS, "methodOne") > budget);
+        assertTrue(Targets.length(in, CLASS, "methodTwo") <= budget);
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache",
+                "-maxinstructions", Integer.toString(budget) });
+
+        assertArrayEquals(Targets.code(in, CLASS, "methodOne"), Targets.code(out, CLASS, "methodOne"));
+        assertEquals(3650, Targets.call(out, CLASS, "methodOne"));
+        assertEquals(2, Targets.length(out, CLASS, "methodTwo"));
+    }
+
+    @Test
+    public void testWithoutBudgetIsFolded() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+
+        assertEquals(2, Targets.length(out, CLASS, "methodOne"));
+    }
+
+    @Test
+    public void testLevelZeroCopiesClasses() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache", "-O0" });
+
+        for (Path f : Targets.classFiles(in.resolve(Targets.PACKAGE))) {
+            String name = f.getFileName().toString().replace(".class", "");
+            assertArrayEquals(name, Targets.bytes(in, name), Targets.bytes(out, name));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that a second run of Main into the same output reuses its classes, and that changing
+ * an option optimises them again
+ */
+public class CacheTest {
+
+    private static final Pattern CACHED = Pattern.compile("\"cached\":(\\d+)");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /*
+     * run Main with a report, and return how many classes it took from the cache
+     */
+    private int cached(Path in, Path out, String... options) throws Exception {
+        Path report = tmp.getRoot().toPath().resolve("report.json");
+        String[] args = new String[options.length + 6];
+        args[0] = "-in";
+        args[1] = in.toString();
+        args[2] = "-out";
+        args[3] = out.toString();
+        args[4] = "-report";
+        args[5] = report.toString();
+        System.arraycopy(options, 0, args, 6, options.length);
+        Main.main(args);
+        Matcher m = CACHED.matcher(new String(Files.readAllBytes(report), StandardCharsets.UTF_8));
+        assertTrue("no cached total in the report", m.find());
+        return Integer.parseInt(m.group(1));
+    }
+
+    @Test
+    public void testUnchangedInputIsReused() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        assertEquals(0, cached(in, out));
+        byte[] first = Targets.bytes(out, "ConstantVariableFolding");
+
+        int classes = Targets.classFiles(in.resolve(Targets.PACKAGE)).size();
+        assertEquals(classes, cached(in, out));
+        assertArrayEquals(first, Targets.bytes(out, "ConstantVariableFolding"));
+        assertEquals(3650, Targets.call(out, "ConstantVariableFolding", "methodOne"));
+    }
+
+    @Test
+    public void testChangedOptionIsNotReused() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        assertEquals(0, cached(in, out));
+        assertEquals(2, Targets.length(out, "ConstantVariableFolding", "methodOne"));
+
+        // -O0 copies classes unchanged, so a stale cache would leave the folded method behind
+        assertEquals(0, cached(in, out, "-O0"));
+        assertEquals(Targets.length(in, "ConstantVariableFolding", "methodOne"),
+                Targets.length(out, "ConstantVariableFolding", "methodOne"));
+    }
+}
@@ -0,0 +1,87 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test a round trip to Main running as a daemon: a client request rebuilds the output, and a
+ * stop request ends the run
+ */
+public class DaemonTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /*
+     * send one request the way OptimiserClient does, waiting for the daemon to come up
+     */
+    private static String request(int port, String request) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)
+                        .println(request);
+                return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                        .readLine();
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimiseAndStop() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path out = tmp.newFolder("out").toPath();
+        int port;
+        try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = free.getLocalPort();
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread daemon = new Thread(() -> {
+            try {
+                Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-daemon", Integer.toString(port) });
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        daemon.start();
+        try {
+            assertTrue(request(port, OptimiserDaemon.OPTIMISE).startsWith("ok"));
+            assertEquals(2, Targets.length(out, "ConstantVariableFolding", "methodOne"));
+
+            // a lost output class is written again by the next rebuild
+            Path folded = out.resolve(Targets.PACKAGE).resolve("ConstantVariableFolding.class");
+            Files.delete(folded);
+            assertTrue(request(port, OptimiserDaemon.OPTIMISE).startsWith("ok"));
+            assertEquals(2, Targets.length(out, "ConstantVariableFolding", "methodOne"));
+            assertEquals(3650, Targets.call(out, "ConstantVariableFolding", "methodOne"));
+        } finally {
+            assertEquals("ok stopping", request(port, OptimiserDaemon.STOP));
+            daemon.join(10_000);
+        }
+        assertFalse("daemon still running after stop", daemon.isAlive());
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,39 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that Main optimises methods with try/catch/finally instead of keeping them as parsed
+ * when a rewrite lands on the last instruction of a handler range
+ */
+public class ExceptionHandlerTest {
+
+    private static final String CLASS = "ExceptionFolding";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testTryFinallyIsOptimised() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath(), CLASS);
+        Path out = tmp.newFolder("out").toPath();
+        Path report = tmp.getRoot().toPath().resolve("report.json");
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache",
+                "-report", report.toString() });
+
+        // javac's finally handler covers its own store of the exception, which deadstore
+        // shrinks the range to and peephole then rewrites
+        assertEquals(0, Targets.counter(report, "totals", "keptOriginal"));
+        assertTrue(Targets.length(out, CLASS, "methodOne") < Targets.length(in, CLASS, "methodOne"));
+        assertEquals(20, Targets.call(out, CLASS, "methodOne", 0));
+        assertEquals(103, Targets.call(out, CLASS, "methodOne", 1));
+        assertEquals(40, Targets.call(out, CLASS, "methodTwo"));
+    }
+}
@@ -0,0 +1,89 @@
+package comp0012.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.InstructionList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the peephole rules through Main on methods whose rewrites fall inside, or at the edges
+ * of, exception handler ranges: the methods must come out optimised with a valid exception table
+ */
+public class PeepholeTest {
+
+    private static final String CLASS = "ExceptionFolding";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path optimise(String passes) throws Exception {
+        Path in = Targets.copy(tmp.newFolder().toPath(), CLASS);
+        Path out = tmp.newFolder().toPath();
+        Path report = out.resolveSibling(out.getFileName() + ".json");
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache",
+                "-passes", passes, "-report", report.toString() });
+
+        assertEquals(0, Targets.counter(report, "totals", "keptOriginal"));
+        assertTrue(Targets.counter(report, PeepholePass.NAME, "rewritesApplied") > 0);
+        return out;
+    }
+
+    /*
+     * every handler range starts before it ends, and its ends and handler fall on instructions
+     */
+    private static void assertValidExceptionTables(Path classes) throws Exception {
+        JavaClass jc = new ClassParser(new ByteArrayInputStream(Targets.bytes(classes, CLASS)), CLASS).parse();
+        for (Method m : jc.getMethods()) {
+            Code code = m.getCode();
+            Set<Integer> positions = new HashSet<>();
+            for (int p : new InstructionList(code.getCode()).getInstructionPositions()) {
+                positions.add(p);
+            }
+            positions.add(code.getCode().length);
+            for (CodeException h : code.getExceptionTable()) {
+                String range = m.getName() + " handler " + h;
+                assertTrue(range, h.getStartPC() < h.getEndPC());
+                assertTrue(range, positions.contains(h.getStartPC()));
+                assertTrue(range, positions.contains(h.getEndPC()));
+                assertTrue(range, positions.contains(h.getHandlerPC()) && h.getHandlerPC() < code.getCode().length);
+            }
+        }
+    }
+
+    private static void assertResults(Path out) throws Exception {
+        assertEquals(20, Targets.call(out, CLASS, "methodOne", 0));
+        assertEquals(103, Targets.call(out, CLASS, "methodOne", 1));
+        assertEquals(40, Targets.call(out, CLASS, "methodTwo"));
+        assertEquals(10, Targets.call(out, CLASS, "methodThree", 4));
+    }
+
+    @Test
+    public void testRewritesInsideHandlerRanges() throws Exception {
+        // self-store at the start of a protected range, store-load pairs inside and across its end
+        Path out = optimise(PeepholePass.NAME);
+        assertValidExceptionTables(out);
+        assertResults(out);
+    }
+
+    @Test
+    public void testRewritesAfterDeadStores() throws Exception {
+        // deadstore shrinks javac's finally handler to the store of the exception, which
+        // store-load then rewrites on the last instruction of the handler's own range
+        Path out = optimise(DeadStoreEliminationPass.NAME + "," + PeepholePass.NAME);
+        assertValidExceptionTables(out);
+        assertResults(out);
+    }
+}
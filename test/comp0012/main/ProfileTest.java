@@ -0,0 +1,70 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Test a profile guided build through Main: instrument the target classes, run their tests to
+ * write a profile, and check that only the methods it found hot get the expensive passes
+ */
+public class ProfileTest {
+
+    private static final String CLASS = "DynamicVariableFolding";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Path optimise(Path in, Path out, String... options) throws Exception {
+        String[] args = new String[options.length + 5];
+        args[0] = "-in";
+        args[1] = in.toString();
+        args[2] = "-out";
+        args[3] = out.toString();
+        args[4] = "-nocache";
+        System.arraycopy(options, 0, args, 5, options.length);
+        Main.main(args);
+        return out;
+    }
+
+    @Test
+    public void testOnlyHotMethodsGetExpensivePasses() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path instrumented = optimise(in, tmp.newFolder("instrumented").toPath(), "-instrument");
+
+        // the tests call methodTwo twice and the other methods once; an instrumented build is
+        // optimised too, so their loops are unrolled and take no back edges
+        Path profile = tmp.getRoot().toPath().resolve("profile.txt");
+        Path log = tmp.getRoot().toPath().resolve("junit.log");
+        Process junit = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-D" + ProfileRuntime.FILE_PROPERTY + "=" + profile,
+                "-cp", instrumented + File.pathSeparator + System.getProperty("java.class.path"),
+                "org.junit.runner.JUnitCore", "comp0012.target." + CLASS + "Test")
+                .redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        int status = junit.waitFor();
+        assertEquals(new String(Files.readAllBytes(log), StandardCharsets.UTF_8), 0, status);
+
+        Path guided = optimise(in, tmp.newFolder("guided").toPath(), "-profile", profile.toString(), "-hot", "2");
+        Path full = optimise(in, tmp.newFolder("full").toPath());
+        Path cheap = optimise(in, tmp.newFolder("cheap").toPath(),
+                "-disable", String.join(",", PassManager.EXPENSIVE));
+
+        // unrolling and the dynamic pass each change these, so the two builds tell them apart
+        assertNotEquals(Targets.length(full, CLASS, "methodFive"), Targets.length(cheap, CLASS, "methodFive"));
+        assertNotEquals(Targets.length(full, CLASS, "methodTwo"), Targets.length(cheap, CLASS, "methodTwo"));
+        assertEquals(Targets.length(full, CLASS, "methodTwo"), Targets.length(guided, CLASS, "methodTwo"));
+        assertEquals(Targets.length(cheap, CLASS, "methodFive"), Targets.length(guided, CLASS, "methodFive"));
+        assertEquals(true, Targets.call(guided, CLASS, "methodTwo"));
+        assertEquals(225, Targets.call(guided, CLASS, "methodFive", 3, 8));
+    }
+}
@@ -0,0 +1,60 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that Main folds reads of constant static fields of other classes of the input, unless
+ * skipping the read would skip a static initialiser with side effects
+ */
+public class StaticFieldTest {
+
+    private static final String CLASS = "StaticFieldFolding";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testFieldsAcrossClasses() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath(), CLASS, "FieldConstants", "LoudConstants");
+        Path out = tmp.newFolder("out").toPath();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+
+        // a ConstantValue field, and one only set to a constant by a quiet initialiser
+        assertEquals(2, Targets.length(out, CLASS, "methodOne"));
+        assertEquals(42, Targets.call(out, CLASS, "methodOne"));
+        assertEquals(2, Targets.length(out, CLASS, "methodTwo"));
+        assertEquals(100, Targets.call(out, CLASS, "methodTwo"));
+
+        // the read of a field whose class prints when initialised stays, and still initialises it
+        assertEquals(Constants.GETSTATIC, Targets.code(out, CLASS, "methodThree")[0] & 0xff);
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            assertEquals(10, Targets.call(out, CLASS, "methodThree"));
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals("LoudConstants initialised", printed.toString().trim());
+    }
+
+    @Test
+    public void testFieldsOutsideInput() throws Exception {
+        // without the classes declaring them, nothing is known about the fields
+        Path in = Targets.copy(tmp.newFolder("in").toPath(), CLASS);
+        Path out = tmp.newFolder("out").toPath();
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache" });
+
+        assertEquals(Constants.GETSTATIC, Targets.code(out, CLASS, "methodOne")[0] & 0xff);
+        assertEquals(Constants.GETSTATIC, Targets.code(out, CLASS, "methodTwo")[0] & 0xff);
+    }
+}
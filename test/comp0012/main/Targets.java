@@ -0,0 +1,158 @@
+package comp0012.main;
+
+import comp0012.target.ConstantVariableFolding;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.InstructionList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The compiled comp0012.target classes, as input for runs of Main, and a way to call the
+ * classes such a run wrote without picking up the originals from the test classpath
+ */
+final class Targets {
+
+    static final String PACKAGE = "comp0012/target";
+
+    private Targets() {
+    }
+
+    /*
+     * the directory the original target classes were compiled to
+     */
+    static Path root() {
+        try {
+            return Paths.get(ConstantVariableFolding.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * the target classes packed into a jar
+     */
+    static Path jar(Path file) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(file))) {
+            for (Path f : classFiles(root().resolve(PACKAGE))) {
+                out.putNextEntry(new JarEntry(PACKAGE + "/" + f.getFileName()));
+                Files.copy(f, out);
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /*
+     * the target classes, or only the named ones, copied into a directory laid out by package
+     */
+    static Path copy(Path dir, String... classNames) throws IOException {
+        Path to = Files.createDirectories(dir.resolve(PACKAGE));
+        List<String> only = Arrays.asList(classNames);
+        for (Path f : classFiles(root().resolve(PACKAGE))) {
+            if (only.isEmpty() || only.contains(f.getFileName().toString().replace(".class", ""))) {
+                Files.copy(f, to.resolve(f.getFileName()));
+            }
+        }
+        return dir;
+    }
+
+    /*
+     * a counter of a -report file: the first one called name in the object called section,
+     * e.g. the totals or a pass summed over the run
+     */
+    static long counter(Path report, String section, String name) throws IOException {
+        Matcher m = Pattern.compile(Pattern.quote("\"" + section + "\":{") + "[^}]*\"" + name + "\":(\\d+)")
+                .matcher(new String(Files.readAllBytes(report), StandardCharsets.UTF_8));
+        if (!m.find()) {
+            throw new IllegalArgumentException("No " + section + " " + name + " in " + report);
+        }
+        return Long.parseLong(m.group(1));
+    }
+
+    static List<Path> classFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * call a method of a target class loaded from the given directory or jar
+     */
+    static Object call(Path classes, String className, String method, Object... args) throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() },
+                ClassLoader.getPlatformClassLoader())) {
+            Class<?> c = loader.loadClass("comp0012.target." + className);
+            for (Method m : c.getMethods()) {
+                if (m.getName().equals(method) && m.getParameterCount() == args.length) {
+                    return m.invoke(c.getDeclaredConstructor().newInstance(), args);
+                }
+            }
+            throw new NoSuchMethodException(className + "." + method);
+        }
+    }
+
+    /*
+     * the class file of a target class in the given directory or jar
+     */
+    static byte[] bytes(Path classes, String className) throws IOException {
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() }, null);
+                InputStream in = loader.getResourceAsStream(PACKAGE + "/" + className + ".class")) {
+            if (in == null) {
+                throw new NoSuchFileException(PACKAGE + "/" + className + ".class in " + classes);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /*
+     * the instructions of a method of a target class in the given directory or jar
+     */
+    static int length(Path classes, String className, String method) throws IOException {
+        return length(bytes(classes, className), method);
+    }
+
+    /*
+     * the instructions of a method in the given class file
+     */
+    static int length(byte[] classFile, String method) throws IOException {
+        return new InstructionList(code(classFile, method)).getLength();
+    }
+
+    /*
+     * the bytecode of a method of a target class in the given directory or jar
+     */
+    static byte[] code(Path classes, String className, String method) throws IOException {
+        return code(bytes(classes, className), method);
+    }
+
+    private static byte[] code(byte[] classFile, String method) throws IOException {
+        JavaClass jc = new ClassParser(new ByteArrayInputStream(classFile), null).parse();
+        for (org.apache.bcel.classfile.Method m : jc.getMethods()) {
+            if (m.getName().equals(method)) {
+                return m.getCode().getCode();
+            }
+        }
+        throw new IllegalArgumentException(jc.getClassName() + " has no method " + method);
+    }
+}
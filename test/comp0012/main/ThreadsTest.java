@@ -0,0 +1,51 @@
+package comp0012.main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test that Main writes the same class files whatever the number of worker threads
+ */
+public class ThreadsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void optimise(Path in, Path out, int threads) throws Exception {
+        Main.main(new String[] { "-in", in.toString(), "-out", out.toString(), "-nocache",
+                "-threads", Integer.toString(threads) });
+    }
+
+    private static void assertSameClasses(Path in, Path expected, Path actual) throws Exception {
+        for (Path f : Targets.classFiles(in.resolve(Targets.PACKAGE))) {
+            String name = f.getFileName().toString().replace(".class", "");
+            assertArrayEquals(name, Targets.bytes(expected, name), Targets.bytes(actual, name));
+        }
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        Path in = Targets.copy(tmp.newFolder("in").toPath());
+        Path one = tmp.newFolder("one").toPath();
+        Path four = tmp.newFolder("four").toPath();
+        optimise(in, one, 1);
+        optimise(in, four, 4);
+        assertSameClasses(in, one, four);
+    }
+
+    @Test
+    public void testJar() throws Exception {
+        Path classes = Targets.copy(tmp.newFolder("in").toPath());
+        Path in = Targets.jar(tmp.getRoot().toPath().resolve("in.jar"));
+        Path one = tmp.getRoot().toPath().resolve("one.jar");
+        Path four = tmp.getRoot().toPath().resolve("four.jar");
+        optimise(in, one, 1);
+        optimise(in, four, 4);
+        assertSameClasses(classes, one, four);
+    }
+}
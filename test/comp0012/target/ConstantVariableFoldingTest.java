@@ -30,4 +30,24 @@ public class ConstantVariableFoldingTest {
     public void testMethodFour() {
         assertEquals(true, cvf.methodFour());
     }
+
+    @Test
+    public void testMethodFive() {
+        assertEquals(385, cvf.methodFive());
+    }
+
+    @Test
+    public void testMethodSix() {
+        assertEquals(16842843, cvf.methodSix());
+    }
+
+    @Test
+    public void testMethodSeven() {
+        assertEquals(146, cvf.methodSeven());
+    }
+
+    @Test
+    public void testMethodEight() {
+        assertEquals("user-7:3", cvf.methodEight());
+    }
 }
@@ -53,4 +53,9 @@ public class DynamicVariableFoldingTest {
         assertEquals(24, dvf.methodFour());
     }
 
+    @Test
+    public void testMethodFive() {
+        assertEquals(225, dvf.methodFive(3, 8));
+    }
+
 }
\ No newline at end of file
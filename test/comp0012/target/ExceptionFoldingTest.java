@@ -0,0 +1,30 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * test folding inside try/catch/finally
+ */
+public class ExceptionFoldingTest {
+
+    ExceptionFolding ef = new ExceptionFolding();
+
+    @Test
+    public void testMethodOne() {
+        assertEquals(20, ef.methodOne(0));
+        assertEquals(103, ef.methodOne(1));
+    }
+
+    @Test
+    public void testMethodTwo() {
+        assertEquals(40, ef.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree() {
+        assertEquals(10, ef.methodThree(4));
+    }
+
+}
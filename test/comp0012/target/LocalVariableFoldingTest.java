@@ -0,0 +1,43 @@
+package comp0012.target;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Test folding of a class compiled with -g, whose LocalVariableTable must stay loadable
+ */
+public class LocalVariableFoldingTest {
+
+    LocalVariableFolding lvf = new LocalVariableFolding();
+
+    @Test
+    public void testCompiledWithLocalVariableTable() throws IOException {
+        try (InputStream in = LocalVariableFolding.class.getResourceAsStream("LocalVariableFolding.class")) {
+            JavaClass jc = new ClassParser(in, "LocalVariableFolding.class").parse();
+            for (Method m : jc.getMethods()) {
+                // an -instrument build adds a static initialiser of its own
+                if (!m.getName().equals("<clinit>")) {
+                    assertNotNull(m.getName(), m.getLocalVariableTable());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMethodOne() {
+        assertEquals(8, lvf.methodOne(5));
+    }
+
+    @Test
+    public void testMethodTwo() {
+        assertEquals(1074003977, lvf.methodTwo(2.5));
+    }
+}
@@ -0,0 +1,49 @@
+package comp0012.target;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * test folding static fields of other classes
+ */
+public class StaticFieldFoldingTest {
+
+    StaticFieldFolding sff = new StaticFieldFolding();
+
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+
+    @Before
+    public void setUpStreams()
+    {
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void cleanUpStreams()
+    {
+        System.setOut(originalOut);
+    }
+
+    @Test
+    public void testMethodOne() {
+        assertEquals(42, sff.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo() {
+        assertEquals(100, sff.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree() {
+        assertEquals(10, sff.methodThree());
+        assertEquals("LoudConstants initialised\n", outContent.toString().replace("\r\n", "\n"));
+    }
+
+}
@@ -0,0 +1,24 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * test folding around jsr/ret subroutines
+ */
+public class SubroutineFoldingTest {
+
+    SubroutineFolding sf = new SubroutineFolding();
+
+    @Test
+    public void testMethodOne() {
+        assertEquals(18, sf.methodOne(3));
+    }
+
+    @Test
+    public void testMethodTwo() {
+        assertEquals(33, sf.methodTwo());
+    }
+
+}